@@ -236,6 +236,42 @@ public final class Globals {
         "javax.servlet.include.request_uri";
 
 
+    /**
+     * The request attribute under which the connector announces (as an
+     * object of type Boolean) that it is able to send a file region straight
+     * to the client socket on behalf of the servlet.
+     */
+    public static final String SENDFILE_SUPPORTED_ATTR =
+        "org.apache.catalina.sendfile.support";
+
+
+    /**
+     * The request attribute under which a servlet hands the connector the
+     * absolute path name (as an object of type String) of the file whose
+     * content must be sent as the response body.
+     */
+    public static final String SENDFILE_FILENAME_ATTR =
+        "org.apache.catalina.sendfile.filename";
+
+
+    /**
+     * The request attribute under which a servlet hands the connector the
+     * offset (as an object of type Long) of the first byte of the file
+     * region to send.
+     */
+    public static final String SENDFILE_FILE_START_ATTR =
+        "org.apache.catalina.sendfile.start";
+
+
+    /**
+     * The request attribute under which a servlet hands the connector the
+     * offset (as an object of type Long) following the last byte of the
+     * file region to send.
+     */
+    public static final String SENDFILE_FILE_END_ATTR =
+        "org.apache.catalina.sendfile.end";
+
+
     /**
      * The request attribute under which we forward a servlet name to
      * an error page.
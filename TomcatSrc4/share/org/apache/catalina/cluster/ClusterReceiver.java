@@ -155,6 +155,16 @@ public interface ClusterReceiver extends Runnable {
      */
     public Object[] getObjects();
 
+    /**
+     * Get an array of objects that has been received by this component,
+     * waiting up to the specified time for one to arrive if there is
+     * none yet.
+     *
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return a value of type 'Object[]', empty if the time has elapsed
+     */
+    public Object[] getObjects(long timeout);
+
     /**
      * Start this component, must be called before it can be used.
      */
@@ -194,6 +194,28 @@ public final class MulticastReceiver
         }
     }
 
+    /**
+     * Receive the objects currently in our stack and clear it afterwards,
+     * waiting up to the specified time for one to arrive if it is empty.
+     *
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return An array with objects
+     */
+    public Object[] getObjects(long timeout) {
+        synchronized (stack) {
+            if (stack.isEmpty()) {
+                try {
+                    stack.wait(timeout);
+                } catch (InterruptedException e) {
+                    ;
+                }
+            }
+            Object[] objs = stack.toArray();
+            stack.removeAllElements();
+            return (objs);
+        }
+    }
+
     /**
      * Start our component
      */
@@ -220,8 +242,10 @@ public final class MulticastReceiver
     /**
      * Check our multicast socket for new data and determine if the
      * data matches us(senderId) and if so push it onto the stack,
+     *
+     * @return <code>false</code> if an error occurred
      */
-    private void receive() {
+    private boolean receive() {
         try {
             byte[] buf = new byte[5000];
             DatagramPacket recv = new DatagramPacket(buf, buf.length);
@@ -233,8 +257,13 @@ public final class MulticastReceiver
             ois = new ObjectInputStream(ips);
             ReplicationWrapper obj = (ReplicationWrapper)ois.readObject();
 
-            if(obj.getSenderId().equals(this.senderId))
-                stack.add(obj);
+            if(obj.getSenderId().equals(this.senderId)) {
+                synchronized (stack) {
+                    stack.add(obj);
+                    stack.notifyAll();
+                }
+            }
+            return (true);
         } catch (IOException e) {
             log("An error occurred when trying to replicate: "+
                 e.toString());
@@ -242,18 +271,20 @@ public final class MulticastReceiver
             log("An error occurred when trying to replicate: "+
                 e.toString());
         }
+        return (false);
     }
 
     // ------------------------------------------------------ Background Thread
 
     /**
-     * The background thread.
+     * The background thread. <code>receive()</code> blocks until a packet
+     * arrives, so we only sleep after an error.
      */
     public void run() {
         // Loop until the termination semaphore is set
         while (!threadDone) {
-            receive();
-            threadSleep();
+            if (!receive())
+                threadSleep();
         }
     }
 
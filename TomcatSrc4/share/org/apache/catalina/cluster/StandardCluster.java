@@ -67,7 +67,11 @@ import java.beans.PropertyChangeSupport;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
 import java.util.Vector;
 import org.apache.catalina.Cluster;
 import org.apache.catalina.Container;
@@ -82,6 +86,9 @@ import org.apache.catalina.util.StringManager;
 /**
  * A <b>Cluster</b> implementation. Responsible for setting up
  * a cluster and provides callers with a valid multicast receiver/sender.
+ * When a <code>tcpListenPort</code> is configured the members listed in
+ * <code>tcpMembers</code> are reached over persistent TCP connections
+ * instead, see <code>TcpSender</code> and <code>TcpReceiver</code>.
  *
  * @author Bip Thelin
  * @version $Revision: 1.6 $, $Date: 2002/06/09 02:19:42 $
@@ -167,6 +174,49 @@ public final class StandardCluster
      */
     private MulticastSocket multicastSocket = null;
 
+    /**
+     * The address to accept TCP connections on, or <code>null</code> for
+     * all addresses.
+     */
+    private InetAddress tcpListenAddress = null;
+
+    /**
+     * The port to accept TCP connections on, or zero to use multicast.
+     */
+    private int tcpListenPort = 0;
+
+    /**
+     * The largest frame, in bytes, accepted from a TCP connection.
+     */
+    private int maxFrameSize = 16 * 1024 * 1024;
+
+    /**
+     * Comma separated <code>host:port</code> list of the other members
+     * of this cluster, when using TCP.
+     */
+    private String tcpMembers = null;
+
+    /**
+     * The acknowledgement mode for TCP, <code>sync</code> or
+     * <code>async</code>.
+     */
+    private String ackMode = "async";
+
+    /**
+     * Milliseconds to wait for a TCP connection or acknowledgement.
+     */
+    private int ackTimeout = 15000;
+
+    /**
+     * Our TCP listener, when using TCP.
+     */
+    private TcpListener tcpListener = null;
+
+    /**
+     * Our connections to the other members, when using TCP.
+     */
+    private TcpMember members[] = new TcpMember[0];
+
     /**
      * The lifecycle event support for this component.
      */
@@ -349,6 +399,152 @@ public final class StandardCluster
         return(this.checkInterval);
     }
 
+    /**
+     * Set the address to accept TCP connections on.
+     *
+     * @param tcpListenAddress The address to use
+     */
+    public void setTcpListenAddress(String tcpListenAddress) {
+        try {
+            InetAddress oldTcpListenAddress = this.tcpListenAddress;
+            this.tcpListenAddress = InetAddress.getByName(tcpListenAddress);
+            support.firePropertyChange("tcpListenAddress",
+                                       oldTcpListenAddress,
+                                       this.tcpListenAddress);
+        } catch (UnknownHostException e) {
+            log(sm.getString("standardCluster.invalidAddress",
+                             tcpListenAddress));
+        }
+    }
+
+    /**
+     * Get the address to accept TCP connections on
+     *
+     * @return The address, or <code>null</code> for all addresses
+     */
+    public InetAddress getTcpListenAddress() {
+        return(this.tcpListenAddress);
+    }
+
+    /**
+     * Set the port to accept TCP connections on. Setting a port makes
+     * this cluster use TCP rather than multicast.
+     *
+     * @param tcpListenPort The port to use
+     */
+    public void setTcpListenPort(int tcpListenPort) {
+        int oldTcpListenPort = this.tcpListenPort;
+        this.tcpListenPort = tcpListenPort;
+        support.firePropertyChange("tcpListenPort",
+                                   oldTcpListenPort,
+                                   this.tcpListenPort);
+    }
+
+    /**
+     * Get the port to accept TCP connections on
+     *
+     * @return The port, or zero when using multicast
+     */
+    public int getTcpListenPort() {
+        return(this.tcpListenPort);
+    }
+
+    /**
+     * Set the largest frame accepted from a TCP connection. A connection
+     * announcing a larger frame is closed.
+     *
+     * @param maxFrameSize The size in bytes
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        int oldMaxFrameSize = this.maxFrameSize;
+        this.maxFrameSize = maxFrameSize;
+        support.firePropertyChange("maxFrameSize",
+                                   oldMaxFrameSize,
+                                   this.maxFrameSize);
+    }
+
+    /**
+     * Get the largest frame accepted from a TCP connection
+     *
+     * @return The size in bytes
+     */
+    public int getMaxFrameSize() {
+        return(this.maxFrameSize);
+    }
+
+    /**
+     * Set the other members of this cluster, when using TCP.
+     *
+     * @param tcpMembers Comma separated <code>host:port</code> list
+     */
+    public void setTcpMembers(String tcpMembers) {
+        String oldTcpMembers = this.tcpMembers;
+        this.tcpMembers = tcpMembers;
+        support.firePropertyChange("tcpMembers",
+                                   oldTcpMembers,
+                                   this.tcpMembers);
+    }
+
+    /**
+     * Get the other members of this cluster, when using TCP.
+     *
+     * @return Comma separated <code>host:port</code> list
+     */
+    public String getTcpMembers() {
+        return(this.tcpMembers);
+    }
+
+    /**
+     * Set the acknowledgement mode used with TCP. In <code>sync</code>
+     * mode a send returns once every member has acknowledged the data,
+     * in <code>async</code> mode as soon as it is queued.
+     *
+     * @param ackMode <code>sync</code> or <code>async</code>
+     */
+    public void setAckMode(String ackMode) {
+        if (!"sync".equals(ackMode) && !"async".equals(ackMode))
+            throw new IllegalArgumentException
+                (sm.getString("standardCluster.invalidAckMode", ackMode));
+
+        String oldAckMode = this.ackMode;
+        this.ackMode = ackMode;
+        support.firePropertyChange("ackMode",
+                                   oldAckMode,
+                                   this.ackMode);
+    }
+
+    /**
+     * Get the acknowledgement mode used with TCP
+     *
+     * @return <code>sync</code> or <code>async</code>
+     */
+    public String getAckMode() {
+        return(this.ackMode);
+    }
+
+    /**
+     * Set the milliseconds to wait for a TCP connection or
+     * acknowledgement.
+     *
+     * @param ackTimeout The time to wait
+     */
+    public void setAckTimeout(int ackTimeout) {
+        int oldAckTimeout = this.ackTimeout;
+        this.ackTimeout = ackTimeout;
+        support.firePropertyChange("ackTimeout",
+                                   oldAckTimeout,
+                                   this.ackTimeout);
+    }
+
+    /**
+     * Get the milliseconds to wait for a TCP connection or acknowledgement
+     *
+     * @return The time to wait
+     */
+    public int getAckTimeout() {
+        return(this.ackTimeout);
+    }
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -361,7 +557,8 @@ public final class StandardCluster
      * @return Collection with all members in the Cluster
      */
     public ClusterMemberInfo[] getRemoteClusterMembers() {
-        return((ClusterMemberInfo[])this.clusterMembers.toArray());
+        return((ClusterMemberInfo[])this.clusterMembers.toArray
+               (new ClusterMemberInfo[0]));
     }
 
     /**
@@ -384,10 +581,15 @@ public final class StandardCluster
      */
     public ClusterSender getClusterSender(String senderId) {
         Logger logger = null;
-        MulticastSender send = new MulticastSender(senderId,
-                                                   multicastSocket,
-                                                   multicastAddress,
-                                                   multicastPort);
+        ClusterSessionBase send = null;
+
+        if (tcpListener != null)
+            send = new TcpSender(senderId, members, "sync".equals(ackMode));
+        else
+            send = new MulticastSender(senderId,
+                                       multicastSocket,
+                                       multicastAddress,
+                                       multicastPort);
         if (container != null)
             logger = container.getLogger();
 
@@ -397,7 +599,7 @@ public final class StandardCluster
         if(debug > 1)
             log(sm.getString("standardCluster.createSender", senderId));
 
-        return(send);
+        return((ClusterSender) send);
     }
 
     /**
@@ -410,10 +612,15 @@ public final class StandardCluster
      */
     public ClusterReceiver getClusterReceiver(String senderId) {
         Logger logger = null;
-        MulticastReceiver recv = new MulticastReceiver(senderId,
-                                                       multicastSocket,
-                                                       multicastAddress,
-                                                       multicastPort);
+        ClusterReceiver recv = null;
+
+        if (tcpListener != null)
+            recv = new TcpReceiver(senderId, tcpListener);
+        else
+            recv = new MulticastReceiver(senderId,
+                                         multicastSocket,
+                                         multicastAddress,
+                                         multicastPort);
 
         if (container != null)
             logger = container.getLogger();
@@ -459,10 +666,64 @@ public final class StandardCluster
         Object[] objs = clusterReceiver.getObjects();
 
         for(int i=0; i < objs.length;i++) {
-            clusterMembers.add((ClusterMemberInfo)objs[i]);
+            try {
+                byte[] b = ((ReplicationWrapper)objs[i]).getDataStream();
+                ObjectInputStream ois =
+                    new ObjectInputStream(new ByteArrayInputStream(b));
+                clusterMembers.add((ClusterMemberInfo)ois.readObject());
+            } catch (Exception e) {
+                log(sm.getString("standardCluster.receiveException",
+                                 e.toString()));
+            }
         }
     }
 
+    /**
+     * Start listening for TCP connections and create our connections
+     * to the other members.
+     *
+     * @exception IOException if we cannot listen on our port
+     */
+    private void startTcp() throws IOException {
+        ArrayList list = new ArrayList();
+        StringTokenizer st = new StringTokenizer(tcpMembers == null ? ""
+                                                 : tcpMembers, ", ");
+        while (st.hasMoreTokens()) {
+            String member = st.nextToken();
+            int colon = member.lastIndexOf(':');
+            try {
+                list.add(new TcpMember(this, member.substring(0, colon),
+                                       Integer.parseInt
+                                       (member.substring(colon + 1)),
+                                       ackTimeout));
+            } catch (RuntimeException e) {
+                log(sm.getString("standardCluster.invalidMember", member));
+            }
+        }
+        members = (TcpMember[]) list.toArray(new TcpMember[list.size()]);
+
+        tcpListener = new TcpListener(this, tcpListenAddress, tcpListenPort,
+                                      maxFrameSize);
+        tcpListener.start();
+        for (int i = 0; i < members.length; i++)
+            members[i].start();
+
+        if (debug > 1)
+            log(sm.getString("standardCluster.tcpListen",
+                             new Integer(tcpListenPort)));
+    }
+
+    /**
+     * Close our TCP connections and stop listening.
+     */
+    private void stopTcp() {
+        for (int i = 0; i < members.length; i++)
+            members[i].stop();
+        members = new TcpMember[0];
+        tcpListener.stop();
+        tcpListener = null;
+    }
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -510,10 +771,15 @@ public final class StandardCluster
             throw new LifecycleException(sm.getString("standardCluster.alreadyStarted"));
 
         try {
-            multicastSocket = new MulticastSocket(multicastPort);
+            if (tcpListenPort > 0)
+                startTcp();
+            else
+                multicastSocket = new MulticastSocket(multicastPort);
 
-            if(multicastSocket != null && multicastAddress != null) {
-                multicastSocket.joinGroup(multicastAddress);
+            if (tcpListener != null ||
+                (multicastSocket != null && multicastAddress != null)) {
+                if (multicastSocket != null)
+                    multicastSocket.joinGroup(multicastAddress);
 
                 clusterSender = getClusterSender(getName());
                 clusterReceiver = getClusterReceiver(getName());
@@ -525,7 +791,7 @@ public final class StandardCluster
 
                 clusterSender.send(localClusterMember);
 
-                if (debug > 1)
+                if (debug > 1 && multicastSocket != null)
                     log(sm.getString("standardCluster.joinGroup",
                                      multicastAddress));
             } else {
@@ -555,15 +821,19 @@ public final class StandardCluster
         if (!started)
             log(sm.getString("standardCluster.notStarted"));
 
+        if (tcpListener != null)
+            stopTcp();
+
         try {
-            multicastSocket.leaveGroup(multicastAddress);
+            if (multicastSocket != null)
+                multicastSocket.leaveGroup(multicastAddress);
             multicastSocket = null;
         } catch (IOException e) {
             log(sm.getString("standardCluster.leaveException",
                              multicastAddress));
         }
 
-        if (debug > 1)
+        if (debug > 1 && multicastAddress != null)
             log(sm.getString("standardCluster.leaveGroup",
                              multicastAddress));
 
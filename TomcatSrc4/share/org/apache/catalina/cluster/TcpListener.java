@@ -0,0 +1,355 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+package org.apache.catalina.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.apache.catalina.util.StringManager;
+
+/**
+ * Accepts the TCP connections opened by the other members of a
+ * <code>StandardCluster</code> and reads the frames written by their
+ * <code>TcpMember</code>s, one thread per connection. Each frame is handed
+ * to the <code>TcpReceiver</code> registered for its senderId; frames
+ * nobody is registered for are dropped.
+ *
+ * @version $Revision$, $Date$
+ */
+
+final class TcpListener implements Runnable {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The Cluster we are listening for, used for logging.
+     */
+    private StandardCluster cluster = null;
+
+    /**
+     * The address to listen on, or <code>null</code> for all addresses.
+     */
+    private InetAddress address = null;
+
+    /**
+     * The port to listen on.
+     */
+    private int port;
+
+    /**
+     * The largest frame, in bytes, accepted from a connection.
+     */
+    private int maxFrameSize;
+
+    /**
+     * The server socket we accept connections on.
+     */
+    private ServerSocket serverSocket = null;
+
+    /**
+     * The sockets of the connections currently open.
+     */
+    private ArrayList sockets = new ArrayList();
+
+    /**
+     * The registered receivers, keyed by senderId.
+     */
+    private HashMap receivers = new HashMap();
+
+    /**
+     * The background thread.
+     */
+    private Thread thread = null;
+
+    /**
+     * The background thread completion semaphore.
+     */
+    private volatile boolean threadDone = false;
+
+    /**
+     * The string manager for this package.
+     */
+    private StringManager sm = StringManager.getManager(Constants.Package);
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new listener.
+     *
+     * @param cluster The Cluster we are listening for
+     * @param address The address to listen on, or <code>null</code>
+     * @param port The port to listen on
+     * @param maxFrameSize The largest frame accepted, in bytes
+     */
+    TcpListener(StandardCluster cluster, InetAddress address, int port,
+                int maxFrameSize) {
+        this.cluster = cluster;
+        this.address = address;
+        this.port = port;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Register the receiver for frames with its senderId.
+     *
+     * @param receiver The receiver to register
+     */
+    void addReceiver(TcpReceiver receiver) {
+        synchronized (receivers) {
+            receivers.put(receiver.getSenderId(), receiver);
+        }
+    }
+
+    /**
+     * Unregister the specified receiver.
+     *
+     * @param receiver The receiver to unregister
+     */
+    void removeReceiver(TcpReceiver receiver) {
+        synchronized (receivers) {
+            if (receivers.get(receiver.getSenderId()) == receiver)
+                receivers.remove(receiver.getSenderId());
+        }
+    }
+
+    /**
+     * Open our server socket and start accepting connections.
+     *
+     * @exception IOException if the server socket cannot be opened
+     */
+    void start() throws IOException {
+        if (thread != null)
+            return;
+
+        serverSocket = new ServerSocket(port, 50, address);
+        threadDone = false;
+        thread = new Thread(this, "TcpListener[" + port + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Close our server socket and every connection accepted on it.
+     */
+    void stop() {
+        if (thread == null)
+            return;
+
+        threadDone = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            ;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            ;
+        }
+        thread = null;
+        serverSocket = null;
+
+        synchronized (sockets) {
+            for (int i = 0; i < sockets.size(); i++) {
+                try {
+                    ((Socket) sockets.get(i)).close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+            sockets.clear();
+        }
+    }
+
+    // ------------------------------------------------------ Background Thread
+
+    /**
+     * The background thread, accepting connections.
+     */
+    public void run() {
+        while (!threadDone) {
+            Socket socket = null;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!threadDone)
+                    cluster.log(sm.getString("tcpListener.acceptException",
+                                             e.toString()));
+                continue;
+            }
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            if (cluster.getDebug() > 0)
+                cluster.log(sm.getString("tcpListener.accept",
+                                         socket.getRemoteSocketAddress()));
+            Thread reader = new Thread(new Connection(socket),
+                                       "TcpListener[" + port + "]["
+                                       + socket.getRemoteSocketAddress()
+                                       + "]");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    /**
+     * Read frames from the specified connection until it is closed.
+     */
+    private void read(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream(socket.getInputStream(), 8192));
+        OutputStream out =
+            new BufferedOutputStream(socket.getOutputStream(), 256);
+        int acks = 0;
+
+        while (true) {
+            int length = 0;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            int flags = in.readUnsignedByte();
+            String senderId = in.readUTF();
+            if (length < 0)
+                throw new IOException
+                    (sm.getString("tcpListener.badFrame",
+                                  senderId, new Integer(length)));
+            if (length > maxFrameSize)
+                throw new IOException
+                    (sm.getString("tcpListener.frameTooLarge",
+                                  senderId, new Integer(length),
+                                  new Integer(maxFrameSize)));
+            byte data[] = new byte[length];
+            in.readFully(data);
+
+            TcpReceiver receiver = null;
+            synchronized (receivers) {
+                receiver = (TcpReceiver) receivers.get(senderId);
+            }
+            if (receiver != null)
+                receiver.receive(new ReplicationWrapper(data, senderId));
+            else if (cluster.getDebug() > 1)
+                cluster.log(sm.getString("tcpListener.noReceiver",
+                                         senderId));
+
+            // Acknowledge once the frames already buffered are queued too
+            if ((flags & TcpMember.ACK) != 0)
+                acks++;
+            if ((acks > 0) && (in.available() == 0)) {
+                for (; acks > 0; acks--)
+                    out.write(TcpMember.ACK_BYTE);
+                out.flush();
+            }
+        }
+    }
+
+    // -------------------------------------------------------- Private Classes
+
+    /**
+     * Reads the frames of one accepted connection.
+     */
+    private class Connection implements Runnable {
+
+        private Socket socket = null;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                read(socket);
+            } catch (IOException e) {
+                if (!threadDone)
+                    cluster.log(sm.getString("tcpListener.readException",
+                                             socket.getRemoteSocketAddress(),
+                                             e.toString()));
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    ;
+                }
+                synchronized (sockets) {
+                    sockets.remove(socket);
+                }
+            }
+        }
+
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+package org.apache.catalina.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedList;
+import org.apache.catalina.util.StringManager;
+
+/**
+ * A persistent TCP connection to one remote member of a
+ * <code>StandardCluster</code>. Frames handed to <code>send()</code> are
+ * queued and written by a background thread, which drains everything
+ * queued so far before flushing, so several frames travel in one write
+ * and none waits for the acknowledgement of the one before it.
+ * <p>
+ * Every frame is written as
+ * <code>[int payloadLength][byte flags][UTF senderId][payload]</code>.
+ * When a frame carries the <code>ACK</code> flag the receiving member
+ * answers with a single byte once it has queued the data; acknowledgements
+ * come back in the order the frames were sent.
+ *
+ * @version $Revision$, $Date$
+ */
+
+final class TcpMember implements Runnable {
+
+    // ----------------------------------------------------- Manifest Constants
+
+    /**
+     * Frame flag asking the receiving member to acknowledge the frame.
+     */
+    static final int ACK = 1;
+
+    /**
+     * The byte sent back by the receiving member for each acknowledged
+     * frame.
+     */
+    static final int ACK_BYTE = 0x06;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The Cluster this member belongs to, used for logging.
+     */
+    private StandardCluster cluster = null;
+
+    /**
+     * The host name of the remote member.
+     */
+    private String host = null;
+
+    /**
+     * The port the remote member listens on.
+     */
+    private int port;
+
+    /**
+     * Frames waiting to be written.
+     */
+    private LinkedList queue = new LinkedList();
+
+    /**
+     * The maximum number of frames queued before senders are blocked.
+     */
+    private int maxQueueSize = 1000;
+
+    /**
+     * Milliseconds to wait for a connection or an acknowledgement.
+     */
+    private int timeout = 15000;
+
+    /**
+     * Milliseconds to wait before reconnecting after a failure.
+     */
+    private int reconnectInterval = 5000;
+
+    /**
+     * When the last connection attempt failed.
+     */
+    private long lastFailure = 0L;
+
+    /**
+     * The connection to the remote member, if open.
+     */
+    private volatile Socket socket = null;
+
+    /**
+     * The stream frames are written to.
+     */
+    private DataOutputStream out = null;
+
+    /**
+     * The stream acknowledgements are read from.
+     */
+    private DataInputStream in = null;
+
+    /**
+     * The background thread.
+     */
+    private Thread thread = null;
+
+    /**
+     * The background thread completion semaphore.
+     */
+    private boolean threadDone = false;
+
+    /**
+     * The string manager for this package.
+     */
+    private StringManager sm = StringManager.getManager(Constants.Package);
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new connection to the specified member. Nothing is opened
+     * until the first frame is sent.
+     *
+     * @param cluster The Cluster this member belongs to
+     * @param host The host name of the remote member
+     * @param port The port the remote member listens on
+     * @param timeout Milliseconds to wait for a connection or an
+     *  acknowledgement
+     */
+    TcpMember(StandardCluster cluster, String host, int port, int timeout) {
+        this.cluster = cluster;
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Return the <code>host:port</code> of the remote member.
+     */
+    public String getName() {
+        return(host + ":" + port);
+    }
+
+    /**
+     * Queue a frame for this member, blocking while the queue is full.
+     *
+     * @param id The UTF encoded senderId of the frame
+     * @param data The payload
+     * @param ack Should the remote member acknowledge the frame?
+     * @return The queued frame, which <code>await()</code> can wait on
+     */
+    Frame send(byte[] id, byte[] data, boolean ack) {
+        Frame frame = new Frame(id, data, ack);
+        synchronized (queue) {
+            while (!threadDone && queue.size() >= maxQueueSize) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    ;
+                }
+            }
+            if (threadDone) {
+                frame.failed = true;
+                frame.done = true;
+                return(frame);
+            }
+            queue.addLast(frame);
+            queue.notifyAll();
+        }
+        return(frame);
+    }
+
+    /**
+     * Wait until the specified frame has been acknowledged, has failed
+     * or until our timeout has elapsed. Failures have already been logged
+     * when they were detected, timeouts are left to the caller.
+     *
+     * @param frame The frame to wait for
+     * @return <code>false</code> if the timeout elapsed
+     */
+    boolean await(Frame frame) {
+        long until = System.currentTimeMillis() + timeout;
+        synchronized (frame) {
+            while (!frame.done) {
+                long wait = until - System.currentTimeMillis();
+                if (wait <= 0)
+                    return(false);
+                try {
+                    frame.wait(wait);
+                } catch (InterruptedException e) {
+                    ;
+                }
+            }
+            return(true);
+        }
+    }
+
+    /**
+     * Start the background writer thread.
+     */
+    void start() {
+        if (thread != null)
+            return;
+
+        threadDone = false;
+        thread = new Thread(this, "TcpMember[" + getName() + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the background writer thread and close our connection. Frames
+     * still queued are failed.
+     */
+    void stop() {
+        if (thread == null)
+            return;
+
+        synchronized (queue) {
+            threadDone = true;
+            queue.notifyAll();
+        }
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                ;
+            }
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            ;
+        }
+        thread = null;
+
+        close();
+        synchronized (queue) {
+            complete(queue.toArray(), queue.size(), true);
+            queue.clear();
+        }
+    }
+
+    // ------------------------------------------------------ Background Thread
+
+    /**
+     * The background thread. Drains the queue, writes every frame and
+     * flushes once, then collects the acknowledgements asked for.
+     */
+    public void run() {
+        Object frames[] = new Object[0];
+
+        while (true) {
+            int n = 0;
+            synchronized (queue) {
+                while (!threadDone && queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                }
+                if (threadDone)
+                    return;
+                n = queue.size();
+                if (frames.length < n)
+                    frames = new Object[n];
+                for (int i = 0; i < n; i++)
+                    frames[i] = queue.removeFirst();
+                queue.notifyAll();
+            }
+
+            boolean failed = true;
+            try {
+                if (connect()) {
+                    write(frames, n);
+                    failed = false;
+                }
+            } catch (IOException e) {
+                if (!threadDone)
+                    cluster.log(sm.getString("tcpMember.sendException",
+                                             getName(), e.toString()));
+                close();
+                lastFailure = System.currentTimeMillis();
+            }
+            complete(frames, n, failed);
+            for (int i = 0; i < n; i++)
+                frames[i] = null;
+        }
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    /**
+     * Open our connection if it is not open already. Connection attempts
+     * are not repeated more often than every <code>reconnectInterval</code>
+     * milliseconds, frames sent in between are dropped.
+     *
+     * @return <code>true</code> if the connection is open
+     */
+    private boolean connect() {
+        if (socket != null)
+            return(true);
+        if (System.currentTimeMillis() - lastFailure < reconnectInterval)
+            return(false);
+
+        Socket s = new Socket();
+        try {
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+            s.connect(new InetSocketAddress(host, port), timeout);
+            s.setSoTimeout(timeout);
+            out = new DataOutputStream
+                (new BufferedOutputStream(s.getOutputStream(), 8192));
+            in = new DataInputStream
+                (new BufferedInputStream(s.getInputStream(), 256));
+            socket = s;
+            if (cluster.getDebug() > 0)
+                cluster.log(sm.getString("tcpMember.connect", getName()));
+            return(true);
+        } catch (IOException e) {
+            cluster.log(sm.getString("tcpMember.connectException",
+                                     getName(), e.toString()));
+            try {
+                s.close();
+            } catch (IOException f) {
+                ;
+            }
+            lastFailure = System.currentTimeMillis();
+            return(false);
+        }
+    }
+
+    /**
+     * Write the specified frames, flush and read the acknowledgements
+     * they ask for.
+     */
+    private void write(Object frames[], int n) throws IOException {
+        DataOutputStream out = this.out;
+        DataInputStream in = this.in;
+        int acks = 0;
+        for (int i = 0; i < n; i++) {
+            Frame frame = (Frame) frames[i];
+            out.writeInt(frame.data.length);
+            out.writeByte(frame.ack ? ACK : 0);
+            out.write(frame.id);
+            out.write(frame.data);
+            if (frame.ack)
+                acks++;
+        }
+        out.flush();
+
+        for (int i = 0; i < acks; i++) {
+            if (in.read() != ACK_BYTE)
+                throw new IOException
+                    (sm.getString("tcpMember.badAck", getName()));
+        }
+    }
+
+    /**
+     * Mark the specified frames as done and wake up anyone waiting for
+     * them.
+     */
+    private void complete(Object frames[], int n, boolean failed) {
+        for (int i = 0; i < n; i++) {
+            Frame frame = (Frame) frames[i];
+            synchronized (frame) {
+                frame.failed = failed;
+                frame.done = true;
+                frame.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Close our connection, if it is open.
+     */
+    private void close() {
+        Socket s = socket;
+        socket = null;
+        out = null;
+        in = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                ;
+            }
+        }
+    }
+
+    // -------------------------------------------------------- Private Classes
+
+    /**
+     * A frame queued for this member.
+     */
+    static final class Frame {
+
+        Frame(byte[] id, byte[] data, boolean ack) {
+            this.id = id;
+            this.data = data;
+            this.ack = ack;
+        }
+
+        final byte[] id;
+
+        final byte[] data;
+
+        final boolean ack;
+
+        boolean done = false;
+
+        boolean failed = false;
+
+    }
+}
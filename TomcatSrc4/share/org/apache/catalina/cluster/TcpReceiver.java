@@ -0,0 +1,228 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+package org.apache.catalina.cluster;
+
+import java.util.ArrayList;
+
+
+/**
+ * A <code>ClusterReceiver</code> fed by the <code>TcpListener</code> of
+ * a <code>StandardCluster</code>. Frames are pushed onto our stack by the
+ * listener's connection threads as they arrive, so there is nothing to
+ * poll and no limit on the size of a single message.
+ *
+ * @version $Revision$, $Date$
+ */
+
+public final class TcpReceiver
+    extends ClusterSessionBase implements ClusterReceiver {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The name of our component, used for logging.
+     */
+    private String receiverName = "TcpReceiver";
+
+    /**
+     * The listener feeding us.
+     */
+    private TcpListener listener = null;
+
+    /**
+     * The stack that keeps incoming requests
+     */
+    private ArrayList stack = new ArrayList();
+
+    /**
+     * Has this component been started?
+     */
+    private boolean started = false;
+
+    /**
+     * The interval for the background thread to sleep, unused.
+     */
+    private int checkInterval = 5;
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Create a new TcpReceiver.
+     *
+     * @param senderId The unique senderId
+     * @param listener The listener feeding us
+     */
+    TcpReceiver(String senderId, TcpListener listener) {
+        setSenderId(senderId);
+        this.listener = listener;
+    }
+
+    /**
+     * Return a <code>String</code> containing the name of this
+     * implementation, used for logging
+     *
+     * @return The name of the implementation
+     */
+    public String getName() {
+        return(this.receiverName);
+    }
+
+    /**
+     * Set the time in seconds for this component to
+     * Sleep before it checks for new received data in the Cluster
+     *
+     * @param checkInterval The time to sleep
+     */
+    public void setCheckInterval(int checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Get the time in seconds this Cluster sleeps
+     *
+     * @return The time in seconds this Cluster sleeps
+     */
+    public int getCheckInterval() {
+        return(this.checkInterval);
+    }
+
+    /**
+     * Receive the objects currently in our stack and clear
+     * if afterwards.
+     *
+     * @return An array with objects
+     */
+    public Object[] getObjects() {
+        synchronized (stack) {
+            Object[] objs = stack.toArray();
+            stack.clear();
+            return (objs);
+        }
+    }
+
+    /**
+     * Receive the objects currently in our stack and clear it afterwards,
+     * waiting up to the specified time for one to arrive if it is empty.
+     *
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return An array with objects
+     */
+    public Object[] getObjects(long timeout) {
+        synchronized (stack) {
+            if (stack.isEmpty()) {
+                try {
+                    stack.wait(timeout);
+                } catch (InterruptedException e) {
+                    ;
+                }
+            }
+            Object[] objs = stack.toArray();
+            stack.clear();
+            return (objs);
+        }
+    }
+
+    /**
+     * Start our component
+     */
+    public void start() {
+        if (started)
+            return;
+
+        started = true;
+        listener.addReceiver(this);
+    }
+
+    /**
+     * Our data is pushed by the listener, there is nothing to poll.
+     */
+    public void run() {
+        ;
+    }
+
+    /**
+     * Stop our component
+     */
+    public void stop() {
+        if (!started)
+            return;
+
+        started = false;
+        listener.removeReceiver(this);
+    }
+
+    // -------------------------------------------------------- Package Methods
+
+    /**
+     * Push data received for our senderId onto the stack.
+     *
+     * @param wrapper The data received
+     */
+    void receive(ReplicationWrapper wrapper) {
+        synchronized (stack) {
+            stack.add(wrapper);
+            stack.notifyAll();
+        }
+    }
+}
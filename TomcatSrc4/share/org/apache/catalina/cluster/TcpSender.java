@@ -0,0 +1,201 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+package org.apache.catalina.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+
+/**
+ * A <code>ClusterSender</code> writing to the persistent
+ * <code>TcpMember</code> connections of a <code>StandardCluster</code>.
+ * The data is framed with its length and our senderId rather than
+ * serialized inside a <code>ReplicationWrapper</code>, and there is no
+ * limit on its size.
+ * <p>
+ * In <code>async</code> mode <code>send()</code> returns as soon as the
+ * data is queued for every member. In <code>sync</code> mode it waits
+ * until every member has acknowledged it, or until the acknowledgement
+ * timeout has elapsed.
+ *
+ * @version $Revision$, $Date$
+ */
+
+public class TcpSender
+    extends ClusterSessionBase implements ClusterSender {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The name of our component, used for logging.
+     */
+    private String senderName = "TcpSender";
+
+    /**
+     * The members we send to.
+     */
+    private TcpMember members[] = null;
+
+    /**
+     * Do we wait for the members to acknowledge our data?
+     */
+    private boolean sync = false;
+
+    /**
+     * Our senderId, UTF encoded.
+     */
+    private byte id[] = null;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Create a new TcpSender, only receivers with our
+     * senderId will receive our data.
+     *
+     * @param senderId The senderId
+     * @param members The members to send to
+     * @param sync Should we wait for the members to acknowledge our data?
+     */
+    TcpSender(String senderId, TcpMember members[], boolean sync) {
+        this.members = members;
+        this.sync = sync;
+        setSenderId(senderId);
+    }
+
+    /**
+     * Set the senderId, which is sent with all of our data.
+     *
+     * @param senderId The senderId to use
+     */
+    public void setSenderId(String senderId) {
+        super.setSenderId(senderId);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeUTF(senderId);
+            dos.flush();
+            id = bos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.toString());
+        }
+    }
+
+    /**
+     * Return a <code>String</code> containing the name of this
+     * implementation, used for logging
+     *
+     * @return The name of the implementation
+     */
+    public String getName() {
+        return(this.senderName);
+    }
+
+    /**
+     * Send an object to every member.
+     *
+     * @param o The object to be sent.
+     */
+    public void send(Object o) {
+        ObjectOutputStream oos = null;
+        ByteArrayOutputStream bos = null;
+
+        try {
+            bos = new ByteArrayOutputStream();
+            oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+
+            oos.writeObject(o);
+            oos.flush();
+
+            send(bos.toByteArray());
+        } catch (IOException e) {
+            log(sm.getString("tcpSender.sendException", e.toString()));
+        }
+    }
+
+    /**
+     * Send data to every member. The same buffer is queued for all of
+     * them, so it must not be modified afterwards.
+     *
+     * @param b data to be sent
+     */
+    public void send(byte[] b) {
+        TcpMember.Frame frames[] = new TcpMember.Frame[members.length];
+        for (int i = 0; i < members.length; i++)
+            frames[i] = members[i].send(id, b, sync);
+
+        if (!sync)
+            return;
+
+        for (int i = 0; i < members.length; i++) {
+            if (!members[i].await(frames[i]))
+                log(sm.getString("tcpSender.notAcknowledged",
+                                 members[i].getName()));
+        }
+    }
+}
@@ -66,7 +66,6 @@ package org.apache.catalina.connector;
 
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
@@ -167,6 +166,21 @@ public class HttpResponseBase
     protected HashMap headers = new HashMap();
 
 
+    /**
+     * The serialized HTTP headers of this response, waiting to be written
+     * together with the first flushed content bytes.  The buffer is kept
+     * when this response is recycled.
+     */
+    protected byte[] headerBuffer = new byte[2048];
+
+
+    /**
+     * The number of bytes in <code>headerBuffer</code> which have not been
+     * written yet.
+     */
+    protected int headerCount = 0;
+
+
     /**
      * Descriptive information about this HttpResponse implementation.
      */
@@ -355,6 +369,7 @@ public class HttpResponseBase
         super.recycle();
         cookies.clear();
         headers.clear();
+        headerCount = 0;
         message = getStatusMessage(HttpServletResponse.SC_OK);
         status = HttpServletResponse.SC_OK;
 
@@ -578,8 +593,37 @@ public class HttpResponseBase
         return(request.getRequest().getProtocol());
     }
 
+    /**
+     * Write the pending headers, followed by the specified content bytes,
+     * to the output stream.  When both fit in the header buffer they are
+     * sent with a single write.  Subclasses with access to the underlying
+     * channel may override this method to use a gathering write instead.
+     *
+     * @param b The content bytes
+     * @param off Start offset of the content
+     * @param len Number of content bytes
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void writeHeaders(byte b[], int off, int len)
+        throws IOException {
+
+        if ((headerCount + len) <= headerBuffer.length) {
+            System.arraycopy(b, off, headerBuffer, headerCount, len);
+            output.write(headerBuffer, 0, headerCount + len);
+        } else {
+            output.write(headerBuffer, 0, headerCount);
+            if (len > 0)
+                output.write(b, off, len);
+        }
+
+    }
+
+
     /**
      * Send the HTTP response headers, if this has not already occurred.
+     * The headers are only serialized here; they reach the output stream
+     * on the next <code>flushBuffer()</code>.
      */
     protected void sendHeaders() throws IOException {
 
@@ -592,36 +636,34 @@ public class HttpResponseBase
             return;
         }
 
-        // Prepare a suitable output writer
-        OutputStreamWriter osr = null;
-        try {
-            osr = new OutputStreamWriter(getStream(), getCharacterEncoding());
-        } catch (UnsupportedEncodingException e) {
-            osr = new OutputStreamWriter(getStream());
-        }
-        final PrintWriter outputWriter = new PrintWriter(osr);
+        // Serialize the headers straight into the header buffer; they are
+        // written out with the first flushed content (see doFlushBuffer())
+        headerCount = 0;
 
         // Send the "Status:" header
-        outputWriter.print(this.getProtocol());
-        outputWriter.print(" ");
-        outputWriter.print(status);
+        appendHeader(this.getProtocol());
+        appendHeader(" ");
+        appendHeader(status);
         if (message != null) {
-            outputWriter.print(" ");
-            outputWriter.print(message);
+            appendHeader(" ");
+            appendHeader(message);
         }
-        outputWriter.print("\r\n");
+        appendHeader("\r\n");
         // System.out.println("sendHeaders: " +
         //                    request.getRequest().getProtocol() +
         //                    " " + status + " " + message);
 
         // Send the content-length and content-type headers (if any)
         if (getContentType() != null) {
-            outputWriter.print("Content-Type: " + getContentType() + "\r\n");
+            appendHeader("Content-Type: ");
+            appendHeader(getContentType());
+            appendHeader("\r\n");
             // System.out.println(" Content-Type: " + getContentType());
         }
         if (getContentLength() >= 0) {
-            outputWriter.print("Content-Length: " + getContentLength() +
-                               "\r\n");
+            appendHeader("Content-Length: ");
+            appendHeader(getContentLength());
+            appendHeader("\r\n");
             // System.out.println(" Content-Length: " + getContentLength());
         }
 
@@ -634,10 +676,10 @@ public class HttpResponseBase
             Iterator items = values.iterator();
             while (items.hasNext()) {
                 String value = (String) items.next();
-                    outputWriter.print(name);
-                    outputWriter.print(": ");
-                    outputWriter.print(value);
-                    outputWriter.print("\r\n");
+                    appendHeader(name);
+                    appendHeader(": ");
+                    appendHeader(value);
+                    appendHeader("\r\n");
                     // System.out.println(" " + name + ": " + value);
                 }
             }
@@ -669,10 +711,10 @@ public class HttpResponseBase
             Iterator items = cookies.iterator();
             while (items.hasNext()) {
                 Cookie cookie = (Cookie) items.next();
-                outputWriter.print(CookieTools.getCookieHeaderName(cookie));
-                outputWriter.print(": ");
-                outputWriter.print(CookieTools.getCookieHeaderValue(cookie));
-                outputWriter.print("\r\n");
+                appendHeader(CookieTools.getCookieHeaderName(cookie));
+                appendHeader(": ");
+                appendHeader(CookieTools.getCookieHeaderValue(cookie));
+                appendHeader("\r\n");
                 //System.out.println(" " +
                 //                   CookieTools.getCookieHeaderName(cookie) +
                 //                   ": " +
@@ -681,8 +723,7 @@ public class HttpResponseBase
         }
 
         // Send a terminating blank line to mark the end of the headers
-        outputWriter.print("\r\n");
-        outputWriter.flush();
+        appendHeader("\r\n");
         // System.out.println("----------");
 
         // The response is now committed
@@ -691,6 +732,90 @@ public class HttpResponseBase
     }
 
 
+    /**
+     * Append the specified string to the header buffer.  Plain ASCII is
+     * copied as is, anything else is encoded with the character encoding of
+     * this response.
+     *
+     * @param str The string to append
+     */
+    private void appendHeader(String str) {
+
+        if (str == null)
+            str = "null";
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            if (str.charAt(i) >= 0x80) {
+                byte[] bytes = null;
+                try {
+                    bytes = str.getBytes(getCharacterEncoding());
+                } catch (UnsupportedEncodingException e) {
+                    bytes = str.getBytes();
+                }
+                appendHeader(bytes, 0, bytes.length);
+                return;
+            }
+        }
+        ensureHeaderCapacity(len);
+        for (int i = 0; i < len; i++)
+            headerBuffer[headerCount++] = (byte) str.charAt(i);
+
+    }
+
+
+    /**
+     * Append the decimal representation of the specified number to the
+     * header buffer.
+     *
+     * @param n The number to append
+     */
+    private void appendHeader(int n) {
+
+        if (n < 0) {
+            appendHeader(String.valueOf(n));
+            return;
+        }
+        int digits = 1;
+        for (int i = n; i >= 10; i /= 10)
+            digits++;
+        ensureHeaderCapacity(digits);
+        for (int i = headerCount + digits - 1; i >= headerCount; i--) {
+            headerBuffer[i] = (byte) ('0' + (n % 10));
+            n /= 10;
+        }
+        headerCount += digits;
+
+    }
+
+
+    /**
+     * Append the specified bytes to the header buffer.
+     */
+    private void appendHeader(byte b[], int off, int len) {
+
+        ensureHeaderCapacity(len);
+        System.arraycopy(b, off, headerBuffer, headerCount, len);
+        headerCount += len;
+
+    }
+
+
+    /**
+     * Grow the header buffer, if needed, so that it can hold
+     * <code>len</code> more bytes.
+     */
+    private void ensureHeaderCapacity(int len) {
+
+        if ((headerCount + len) <= headerBuffer.length)
+            return;
+        byte[] newBuffer =
+            new byte[Math.max(headerBuffer.length * 2, headerCount + len)];
+        System.arraycopy(headerBuffer, 0, newBuffer, 0, headerCount);
+        headerBuffer = newBuffer;
+
+    }
+
+
     /**
      * Convert (if necessary) and return the absolute URL that represents the
      * resource referenced by this possibly relative URL.  If this URL is
@@ -792,6 +917,16 @@ public class HttpResponseBase
         if (!isCommitted())
             sendHeaders();
 
+        // Send the pending headers along with the buffered content
+        if (headerCount > 0) {
+            try {
+                writeHeaders(buffer, 0, bufferCount);
+            } finally {
+                headerCount = 0;
+                bufferCount = 0;
+            }
+        }
+
         super.flushBuffer();
 
     }
@@ -78,4 +78,8 @@ public final class Constants {
     public static final int PROCESSOR_IDLE = 0;
     public static final int PROCESSOR_ACTIVE = 1;
 
+    public static final String REJECT_QUEUE = "queue";
+    public static final String REJECT_ERROR = "error";
+    public static final String REJECT_CLOSE = "close";
+
 }
@@ -93,6 +93,44 @@ final class DefaultHeaders {
         "transfer-encoding".toCharArray();
 
 
+    /**
+     * Identifiers of the request headers the processor acts upon, as
+     * returned by <code>find()</code>.
+     */
+    static final int UNKNOWN = -1;
+    static final int AUTHORIZATION = 0;
+    static final int ACCEPT_LANGUAGE = 1;
+    static final int COOKIE = 2;
+    static final int CONTENT_LENGTH = 3;
+    static final int CONTENT_TYPE = 4;
+    static final int HOST = 5;
+    static final int CONNECTION = 6;
+    static final int EXPECT = 7;
+    static final int TRANSFER_ENCODING = 8;
+
+
+    /**
+     * Names of the known request headers, indexed by identifier.
+     */
+    private static final char[][] NAMES = {
+        AUTHORIZATION_NAME, ACCEPT_LANGUAGE_NAME, COOKIE_NAME,
+        CONTENT_LENGTH_NAME, CONTENT_TYPE_NAME, HOST_NAME, CONNECTION_NAME,
+        EXPECT_NAME, TRANSFER_ENCODING_NAME
+    };
+
+
+    /**
+     * Precomputed hash codes of the known request header names, indexed by
+     * identifier.
+     */
+    private static final int[] HASHES = new int[NAMES.length];
+
+    static {
+        for (int i = 0; i < NAMES.length; i++)
+            HASHES[i] = new String(NAMES[i]).hashCode();
+    }
+
+
     static final HttpHeader CONNECTION_CLOSE =
         new HttpHeader("connection", "close");
     static final HttpHeader EXPECT_CONTINUE =
@@ -113,6 +151,26 @@ final class DefaultHeaders {
     // --------------------------------------------------------- Public Methods
 
 
+    /**
+     * Return the identifier of the specified header if it is one of the
+     * known request headers, or <code>UNKNOWN</code>.  The name hash code is
+     * compared first, so unknown headers are usually rejected without
+     * comparing any character.
+     *
+     * @param header Parsed header, with a lower case name
+     */
+    static int find(HttpHeader header) {
+
+        int hash = header.hashCode();
+        for (int i = 0; i < HASHES.length; i++) {
+            if ((HASHES[i] == hash) && header.equals(NAMES[i]))
+                return (i);
+        }
+        return (UNKNOWN);
+
+    }
+
+
     // --------------------------------------------------------- Object Methods
 
 
@@ -3,16 +3,22 @@ package org.apache.catalina.connector.http;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.AccessControlException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.LinkedList;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.catalina.Connector;
 import org.apache.catalina.Container;
@@ -80,6 +86,42 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
      */
     private int curProcessors = 0;
 
+    /**
+     * 下一个processor的编号，回收空闲processor后编号不会重复
+     */
+    private int nextProcessorId = 0;
+
+    /**
+     * 等待processor的socket队列，与对象池共用processors锁
+     * 入队：没有空闲processor且未到maxProcessors
+     * 出队：processor处理完成后直接取下一个socket，不再入栈
+     */
+    private LinkedList<Socket> queue = new LinkedList<Socket>();
+
+    /**
+     * 等待队列的最大长度，0表示不排队
+     */
+    private int maxQueueSize = 0;
+
+    /**
+     * 等待队列已满时的拒绝策略：
+     * queue - 阻塞accept线程，直到队列有空位（由操作系统的backlog继续缓冲）
+     * error - 返回503响应后关闭连接
+     * close - 直接关闭连接
+     */
+    private String rejectPolicy = Constants.REJECT_CLOSE;
+
+    /**
+     * 被拒绝的连接数量
+     */
+    private int rejectedCount = 0;
+
+    /**
+     * 空闲processor的最长存活时间（毫秒），超时后回收，直到剩余minProcessors个；
+     * 0表示不回收
+     */
+    private int maxIdleTime = 0;
+
     /**
      * The debugging detail level for this component.
      */
@@ -97,6 +139,13 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
 
     private static final String info = "org.apache.catalina.connector.http.HttpConnector/1.0";
 
+    /**
+     * 拒绝连接时返回的503响应
+     */
+    private static final byte[] SERVICE_UNAVAILABLE = (new String(
+        "HTTP/1.1 503 Service Unavailable\r\n" + "Content-Length: 0\r\n"
+                + "Connection: close\r\n\r\n")).getBytes();
+
     /**
      * 生命周期组件
      */
@@ -194,6 +243,34 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
      */
     private boolean tcpNoDelay = true;
 
+    /**
+     * 是否使用NIO Selector管理新接收的连接和空闲的keep-alive连接，
+     * 只有当连接上有请求数据可读时才分配processor
+     */
+    private boolean usePoller = false;
+
+    /**
+     * keep-alive轮询器，仅在usePoller生效时创建
+     */
+    private HttpPoller poller = null;
+
+    /**
+     * 是否允许servlet通过sendfile请求属性将文件区域交给connector，
+     * 由FileChannel.transferTo直接写入socket（仅在连接具有SocketChannel时生效）
+     */
+    private boolean useSendfile = true;
+
+    /**
+     * 是否为每个连接使用一个虚拟线程（需要JDK 21以上），此时不再启动processor线程，
+     * 也不受maxProcessors限制
+     */
+    private boolean useVirtualThreads = false;
+
+    /**
+     * 虚拟线程工厂，仅在useVirtualThreads生效时创建
+     */
+    private ThreadFactory virtualThreadFactory = null;
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -223,11 +300,113 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
     // -------------------------------------------------------- Package Methods
 
     /**
-     * 将processor重新入栈
+     * 将processor重新入栈；若等待队列中有socket，则不入栈，直接返回该socket
+     * 交由processor继续处理
+     */
+    Socket recycle(HttpProcessor processor) {
+
+        synchronized (processors) {
+            Socket socket = null;
+            if (queue.size() > 0)
+                socket = queue.removeFirst();
+            else
+                processors.push(processor);
+            // 唤醒等待队列空位的accept线程
+            processors.notifyAll();
+            return (socket);
+        }
+
+    }
+
+    /**
+     * 回收空闲超时的processor，只有在栈中（空闲）且数量大于minProcessors时才回收
+     *
+     * @return <code>true</code> if the processor has been removed from the
+     *  pool and should shut down its thread
      */
-    void recycle(HttpProcessor processor) {
+    boolean retire(HttpProcessor processor) {
 
-        processors.push(processor);
+        synchronized (processors) {
+            if (curProcessors <= minProcessors)
+                return (false);
+            if (!processors.remove(processor))
+                return (false);
+            created.removeElement(processor);
+            curProcessors--;
+            return (true);
+        }
+
+    }
+
+    /**
+     * 返回keep-alive轮询器，未启用时为null
+     */
+    HttpPoller getPoller() {
+
+        return (poller);
+
+    }
+
+    /**
+     * 将socket交由processor处理；没有可用的processor时放入等待队列，
+     * 队列已满时按rejectPolicy处理
+     */
+    void processSocket(Socket socket) {
+
+        processSocket(socket, true);
+
+    }
+
+    /**
+     * 将socket交由processor处理；block为false时，rejectPolicy为queue且队列
+     * 已满的情况下不等待，直接返回false，由调用者（如轮询器线程）稍后重试
+     *
+     * @return <code>false</code> if the socket was not taken, and must be
+     *  handed over again later
+     */
+    boolean processSocket(Socket socket, boolean block) {
+
+        if (virtualThreadFactory != null) {
+            processVirtual(socket);
+            return (true);
+        }
+
+        HttpProcessor processor = null;
+        synchronized (processors) {
+            processor = createProcessor();
+            if (processor == null
+                && Constants.REJECT_QUEUE.equals(rejectPolicy)) {
+                if (!block && !stopped && (queue.size() >= maxQueueSize))
+                    return (false);
+                // 阻塞直到有空闲processor或队列有空位
+                while (!stopped && (queue.size() >= maxQueueSize)) {
+                    try {
+                        processors.wait(1000);
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                    processor = createProcessor();
+                    if (processor != null)
+                        break;
+                }
+            }
+            if (processor == null) {
+                if (!stopped && (queue.size() < maxQueueSize)) {
+                    queue.addLast(socket);
+                    return (true);
+                }
+                rejectedCount++;
+            }
+        }
+
+        if (processor == null) {
+            reject(socket);
+            return (true);
+        }
+        processor.assign(socket);
+
+        // The processor will recycle itself when it finishes
+        return (true);
 
     }
 
@@ -257,12 +436,95 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
 
     }
 
+    /**
+     * 在新的虚拟线程中处理socket，processor对象（不含线程）从对象池中获取，
+     * 处理完成后放回；对象池最多保留maxProcessors个空闲对象
+     */
+    private void processVirtual(final Socket socket) {
+
+        final HttpProcessor processor;
+        synchronized (processors) {
+            if (processors.size() > 0) {
+                processor = processors.pop();
+            } else {
+                curProcessors++;
+                processor = new HttpProcessor(this, nextProcessorId++);
+            }
+        }
+
+        Runnable task = new Runnable() {
+            public void run() {
+                processor.service(socket);
+                synchronized (processors) {
+                    if ((maxProcessors < 0)
+                        || (processors.size() < maxProcessors))
+                        processors.push(processor);
+                    else
+                        curProcessors--;
+                }
+            }
+        };
+        try {
+            virtualThreadFactory.newThread(task).start();
+        } catch (Throwable t) {
+            log("processVirtual", t);
+            synchronized (processors) {
+                processors.push(processor);
+            }
+            reject(socket);
+        }
+
+    }
+
+    /**
+     * 通过反射获取虚拟线程工厂（Thread.ofVirtual().name(...).factory()），
+     * JVM不支持虚拟线程时返回null
+     */
+    private ThreadFactory createVirtualThreadFactory() {
+
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                .invoke(builder, "HttpProcessor[" + port + "]-v", new Long(0L));
+            return ((ThreadFactory) builderClass.getMethod("factory")
+                .invoke(builder));
+        } catch (Exception e) {
+            return (null);
+        }
+
+    }
+
+    /**
+     * 拒绝连接：rejectPolicy为error时先返回503响应，然后关闭socket
+     */
+    private void reject(Socket socket) {
+
+        log(sm.getString("httpConnector.noProcessor"));
+        try {
+            if (Constants.REJECT_ERROR.equals(rejectPolicy)) {
+                OutputStream output = socket.getOutputStream();
+                output.write(SERVICE_UNAVAILABLE);
+                output.flush();
+            }
+        } catch (IOException e) {
+            ;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            ;
+        }
+
+    }
+
     /**
      * 创建processor，并初始化生命周期
      */
     private HttpProcessor newProcessor() {
 
-        HttpProcessor processor = new HttpProcessor(this, curProcessors++);
+        curProcessors++;
+        HttpProcessor processor = new HttpProcessor(this, nextProcessorId++);
         if (processor instanceof Lifecycle) {
             try {
                 ((Lifecycle) processor).start();
@@ -283,6 +545,10 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
             NoSuchAlgorithmException, CertificateException,
             UnrecoverableKeyException, KeyManagementException {
 
+        // The poller needs a channel based server socket
+        if (usePoller)
+            return (openChannel());
+
         // Acquire the server socket factory for this Connector
         ServerSocketFactory factory = getFactory();
 
@@ -317,6 +583,38 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
 
     }
 
+    /**
+     * 创建基于ServerSocketChannel的ServerSocket，accept()得到的socket
+     * 带有SocketChannel，可以注册到poller
+     */
+    private ServerSocket openChannel() throws IOException {
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        ServerSocket socket = channel.socket();
+        InetSocketAddress endpoint = null;
+        if (address == null) {
+            log(sm.getString("httpConnector.allAddresses"));
+            endpoint = new InetSocketAddress(port);
+        } else {
+            try {
+                InetAddress is = InetAddress.getByName(address);
+                log(sm.getString("httpConnector.anAddress", address));
+                endpoint = new InetSocketAddress(is, port);
+            } catch (Exception e) {
+                log(sm.getString("httpConnector.noAddress", address));
+                endpoint = new InetSocketAddress(port);
+            }
+        }
+        try {
+            socket.bind(endpoint, acceptCount);
+        } catch (BindException be) {
+            channel.close();
+            throw new BindException(be.getMessage() + ":" + endpoint);
+        }
+        return (socket);
+
+    }
+
     // ---------------------------------------------- Background Thread Methods
 
     /**
@@ -378,20 +676,15 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
                 continue;
             }
 
-            // Hand this socket off to an appropriate processor
-            HttpProcessor processor = createProcessor();
-            if (processor == null) {
-                try {
-                    log(sm.getString("httpConnector.noProcessor"));
-                    socket.close();
-                } catch (IOException e) {
-                    ;
-                }
+            // Park the connection until the first request bytes arrive
+            SocketChannel channel = socket.getChannel();
+            if ((poller != null) && (channel != null)) {
+                poller.add(channel);
                 continue;
             }
-            processor.assign(socket);
 
-            // The processor will recycle itself when it finishes
+            // Hand this socket off to an appropriate processor
+            processSocket(socket);
 
         }
 
@@ -465,6 +758,13 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
         this.initialized = true;
         Exception eRethrow = null;
 
+        // The poller only works with plain (non SSL) server sockets
+        if (usePoller && (factory != null)
+            && !(factory instanceof DefaultServerSocketFactory)) {
+            log(sm.getString("httpConnector.pollerNotSupported"));
+            usePoller = false;
+        }
+
         try {
             /**
              * 创建serverSocket
@@ -508,11 +808,31 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
+        // 启动keep-alive轮询器
+        if (usePoller) {
+            try {
+                poller = new HttpPoller(this);
+            } catch (IOException e) {
+                throw new LifecycleException(threadName + ".poller", e);
+            }
+            poller.start();
+        }
+
+        // 虚拟线程模式下不需要预先创建processor线程
+        if (useVirtualThreads) {
+            virtualThreadFactory = createVirtualThreadFactory();
+            if (virtualThreadFactory == null)
+                log(sm.getString("httpConnector.noVirtualThreads"));
+            else
+                log(sm.getString("httpConnector.virtualThreads"));
+        }
+
         // 真正的开始线程
         threadStart();
 
         // 创建min个processor
-        while (curProcessors < minProcessors) {
+        while ((virtualThreadFactory == null)
+               && (curProcessors < minProcessors)) {
             if ((maxProcessors > 0) && (curProcessors >= maxProcessors))
                 break;
             HttpProcessor processor = newProcessor();
@@ -546,6 +866,18 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
             }
         }
 
+        // Close the connections still waiting for a processor
+        synchronized (processors) {
+            while (queue.size() > 0) {
+                try {
+                    queue.removeFirst().close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+            processors.notifyAll();
+        }
+
         synchronized (threadSync) {
             // Close the server socket we were using
             if (serverSocket != null) {
@@ -560,6 +892,13 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
         }
         serverSocket = null;
 
+        // Close all parked keep-alive connections
+        if (poller != null) {
+            poller.stop();
+            poller = null;
+        }
+        virtualThreadFactory = null;
+
     }
 
     private void log(String message) {
@@ -693,6 +1032,43 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
 
     }
 
+    /**
+     * 正在处理请求的processor数量
+     */
+    public int getActiveProcessors() {
+
+        synchronized (processors) {
+            return (curProcessors - processors.size());
+        }
+
+    }
+
+    /**
+     * 对象池中空闲的processor数量
+     */
+    public int getIdleProcessors() {
+
+        return (processors.size());
+
+    }
+
+    /**
+     * 等待processor的socket数量
+     */
+    public int getQueueLength() {
+
+        synchronized (processors) {
+            return (queue.size());
+        }
+
+    }
+
+    public int getRejectedCount() {
+
+        return (rejectedCount);
+
+    }
+
     public int getDebug() {
 
         return (debug);
@@ -764,6 +1140,48 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
 
     }
 
+    public int getMaxQueueSize() {
+
+        return (maxQueueSize);
+
+    }
+
+    public void setMaxQueueSize(int maxQueueSize) {
+
+        this.maxQueueSize = maxQueueSize;
+
+    }
+
+    public int getMaxIdleTime() {
+
+        return (maxIdleTime);
+
+    }
+
+    public void setMaxIdleTime(int maxIdleTime) {
+
+        this.maxIdleTime = maxIdleTime;
+
+    }
+
+    public String getRejectPolicy() {
+
+        return (rejectPolicy);
+
+    }
+
+    public void setRejectPolicy(String rejectPolicy) {
+
+        if (Constants.REJECT_QUEUE.equals(rejectPolicy)
+            || Constants.REJECT_ERROR.equals(rejectPolicy)
+            || Constants.REJECT_CLOSE.equals(rejectPolicy))
+            this.rejectPolicy = rejectPolicy;
+        else
+            throw new IllegalArgumentException(
+                sm.getString("httpConnector.rejectPolicy", rejectPolicy));
+
+    }
+
     public int getPort() {
 
         return (this.port);
@@ -847,4 +1265,52 @@ public final class HttpConnector implements Connector, Lifecycle, Runnable {
         this.tcpNoDelay = tcpNoDelay;
 
     }
+
+    public boolean getUseVirtualThreads() {
+
+        return (this.useVirtualThreads);
+
+    }
+
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+
+        this.useVirtualThreads = useVirtualThreads;
+
+    }
+
+    public boolean getUsePoller() {
+
+        return (this.usePoller);
+
+    }
+
+    public void setUsePoller(boolean usePoller) {
+
+        this.usePoller = usePoller;
+
+    }
+
+    public boolean getUseSendfile() {
+
+        return (this.useSendfile);
+
+    }
+
+    public void setUseSendfile(boolean useSendfile) {
+
+        this.useSendfile = useSendfile;
+
+    }
+
+    /**
+     * 当前poller中空闲的keep-alive连接数量
+     */
+    public int getKeepAliveCount() {
+
+        HttpPoller poller = this.poller;
+        if (poller == null)
+            return (0);
+        return (poller.getKeepAliveCount());
+
+    }
 }
@@ -131,6 +131,13 @@ final class HttpHeader {
     protected int hashCode = 0;
 
 
+    /**
+     * The value of this header as a String, created the first time it is
+     * asked for.
+     */
+    protected String valueString = null;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -146,6 +153,21 @@ final class HttpHeader {
         nameEnd = 0;
         valueEnd = 0;
         hashCode = 0;
+        valueString = null;
+
+    }
+
+
+    /**
+     * Return the value of this header as a String.  The String is only
+     * created on the first call, and shared by subsequent calls until this
+     * header is recycled.
+     */
+    public String getValue() {
+
+        if (valueString == null)
+            valueString = new String(value, 0, valueEnd);
+        return (valueString);
 
     }
 
@@ -179,7 +201,31 @@ final class HttpHeader {
      * The String given must be made of lower case characters.
      */
     public boolean equals(String str) {
-        return equals(str.toCharArray(), str.length());
+        int end = str.length();
+        if (end != nameEnd)
+            return false;
+        for (int i=0; i<end; i++) {
+            if (str.charAt(i) != name[i])
+                return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Test if the name of the header is equal to the given string, which
+     * may use any case.  No temporary lower case copy of the string is
+     * made.
+     */
+    public boolean equalsIgnoreCase(String str) {
+        int end = str.length();
+        if (end != nameEnd)
+            return false;
+        for (int i=0; i<end; i++) {
+            if (Character.toLowerCase(str.charAt(i)) != name[i])
+                return false;
+        }
+        return true;
     }
 
 
@@ -284,6 +330,22 @@ final class HttpHeader {
     }
 
 
+    /**
+     * Return the hash code the name of a header would have once converted
+     * to lower case, without converting it.  The result is comparable with
+     * <code>hashCode()</code>.
+     *
+     * @param str Header name, in any case
+     */
+    public static int hashIgnoreCase(String str) {
+        int h = 0;
+        int len = str.length();
+        for (int i = 0; i < len; i++)
+            h = 31*h + Character.toLowerCase(str.charAt(i));
+        return h;
+    }
+
+
     // --------------------------------------------------------- Object Methods
 
 
@@ -0,0 +1,468 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.catalina.connector.http;
+
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.apache.catalina.Logger;
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Keep-alive poller used by an <code>HttpConnector</code> running with
+ * <code>usePoller</code> enabled.  Newly accepted connections, and
+ * connections sitting idle between two keep-alive requests, are owned by a
+ * single <code>java.nio</code> Selector rather than by an
+ * <code>HttpProcessor</code> thread.  A connection is handed back to the
+ * connector for processing only once request bytes are readable, so the
+ * number of processors bounds the number of concurrent requests instead of
+ * the number of open connections.
+ * <p>
+ * Idle connections are closed once they have been parked for longer than
+ * the <code>connectionTimeout</code> of the connector.
+ *
+ * @version $Revision$ $Date$
+ */
+
+final class HttpPoller implements Runnable {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new poller associated with the specified connector.
+     *
+     * @param connector HttpConnector that owns this poller
+     *
+     * @exception IOException if the selector cannot be opened
+     */
+    public HttpPoller(HttpConnector connector) throws IOException {
+
+        super();
+        this.connector = connector;
+        this.debug = connector.getDebug();
+        this.keepAliveTimeout = connector.getConnectionTimeout();
+        this.selector = Selector.open();
+        this.threadName = "HttpPoller[" + connector.getPort() + "]";
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The connector that owns this poller.
+     */
+    private HttpConnector connector = null;
+
+
+    /**
+     * The debugging detail level for this component.
+     */
+    private int debug = 0;
+
+
+    /**
+     * Maximum time (in milliseconds) a connection may stay parked in the
+     * poller without sending a request.  A value of 0 means no timeout.
+     */
+    private int keepAliveTimeout = 0;
+
+
+    /**
+     * Time (in milliseconds) of the last idle connection scan.
+     */
+    private long lastTimeoutCheck = 0L;
+
+
+    /**
+     * Channels waiting to be registered with the selector.  Registration
+     * must happen on the poller thread, since <code>register()</code> blocks
+     * while another thread is inside <code>select()</code>.
+     */
+    private ArrayList<SocketChannel> pending = new ArrayList<SocketChannel>();
+
+
+    /**
+     * The selector owning all parked connections.
+     */
+    private Selector selector = null;
+
+
+    /**
+     * The string manager for this package.
+     */
+    private StringManager sm = StringManager.getManager(Constants.Package);
+
+
+    /**
+     * Has the poller been asked to shut down?
+     */
+    private volatile boolean stopped = false;
+
+
+    /**
+     * The background thread.
+     */
+    private Thread thread = null;
+
+
+    /**
+     * The name of the background thread.
+     */
+    private String threadName = null;
+
+
+    /**
+     * Thread synchronization object used by <code>stop()</code>.
+     */
+    private Object threadSync = new Object();
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Park the specified connection until request bytes are readable on it.
+     * This method may be called from any thread.
+     *
+     * @param channel The connection to be parked
+     */
+    void add(SocketChannel channel) {
+
+        if (stopped) {
+            close(channel);
+            return;
+        }
+        synchronized (pending) {
+            pending.add(channel);
+        }
+        selector.wakeup();
+
+    }
+
+
+    /**
+     * Return the number of connections currently parked in this poller.
+     */
+    int getKeepAliveCount() {
+
+        return (selector.keys().size());
+
+    }
+
+
+    /**
+     * Start the background thread of this poller.
+     */
+    void start() {
+
+        log(sm.getString("httpPoller.starting"));
+
+        stopped = false;
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * Stop the background thread of this poller, closing every connection
+     * which is still parked.
+     */
+    void stop() {
+
+        log(sm.getString("httpPoller.stopping"));
+
+        synchronized (threadSync) {
+            stopped = true;
+            selector.wakeup();
+            try {
+                threadSync.wait(5000);
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
+        thread = null;
+
+    }
+
+
+    // ---------------------------------------------- Background Thread Methods
+
+
+    /**
+     * Wait for parked connections to become readable, and hand them to the
+     * connector for processing.
+     */
+    public void run() {
+
+        ArrayList<SocketChannel> ready = new ArrayList<SocketChannel>();
+
+        while (!stopped) {
+
+            int keyCount = 0;
+            try {
+                keyCount = selector.select(1000L);
+            } catch (IOException e) {
+                log("poller.select", e);
+                continue;
+            }
+            if (stopped)
+                break;
+
+            register();
+
+            if (keyCount > 0) {
+                Iterator<SelectionKey> keys =
+                    selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    key.cancel();
+                    ready.add((SocketChannel) key.channel());
+                }
+                // Flush the cancelled keys, so that the channels may be
+                // switched back to blocking mode
+                try {
+                    selector.selectNow();
+                } catch (IOException e) {
+                    ;
+                }
+                for (int i = 0; i < ready.size(); i++)
+                    dispatch(ready.get(i));
+                ready.clear();
+            }
+
+            expire();
+
+        }
+
+        // Close any connections which are still parked
+        register();
+        Iterator<SelectionKey> keys = selector.keys().iterator();
+        while (keys.hasNext())
+            close((SocketChannel) keys.next().channel());
+        try {
+            selector.close();
+        } catch (IOException e) {
+            ;
+        }
+
+        // Tell stop() we have shut ourselves down successfully
+        synchronized (threadSync) {
+            threadSync.notifyAll();
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Register all pending channels with the selector.
+     */
+    private void register() {
+
+        synchronized (pending) {
+            if (pending.size() == 0)
+                return;
+            Long now = new Long(System.currentTimeMillis());
+            for (int i = 0; i < pending.size(); i++) {
+                SocketChannel channel = pending.get(i);
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, now);
+                } catch (ClosedChannelException e) {
+                    ;
+                } catch (IOException e) {
+                    log("poller.register", e);
+                    close(channel);
+                }
+            }
+            pending.clear();
+        }
+
+    }
+
+
+    /**
+     * Switch a readable channel back to blocking mode and hand it over to
+     * the connector.  If the connector cannot take it without blocking, the
+     * channel is parked again and handed over once the next select returns,
+     * so that the other connections keep being polled and expired.
+     *
+     * @param channel The readable channel
+     */
+    private void dispatch(SocketChannel channel) {
+
+        try {
+            channel.configureBlocking(true);
+        } catch (IOException e) {
+            if (debug >= 1)
+                log("poller.dispatch", e);
+            close(channel);
+            return;
+        }
+        if (connector.processSocket(channel.socket(), false))
+            return;
+        synchronized (pending) {
+            pending.add(channel);
+        }
+
+    }
+
+
+    /**
+     * Close connections which have been idle for longer than the keep-alive
+     * timeout.  The scan is done at most once per second.
+     */
+    private void expire() {
+
+        if (keepAliveTimeout <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        if ((now - lastTimeoutCheck) < 1000L)
+            return;
+        lastTimeoutCheck = now;
+
+        Iterator<SelectionKey> keys = selector.keys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            if (!key.isValid())
+                continue;
+            long parked = ((Long) key.attachment()).longValue();
+            if ((now - parked) > keepAliveTimeout) {
+                if (debug >= 2)
+                    log(" Closing idle connection " + key.channel());
+                key.cancel();
+                close((SocketChannel) key.channel());
+            }
+        }
+
+    }
+
+
+    /**
+     * Close the specified channel, swallowing any exception.
+     *
+     * @param channel The channel to be closed
+     */
+    private void close(SocketChannel channel) {
+
+        try {
+            Socket socket = channel.socket();
+            if (socket != null)
+                socket.close();
+            channel.close();
+        } catch (IOException e) {
+            ;
+        }
+
+    }
+
+
+    /**
+     * Log a message on the Logger associated with our Container (if any).
+     *
+     * @param message Message to be logged
+     */
+    private void log(String message) {
+
+        Logger logger = connector.getContainer().getLogger();
+        if (logger != null)
+            logger.log(threadName + " " + message);
+
+    }
+
+
+    /**
+     * Log a message on the Logger associated with our Container (if any).
+     *
+     * @param message Message to be logged
+     * @param throwable Associated exception
+     */
+    private void log(String message, Throwable throwable) {
+
+        Logger logger = connector.getContainer().getLogger();
+        if (logger != null)
+            logger.log(threadName + " " + message, throwable);
+
+    }
+
+
+}
@@ -63,11 +63,15 @@
 package org.apache.catalina.connector.http;
 
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Locale;
@@ -78,6 +82,7 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.catalina.Context;
 import org.apache.catalina.Globals;
 import org.apache.catalina.HttpRequest;
 import org.apache.catalina.Lifecycle;
@@ -323,14 +328,41 @@ final class HttpProcessor implements Lifecycle, Runnable {
 
     }
 
+    /**
+     * 在调用者线程（虚拟线程）中处理socket，不使用本processor的后台线程
+     * 以及assign()/await()的同步交接
+     */
+    void service(Socket socket) {
+
+        try {
+            process(socket);
+        } catch (Throwable t) {
+            log("process.invoke", t);
+        }
+
+    }
+
     // -------------------------------------------------------- Private Methods
 
     private synchronized Socket await() {
 
         // 1、默认会进入阻塞状态，等待Connector唤醒
+        // 设置了maxIdleTime时，空闲超时后尝试从对象池中回收自身
+        int maxIdleTime = connector.getMaxIdleTime();
         while (!available) {
             try {
-                wait();
+                if (maxIdleTime > 0) {
+                    wait(maxIdleTime);
+                    if (!available && connector.retire(this)) {
+                        if (debug >= 1)
+                            log(" Retiring idle processor");
+                        stopped = true;
+                        started = false;
+                        return (null);
+                    }
+                } else {
+                    wait();
+                }
             } catch (InterruptedException e) {
             }
         }
@@ -525,18 +557,22 @@ final class HttpProcessor implements Lifecycle, Runnable {
                 }
             }
 
-            String value = new String(header.value, 0, header.valueEnd);
             if (debug >= 1)
                 log(" Header " + new String(header.name, 0, header.nameEnd)
-                        + " = " + value);
-
-            // Set the corresponding request headers
-            if (header.equals(DefaultHeaders.AUTHORIZATION_NAME)) {
-                request.setAuthorization(value);
-            } else if (header.equals(DefaultHeaders.ACCEPT_LANGUAGE_NAME)) {
-                parseAcceptLanguage(value);
-            } else if (header.equals(DefaultHeaders.COOKIE_NAME)) {
-                Cookie cookies[] = RequestUtil.parseCookieHeader(value);
+                        + " = " + header.getValue());
+
+            // Set the corresponding request headers; the value is only
+            // turned into a String for the headers which need it
+            switch (DefaultHeaders.find(header)) {
+            case DefaultHeaders.AUTHORIZATION:
+                request.setAuthorization(header.getValue());
+                break;
+            case DefaultHeaders.ACCEPT_LANGUAGE:
+                parseAcceptLanguage(header.getValue());
+                break;
+            case DefaultHeaders.COOKIE:
+                Cookie cookies[] =
+                    RequestUtil.parseCookieHeader(header.getValue());
                 for (int i = 0; i < cookies.length; i++) {
                     if (cookies[i].getName()
                         .equals(Globals.SESSION_COOKIE_NAME)) {
@@ -559,49 +595,24 @@ final class HttpProcessor implements Lifecycle, Runnable {
                                 + cookies[i].getValue());
                     request.addCookie(cookies[i]);
                 }
-            } else if (header.equals(DefaultHeaders.CONTENT_LENGTH_NAME)) {
+                break;
+            case DefaultHeaders.CONTENT_LENGTH:
                 int n = -1;
                 try {
-                    n = Integer.parseInt(value);
+                    n = Integer.parseInt(header.getValue());
                 } catch (Exception e) {
                     throw new ServletException(sm
                         .getString("httpProcessor.parseHeaders.contentLength"));
                 }
                 request.setContentLength(n);
-            } else if (header.equals(DefaultHeaders.CONTENT_TYPE_NAME)) {
-                request.setContentType(value);
-            } else if (header.equals(DefaultHeaders.HOST_NAME)) {
-                int n = value.indexOf(':');
-                if (n < 0) {
-                    if (connector.getScheme().equals("http")) {
-                        request.setServerPort(80);
-                    } else if (connector.getScheme().equals("https")) {
-                        request.setServerPort(443);
-                    }
-                    if (proxyName != null)
-                        request.setServerName(proxyName);
-                    else
-                        request.setServerName(value);
-                } else {
-                    if (proxyName != null)
-                        request.setServerName(proxyName);
-                    else
-                        request.setServerName(value.substring(0, n).trim());
-                    if (proxyPort != 0)
-                        request.setServerPort(proxyPort);
-                    else {
-                        int port = 80;
-                        try {
-                            port = Integer
-                                .parseInt(value.substring(n + 1).trim());
-                        } catch (Exception e) {
-                            throw new ServletException(sm.getString(
-                                "httpProcessor.parseHeaders.portNumber"));
-                        }
-                        request.setServerPort(port);
-                    }
-                }
-            } else if (header.equals(DefaultHeaders.CONNECTION_NAME)) {
+                break;
+            case DefaultHeaders.CONTENT_TYPE:
+                request.setContentType(header.getValue());
+                break;
+            case DefaultHeaders.HOST:
+                parseHost(header.getValue());
+                break;
+            case DefaultHeaders.CONNECTION:
                 if (header.valueEquals(DefaultHeaders.CONNECTION_CLOSE_VALUE)) {
                     keepAlive = false;
                     response.setHeader("Connection", "close");
@@ -611,14 +622,17 @@ final class HttpProcessor implements Lifecycle, Runnable {
                  * if ("keep-alive".equalsIgnoreCase(value)) { keepAlive = true;
                  * }
                  */
-            } else if (header.equals(DefaultHeaders.EXPECT_NAME)) {
+                break;
+            case DefaultHeaders.EXPECT:
                 if (header.valueEquals(DefaultHeaders.EXPECT_100_VALUE))
                     sendAck = true;
                 else
                     throw new ServletException(sm.getString(
                         "httpProcessor.parseHeaders.unknownExpectation"));
-            } else if (header.equals(DefaultHeaders.TRANSFER_ENCODING_NAME)) {
+                break;
+            case DefaultHeaders.TRANSFER_ENCODING:
                 // request.setTransferEncoding(header);
+                break;
             }
 
             request.nextHeader();
@@ -627,6 +641,49 @@ final class HttpProcessor implements Lifecycle, Runnable {
 
     }
 
+    /**
+     * Parse the value of a <code>Host</code> header, and set the server name
+     * and port of the current request accordingly.
+     *
+     * @param value The value of the <code>Host</code> header
+     *
+     * @exception ServletException if the port number is invalid
+     */
+    private void parseHost(String value) throws ServletException {
+
+        int n = value.indexOf(':');
+        if (n < 0) {
+            if (connector.getScheme().equals("http")) {
+                request.setServerPort(80);
+            } else if (connector.getScheme().equals("https")) {
+                request.setServerPort(443);
+            }
+            if (proxyName != null)
+                request.setServerName(proxyName);
+            else
+                request.setServerName(value);
+        } else {
+            if (proxyName != null)
+                request.setServerName(proxyName);
+            else
+                request.setServerName(value.substring(0, n).trim());
+            if (proxyPort != 0)
+                request.setServerPort(proxyPort);
+            else {
+                int port = 80;
+                try {
+                    port = Integer
+                        .parseInt(value.substring(n + 1).trim());
+                } catch (Exception e) {
+                    throw new ServletException(sm.getString(
+                        "httpProcessor.parseHeaders.portNumber"));
+                }
+                request.setServerPort(port);
+            }
+        }
+
+    }
+
     /**
      * Parse the incoming HTTP request and set the corresponding HTTP request
      * properties.
@@ -647,11 +704,9 @@ final class HttpProcessor implements Lifecycle, Runnable {
         // request
         status = Constants.PROCESSOR_ACTIVE;
 
-        String method = new String(requestLine.method, 0,
-            requestLine.methodEnd);
+        String method = requestLine.getMethod();
         String uri = null;
-        String protocol = new String(requestLine.protocol, 0,
-            requestLine.protocolEnd);
+        String protocol = requestLine.getProtocol();
 
         // System.out.println(" Method:" + method + "_ Uri:" + uri
         // + "_ Protocol:" + protocol);
@@ -682,7 +737,7 @@ final class HttpProcessor implements Lifecycle, Runnable {
         }
 
         // Parse any query parameters out of the request URI
-        int question = requestLine.indexOf("?");
+        int question = requestLine.indexOf('?', 0);
         if (question >= 0) {
             request.setQueryString(new String(requestLine.uri, question + 1,
                 requestLine.uriEnd - question - 1));
@@ -852,6 +907,79 @@ final class HttpProcessor implements Lifecycle, Runnable {
             output.write(ack);
     }
 
+    /**
+     * 若servlet通过sendfile请求属性登记了文件区域，则先提交响应头，
+     * 再用FileChannel.transferTo将该区域直接写入socket。
+     *
+     * @param socket The socket on which we are connected to the client
+     */
+    private void sendFile(Socket socket) throws IOException {
+
+        String filename = (String)
+            request.getAttribute(Globals.SENDFILE_FILENAME_ATTR);
+        SocketChannel channel = socket.getChannel();
+        if ((filename == null) || (channel == null) || response.isError())
+            return;
+        long start = ((Long)
+            request.getAttribute(Globals.SENDFILE_FILE_START_ATTR)).longValue();
+        long end = ((Long)
+            request.getAttribute(Globals.SENDFILE_FILE_END_ATTR)).longValue();
+
+        // 存在安全管理器时，web应用只能发送其自身docBase下的文件
+        if (System.getSecurityManager() != null)
+            checkSendfilePath(filename);
+
+        // 文件内容不经过响应流，必须由Content-Length界定，不能使用chunked编码
+        if (response.getContentLength() != (end - start)) {
+            if (response.isCommitted() || ((end - start) > Integer.MAX_VALUE))
+                throw new IOException
+                    (sm.getString("httpProcessor.sendfile.length"));
+            response.setContentLength((int) (end - start));
+        }
+        response.getResponse().flushBuffer();
+
+        FileInputStream fis = new FileInputStream(filename);
+        try {
+            FileChannel file = fis.getChannel();
+            long position = start;
+            while (position < end) {
+                long n = file.transferTo(position, end - position, channel);
+                if (n <= 0)
+                    throw new EOFException
+                        (sm.getString("httpProcessor.sendfile.eof"));
+                position += n;
+            }
+        } finally {
+            fis.close();
+        }
+
+    }
+
+    /**
+     * 校验sendfile登记的文件位于当前请求所属Context的docBase之下。
+     *
+     * @param filename The file registered for sendfile
+     *
+     * @exception SecurityException if the file lies outside the docBase
+     */
+    private void checkSendfilePath(String filename) throws IOException {
+
+        Context context = request.getContext();
+        String docBase = null;
+        if (context != null)
+            docBase = context.getServletContext().getRealPath("/");
+        if (docBase != null) {
+            String base = new File(docBase).getCanonicalPath();
+            if (!base.endsWith(File.separator))
+                base = base + File.separator;
+            if (new File(filename).getCanonicalPath().startsWith(base))
+                return;
+        }
+        throw new SecurityException
+            (sm.getString("httpProcessor.sendfile.denied", filename));
+
+    }
+
     /**
      * Process an incoming HTTP request on the Socket that has been assigned
      * to this Processor.  Any exceptions that occur during processing must be
@@ -863,6 +991,8 @@ final class HttpProcessor implements Lifecycle, Runnable {
 
         boolean ok = true;
         boolean finishResponse = true;
+        boolean parked = false;
+        HttpPoller poller = connector.getPoller();
         SocketInputStream input = null;
         OutputStream output = null;
 
@@ -877,7 +1007,7 @@ final class HttpProcessor implements Lifecycle, Runnable {
 
         keepAlive = true;
 
-        while (!stopped && ok && keepAlive) {
+        while (!stopped && ok && keepAlive && connector.isAvailable()) {
 
             finishResponse = true;
 
@@ -951,6 +1081,11 @@ final class HttpProcessor implements Lifecycle, Runnable {
                 ((HttpServletResponse) response).setHeader("Date",
                     FastHttpDateFormat.getCurrentDate());
                 if (ok) {
+                    // 连接具有SocketChannel时，告知servlet可以使用sendfile
+                    if (connector.getUseSendfile()
+                        && (socket.getChannel() != null))
+                        request.setAttribute(Globals.SENDFILE_SUPPORTED_ATTR,
+                                             Boolean.TRUE);
                     connector.getContainer().invoke(request, response);
                 }
             } catch (ServletException e) {
@@ -975,6 +1110,18 @@ final class HttpProcessor implements Lifecycle, Runnable {
                 ok = false;
             }
 
+            // 发送servlet登记的文件区域
+            if (ok) {
+                try {
+                    sendFile(socket);
+                } catch (IOException e) {
+                    ok = false;
+                } catch (Throwable e) {
+                    log("process.invoke", e);
+                    ok = false;
+                }
+            }
+
             // Finish up the handling of the request
             if (finishResponse) {
                 try {
@@ -1015,6 +1162,25 @@ final class HttpProcessor implements Lifecycle, Runnable {
             request.recycle();
             response.recycle();
 
+            // 使用poller时，若没有已到达的下一个请求数据，则将空闲连接交还给
+            // poller，释放当前processor
+            if (ok && keepAlive && !stopped && (poller != null)
+                && (socket.getChannel() != null)) {
+                try {
+                    if (input.available() == 0) {
+                        parked = true;
+                        break;
+                    }
+                } catch (IOException e) {
+                    ok = false;
+                }
+            }
+
+        }
+
+        if (parked) {
+            poller.add(socket.getChannel());
+            return;
         }
 
         try {
@@ -1057,15 +1223,20 @@ final class HttpProcessor implements Lifecycle, Runnable {
             if (socket == null)
                 continue;
 
-            // Process the request from this socket
-            try {
-                process(socket);
-            } catch (Throwable t) {
-                log("process.invoke", t);
-            }
+            while (socket != null) {
 
-            // Finish up this request
-            connector.recycle(this);
+                // Process the request from this socket
+                try {
+                    process(socket);
+                } catch (Throwable t) {
+                    log("process.invoke", t);
+                }
+
+                // Finish up this request, and pick up the next connection
+                // waiting in the connector queue (if any)
+                socket = connector.recycle(this);
+
+            }
 
         }
 
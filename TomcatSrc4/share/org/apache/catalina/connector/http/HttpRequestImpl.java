@@ -369,11 +369,11 @@ final class HttpRequestImpl
      */
     public String getHeader(String name) {
 
-        name = name.toLowerCase();
+        int hash = HttpHeader.hashIgnoreCase(name);
         for (int i = 0; i < nextHeader; i++) {
-            if (headerPool[i].equals(name))
-                return new String(headerPool[i].value, 0,
-                                  headerPool[i].valueEnd);
+            if ((headerPool[i].hashCode() == hash)
+                && headerPool[i].equalsIgnoreCase(name))
+                return headerPool[i].getValue();
         }
         return null;
 
@@ -389,12 +389,12 @@ final class HttpRequestImpl
      */
     public Enumeration getHeaders(String name) {
 
-        name = name.toLowerCase();
+        int hash = HttpHeader.hashIgnoreCase(name);
         ArrayList tempArrayList = new ArrayList();
         for (int i = 0; i < nextHeader; i++) {
-            if (headerPool[i].equals(name))
-                tempArrayList.add(new String(headerPool[i].value, 0,
-                                             headerPool[i].valueEnd));
+            if ((headerPool[i].hashCode() == hash)
+                && headerPool[i].equalsIgnoreCase(name))
+                tempArrayList.add(headerPool[i].getValue());
         }
         return (Enumeration) new Enumerator(tempArrayList);
 
@@ -93,6 +93,22 @@ final class HttpRequestLine {
     public static final int MAX_PROTOCOL_SIZE = 1024;
 
 
+    /**
+     * Common request methods, returned as shared String instances.
+     */
+    private static final String[] METHODS = {
+        "GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE"
+    };
+
+
+    /**
+     * Common protocols, returned as shared String instances.
+     */
+    private static final String[] PROTOCOLS = {
+        "HTTP/1.1", "HTTP/1.0"
+    };
+
+
     // ----------------------------------------------------------- Constructors
 
 
@@ -200,6 +216,46 @@ final class HttpRequestLine {
     }
 
 
+    /**
+     * Return the request method as a String.  Common methods are returned
+     * as shared instances, without allocating a new String.
+     */
+    public String getMethod() {
+        return toString(method, methodEnd, METHODS);
+    }
+
+
+    /**
+     * Return the request protocol as a String.  Common protocols are
+     * returned as shared instances, without allocating a new String.
+     */
+    public String getProtocol() {
+        return toString(protocol, protocolEnd, PROTOCOLS);
+    }
+
+
+    // ------------------------------------------------------ Private Methods
+
+
+    /**
+     * Return the first of the given strings equal to the specified
+     * characters, or a new String if there is none.
+     */
+    private static String toString(char[] buf, int end, String[] known) {
+        for (int i = 0; i < known.length; i++) {
+            String str = known[i];
+            if (str.length() != end)
+                continue;
+            int j = 0;
+            while ((j < end) && (str.charAt(j) == buf[j]))
+                j++;
+            if (j == end)
+                return str;
+        }
+        return new String(buf, 0, end);
+    }
+
+
     // --------------------------------------------------------- Object Methods
 
 
@@ -262,7 +262,7 @@ public class HttpRequestStream extends RequestStream {
     /**
      * Fill the chunk buffer.
      */
-    private synchronized boolean fillChunkBuffer()
+    private boolean fillChunkBuffer()
         throws IOException {
 
         chunkPos = 0;
@@ -68,6 +68,9 @@ package org.apache.catalina.connector.http;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
@@ -109,6 +112,15 @@ final class HttpResponseImpl
     protected HttpResponseStream responseStream;
 
 
+    /**
+     * Buffers used for gathering writes of the headers and the first
+     * content bytes, wrapping <code>headerBuffer</code> and
+     * <code>buffer</code>.  They are rewrapped only when one of the arrays
+     * has been reallocated.
+     */
+    protected ByteBuffer[] gather = new ByteBuffer[2];
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -153,6 +165,46 @@ final class HttpResponseImpl
     }
 
 
+    /**
+     * Write the pending headers and the first content bytes.  When the
+     * connection has a channel (connector running with a poller), both are
+     * sent with a single gathering write instead of being copied into one
+     * array or written separately.
+     *
+     * @param b The content bytes
+     * @param off Start offset of the content
+     * @param len Number of content bytes
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void writeHeaders(byte b[], int off, int len)
+        throws IOException {
+
+        Socket socket = request.getSocket();
+        SocketChannel channel = null;
+        if (socket != null)
+            channel = socket.getChannel();
+        if ((channel == null) || !channel.isBlocking() || (len == 0)
+            || ((headerCount + len) <= headerBuffer.length)) {
+            super.writeHeaders(b, off, len);
+            return;
+        }
+
+        if ((gather[0] == null) || (gather[0].array() != headerBuffer))
+            gather[0] = ByteBuffer.wrap(headerBuffer);
+        if ((gather[1] == null) || (gather[1].array() != b))
+            gather[1] = ByteBuffer.wrap(b);
+        gather[0].clear();
+        gather[0].limit(headerCount);
+        gather[1].clear();
+        gather[1].limit(off + len);
+        gather[1].position(off);
+        while (gather[1].hasRemaining())
+            channel.write(gather);
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -357,8 +357,7 @@ public class SocketInputStream extends InputStream {
         throws IOException {
 
         // Recycling check
-        if (header.nameEnd != 0)
-            header.recycle();
+        header.recycle();
 
         // Checking for a blank line
         int chr = read();
@@ -379,6 +378,7 @@ public class SocketInputStream extends InputStream {
         int readCount = 0;
 
         boolean colon = false;
+        int hash = 0;
 
         while (!colon) {
             // if the buffer is full, extend it
@@ -411,11 +411,15 @@ public class SocketInputStream extends InputStream {
                 val = (char) (val - LC_OFFSET);
             }
             header.name[readCount] = val;
+            if (!colon)
+                hash = 31 * hash + val;
             readCount++;
             pos++;
         }
 
         header.nameEnd = readCount - 1;
+        // Same value as HttpHeader.hashCode(), computed while reading
+        header.hashCode = hash;
 
         // Reading the header value (which can be spanned over multiple lines)
 
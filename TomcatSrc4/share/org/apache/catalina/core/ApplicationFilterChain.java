@@ -66,8 +66,6 @@ package org.apache.catalina.core;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import javax.servlet.Filter;
@@ -115,17 +113,30 @@ final class ApplicationFilterChain implements FilterChain {
 
 
     /**
-     * The set of filters that will be executed on this chain.
+     * An empty set of filters.
      */
-    private ArrayList filters = new ArrayList();
+    private static final ApplicationFilterConfig NO_FILTERS[] =
+        new ApplicationFilterConfig[0];
 
 
     /**
-     * The iterator that is used to maintain the current position in the filter chain.
-     * This iterator is called the first time that <code>doFilter()</code>
-     * is called.
+     * The set of filters that will be executed on this chain.  This array
+     * may be shared with other chains, and is never modified in place.
      */
-    private Iterator iterator = null;
+    private ApplicationFilterConfig filters[] = NO_FILTERS;
+
+
+    /**
+     * The number of filters in <code>filters</code> that belong to this
+     * chain.
+     */
+    private int n = 0;
+
+
+    /**
+     * The position of the next filter to be executed in this chain.
+     */
+    private int pos = 0;
 
 
     /**
@@ -197,14 +208,9 @@ final class ApplicationFilterChain implements FilterChain {
     private void internalDoFilter(ServletRequest request, ServletResponse response)
         throws IOException, ServletException {
 
-        // Construct an iterator the first time this method is called
-        if (this.iterator == null)
-            this.iterator = filters.iterator();
-
         // Call the next filter if there is one
-        if (this.iterator.hasNext()) {
-            ApplicationFilterConfig filterConfig =
-              (ApplicationFilterConfig) iterator.next();
+        if (pos < n) {
+            ApplicationFilterConfig filterConfig = filters[pos++];
             Filter filter = null;
             try {
                 filter = filterConfig.getFilter();
@@ -284,7 +290,14 @@ final class ApplicationFilterChain implements FilterChain {
      */
     void addFilter(ApplicationFilterConfig filterConfig) {
 
-        this.filters.add(filterConfig);
+        // The current array may be shared, so always grow a copy of it
+        if (n == filters.length) {
+            ApplicationFilterConfig results[] =
+                new ApplicationFilterConfig[n + 4];
+            System.arraycopy(filters, 0, results, 0, n);
+            filters = results;
+        }
+        filters[n++] = filterConfig;
 
     }
 
@@ -294,9 +307,26 @@ final class ApplicationFilterChain implements FilterChain {
      */
     void release() {
 
-        this.filters.clear();
-        this.iterator = iterator;
+        this.filters = NO_FILTERS;
+        this.n = 0;
+        this.pos = 0;
         this.servlet = null;
+        this.support = null;
+
+    }
+
+
+    /**
+     * Set the filters that will be executed in this chain, in order.  The
+     * specified array is not copied, and must not be modified afterwards.
+     *
+     * @param filters The FilterConfigs of the filters to be executed
+     */
+    void setFilters(ApplicationFilterConfig filters[]) {
+
+        this.filters = filters;
+        this.n = filters.length;
+        this.pos = 0;
 
     }
 
@@ -72,8 +72,17 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletException;
 import javax.naming.directory.DirContext;
 import org.apache.naming.resources.ProxyDirContext;
@@ -186,6 +195,51 @@ public abstract class ContainerBase
     }
 
 
+    /**
+     * Start a child container on the start executor.
+     */
+    protected static class StartChild
+        implements Callable {
+
+        private Lifecycle child;
+
+        StartChild(Lifecycle child) {
+            this.child = child;
+        }
+
+        public Object call() throws LifecycleException {
+            child.start();
+            return null;
+        }
+
+    }
+
+
+    /**
+     * Create the daemon threads of the start executor, named after the
+     * container they start children for.
+     */
+    protected static class StartThreadFactory
+        implements ThreadFactory {
+
+        private String name;
+
+        private int count = 0;
+
+        StartThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public synchronized Thread newThread(Runnable runnable) {
+            Thread thread =
+                new Thread(runnable, name + "-start-" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+
     // ----------------------------------------------------- Instance Variables
 
 
@@ -195,6 +249,13 @@ public abstract class ContainerBase
     protected HashMap children = new HashMap();
 
 
+    /**
+     * The names of the child Containers being started outside the lock on
+     * <code>children</code>, which are reserved until they are published.
+     */
+    protected HashSet startingChildren = new HashSet();
+
+
     /**
      * The debugging detail level for this component.
      */
@@ -304,6 +365,21 @@ public abstract class ContainerBase
     protected boolean started = false;
 
 
+    /**
+     * The executor starting our child containers concurrently, if we have
+     * been started with more than one start thread.
+     */
+    protected ThreadPoolExecutor startExecutor = null;
+
+
+    /**
+     * The number of threads starting our child containers concurrently.
+     * The default of one starts them one after another on the calling
+     * thread, and zero or less means one per available processor.
+     */
+    protected int startThreads = 1;
+
+
     /**
      * The property change support for this component.
      */
@@ -778,6 +854,47 @@ public abstract class ContainerBase
     }
 
 
+    /**
+     * Return the executor starting our child containers concurrently, or
+     * <code>null</code> if they are started one after another.  Components
+     * adding children while we start, such as <code>HostConfig</code>
+     * deploying web applications, may use it as well.
+     */
+    public ExecutorService getStartExecutor() {
+
+        return (this.startExecutor);
+
+    }
+
+
+    /**
+     * Return the number of threads starting our child containers.
+     */
+    public int getStartThreads() {
+
+        return (this.startThreads);
+
+    }
+
+
+    /**
+     * Set the number of threads starting our child containers.  The new
+     * value takes effect the next time we are started.
+     *
+     * @param startThreads The new number of start threads, zero or less
+     *  for one per available processor
+     */
+    public void setStartThreads(int startThreads) {
+
+        int oldStartThreads = this.startThreads;
+        this.startThreads = startThreads;
+        support.firePropertyChange("startThreads",
+                                   new Integer(oldStartThreads),
+                                   new Integer(this.startThreads));
+
+    }
+
+
     // ------------------------------------------------------ Container Methods
 
 
@@ -810,23 +927,54 @@ public abstract class ContainerBase
 
     private void addChildInternal(Container child) {
 
+        String childName = child.getName();
+        boolean concurrent = started && (startExecutor != null);
         synchronized(children) {
-            if (children.get(child.getName()) != null)
+            if ((children.get(childName) != null)
+                || startingChildren.contains(childName))
                 throw new IllegalArgumentException("addChild:  Child name '" +
-                                                   child.getName() +
+                                                   childName +
                                                    "' is not unique");
             child.setParent((Container) this);  // May throw IAE
-            if (started && (child instanceof Lifecycle)) {
-                try {
-                    ((Lifecycle) child).start();
-                } catch (LifecycleException e) {
-                    log("ContainerBase.addChild: start: ", e);
-                    throw new IllegalStateException
-                        ("ContainerBase.addChild: start: " + e);
-                }
+            if (!concurrent) {
+                startChild(child);
+                children.put(childName, child);
+                fireContainerEvent(ADD_CHILD_EVENT, child);
+                return;
+            }
+            startingChildren.add(childName);
+        }
+
+        // Children may be added concurrently: start this one without
+        // holding the lock, its name reserved, and publish it once started
+        try {
+            startChild(child);
+            synchronized(children) {
+                children.put(childName, child);
+            }
+        } finally {
+            synchronized(children) {
+                startingChildren.remove(childName);
+            }
+        }
+        fireContainerEvent(ADD_CHILD_EVENT, child);
+
+    }
+
+
+    /**
+     * Start the specified child Container being added, if we are started.
+     */
+    private void startChild(Container child) {
+
+        if (started && (child instanceof Lifecycle)) {
+            try {
+                ((Lifecycle) child).start();
+            } catch (LifecycleException e) {
+                log("ContainerBase.addChild: start: ", e);
+                throw new IllegalStateException
+                    ("ContainerBase.addChild: start: " + e);
             }
-            children.put(child.getName(), child);
-            fireContainerEvent(ADD_CHILD_EVENT, child);
         }
 
     }
@@ -1160,6 +1308,17 @@ public abstract class ContainerBase
         addDefaultMapper(this.mapperClass);
         started = true;
 
+        // Create the executor starting our children, if we have several
+        int threads = startThreads;
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        if ((threads > 1) && (startExecutor == null)) {
+            startExecutor = new ThreadPoolExecutor
+                (threads, threads, 10, TimeUnit.SECONDS,
+                 new LinkedBlockingQueue(), new StartThreadFactory(logName()));
+            startExecutor.allowCoreThreadTimeOut(true);
+        }
+
         // Start our subordinate components, if any
         if ((loader != null) && (loader instanceof Lifecycle))
             ((Lifecycle) loader).start();
@@ -1182,11 +1341,7 @@ public abstract class ContainerBase
         }
 
         // Start our child containers, if any
-        Container children[] = findChildren();
-        for (int i = 0; i < children.length; i++) {
-            if (children[i] instanceof Lifecycle)
-                ((Lifecycle) children[i]).start();
-        }
+        startChildren(findChildren());
 
         // Start the Valves in our pipeline (including the basic), if any
         if (pipeline instanceof Lifecycle)
@@ -1260,6 +1415,12 @@ public abstract class ContainerBase
             ((Lifecycle) loader).stop();
         }
 
+        // Release the executor which started our children, if any
+        if (startExecutor != null) {
+            startExecutor.shutdown();
+            startExecutor = null;
+        }
+
         // Notify our interested LifecycleListeners
         lifecycle.fireLifecycleEvent(AFTER_STOP_EVENT, null);
 
@@ -1383,6 +1544,72 @@ public abstract class ContainerBase
     }
 
 
+    /**
+     * Start the specified child containers.  If we have a start executor
+     * they are started concurrently on it, and all of them are given the
+     * chance to start even if some fail.  The exception thrown is then
+     * that of the first child, in the order given, which failed to start,
+     * whichever failure actually happened first; the failures of the
+     * children after it are logged.
+     *
+     * @param children The child containers to be started
+     *
+     * @exception LifecycleException if a child container failed to start
+     */
+    protected void startChildren(Container children[])
+        throws LifecycleException {
+
+        // Start the children one after another if there is no executor
+        if ((startExecutor == null) || (children.length < 2)) {
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] instanceof Lifecycle)
+                    ((Lifecycle) children[i]).start();
+            }
+            return;
+        }
+
+        // Start all the children concurrently
+        Future results[] = new Future[children.length];
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] instanceof Lifecycle)
+                results[i] = startExecutor.submit
+                    (new StartChild((Lifecycle) children[i]));
+        }
+
+        // Wait for all of them, and report the failures in order
+        Throwable failure = null;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null)
+                continue;
+            try {
+                results[i].get();
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+                else
+                    log(sm.getString("containerBase.startChild",
+                                     children[i].getName()), e.getCause());
+            } catch (InterruptedException e) {
+                for (int j = i; j < results.length; j++) {
+                    if (results[j] != null)
+                        results[j].cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new LifecycleException(e);
+            }
+        }
+        if (failure instanceof LifecycleException)
+            throw (LifecycleException) failure;
+        else if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        else if (failure instanceof Error)
+            throw (Error) failure;
+        else if (failure != null)
+            throw new LifecycleException(failure);
+
+    }
+
+
     /**
      * Notify all container event listeners that a particular event has
      * occurred for this Container.  The default implementation performs
@@ -0,0 +1,358 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.catalina.core;
+
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+
+
+/**
+ * Precompiled form of the servlet mappings of a <code>Context</code>, used
+ * by <code>StandardContextMapper</code> to apply the mapping rules of the
+ * specification without probing the mapping table once per candidate
+ * pattern.  Exact patterns are kept in a hash table, path prefix patterns
+ * in a trie of path segments, and extension patterns in a sorted table.
+ * All lookups compare regions of the request URI in place, so that no
+ * intermediate strings are created while mapping.
+ * <p>
+ * Instances are immutable; the owning <code>StandardContext</code> drops
+ * its index whenever its servlet mappings or its children change, and
+ * builds a new one the next time a request is mapped.
+ *
+ * @version $Revision$ $Date$
+ */
+
+final class ServletMappingIndex {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Compile the specified servlet mappings.  Patterns whose servlet is not
+     * (or no longer) a child of the context are ignored, as they would never
+     * be selected by the mapper.
+     *
+     * @param mappings Servlet names keyed by URL pattern
+     * @param context The Context owning the mapped servlets
+     */
+    ServletMappingIndex(Map mappings, Context context) {
+
+        TreeMap prefixes = new TreeMap();
+        TreeMap extensions = new TreeMap();
+        Iterator entries = mappings.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            String pattern = (String) entry.getKey();
+            Wrapper wrapper =
+                (Wrapper) context.findChild((String) entry.getValue());
+            if (wrapper == null)
+                continue;
+            if (pattern.equals("/")) {
+                defaultWrapper = wrapper;
+            } else if (pattern.endsWith("/*")) {
+                prefixes.put(pattern.substring(0, pattern.length() - 2),
+                             wrapper);
+            } else if (pattern.startsWith("*")) {
+                extensions.put(pattern.substring(1), wrapper);
+            }
+            // Prefix and extension patterns are also matched literally by
+            // the exact match rule
+            exact.put(pattern, wrapper);
+        }
+
+        Iterator keys = prefixes.keySet().iterator();
+        while (keys.hasNext()) {
+            String prefix = (String) keys.next();
+            Node node = root;
+            int pos = 0;
+            while (pos < prefix.length()) {
+                int next = prefix.indexOf('/', pos + 1);
+                if (next < 0)
+                    next = prefix.length();
+                node = node.addChild(prefix.substring(pos + 1, next));
+                pos = next;
+            }
+            node.wrapper = (Wrapper) prefixes.get(prefix);
+        }
+        root.compile();
+
+        extensionKeys = (String[]) extensions.keySet().toArray
+            (new String[extensions.size()]);
+        extensionWrappers = new Wrapper[extensionKeys.length];
+        for (int i = 0; i < extensionKeys.length; i++)
+            extensionWrappers[i] = (Wrapper) extensions.get(extensionKeys[i]);
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The Wrapper mapped to the default pattern (<code>/</code>), if any.
+     */
+    private Wrapper defaultWrapper = null;
+
+
+    /**
+     * The Wrappers mapped by exact pattern.
+     */
+    private HashMap exact = new HashMap();
+
+
+    /**
+     * The extensions (including the leading period) of the extension
+     * patterns, in ascending order.
+     */
+    private String extensionKeys[] = null;
+
+
+    /**
+     * The Wrappers mapped to the corresponding extension in
+     * <code>extensionKeys</code>.
+     */
+    private Wrapper extensionWrappers[] = null;
+
+
+    /**
+     * The root of the path prefix trie, which corresponds to the
+     * <code>/*</code> pattern.
+     */
+    private Node root = new Node();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the Wrapper mapped to the default pattern, or <code>null</code>.
+     */
+    Wrapper getDefault() {
+
+        return (defaultWrapper);
+
+    }
+
+
+    /**
+     * Return the Wrapper whose pattern is exactly the specified URI, or
+     * <code>null</code>.
+     *
+     * @param uri Context relative URI
+     */
+    Wrapper getExact(String uri) {
+
+        return ((Wrapper) exact.get(uri));
+
+    }
+
+
+    /**
+     * Return the Wrapper mapped to the extension found in the last path
+     * segment of the specified URI, or <code>null</code>.
+     *
+     * @param uri Context relative URI
+     */
+    Wrapper getExtension(String uri) {
+
+        int slash = uri.lastIndexOf('/');
+        if (slash < 0)
+            return (null);
+        int period = uri.lastIndexOf('.');
+        if (period <= slash)
+            return (null);
+        int index = find(extensionKeys, uri, period, uri.length());
+        if (index < 0)
+            return (null);
+        return (extensionWrappers[index]);
+
+    }
+
+
+    /**
+     * Return the root of the path prefix trie.  The child of a node for a
+     * path segment <code>uri[start, end)</code> is obtained through
+     * <code>Node.findChild()</code>, and a node carries the Wrapper of the
+     * prefix pattern ending at this segment, if any.
+     */
+    Node getRoot() {
+
+        return (root);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Compare the specified key with the region <code>[start, end)</code>
+     * of the specified string.
+     */
+    private static int compare(String key, String s, int start, int end) {
+
+        int len = end - start;
+        int n = Math.min(key.length(), len);
+        for (int i = 0; i < n; i++) {
+            int c = key.charAt(i) - s.charAt(start + i);
+            if (c != 0)
+                return (c);
+        }
+        return (key.length() - len);
+
+    }
+
+
+    /**
+     * Binary search the sorted keys for the region <code>[start, end)</code>
+     * of the specified string, and return its index or -1.
+     */
+    private static int find(String keys[], String s, int start, int end) {
+
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(keys[mid], s, start, end);
+            if (c < 0)
+                low = mid + 1;
+            else if (c > 0)
+                high = mid - 1;
+            else
+                return (mid);
+        }
+        return (-1);
+
+    }
+
+
+    // ----------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A node of the path prefix trie.
+     */
+    static final class Node {
+
+        /**
+         * The Wrapper mapped to the prefix pattern ending at this node.
+         */
+        Wrapper wrapper = null;
+
+        /**
+         * The path segments of the children, in ascending order.
+         */
+        private String keys[] = new String[0];
+
+        /**
+         * The children, in the same order as <code>keys</code>.
+         */
+        private Node children[] = new Node[0];
+
+        /**
+         * The children being built, keyed by path segment.
+         */
+        private TreeMap building = new TreeMap();
+
+        /**
+         * Return the child for the path segment <code>s[start, end)</code>,
+         * or <code>null</code>.
+         */
+        Node findChild(String s, int start, int end) {
+            int index = find(keys, s, start, end);
+            if (index < 0)
+                return (null);
+            return (children[index]);
+        }
+
+        private Node addChild(String segment) {
+            Node child = (Node) building.get(segment);
+            if (child == null) {
+                child = new Node();
+                building.put(segment, child);
+            }
+            return (child);
+        }
+
+        private void compile() {
+            keys = (String[]) building.keySet().toArray
+                (new String[building.size()]);
+            children = (Node[]) building.values().toArray
+                (new Node[building.size()]);
+            building = null;
+            for (int i = 0; i < children.length; i++)
+                children[i].compile();
+        }
+
+    }
+
+
+}
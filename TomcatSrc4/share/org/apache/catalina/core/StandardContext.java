@@ -76,6 +76,13 @@ import java.util.Hashtable;
 import java.util.Stack;
 import java.util.Enumeration;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -101,6 +108,7 @@ import org.apache.naming.TransactionRef;
 import org.apache.naming.resources.BaseDirContext;
 import org.apache.naming.resources.FileDirContext;
 import org.apache.naming.resources.ProxyDirContext;
+import org.apache.naming.resources.ResourceCache;
 import org.apache.naming.resources.WARDirContext;
 import org.apache.naming.resources.DirContextURLStreamHandler;
 import org.apache.catalina.Container;
@@ -291,6 +299,14 @@ public class StandardContext
     private FilterMap filterMaps[] = new FilterMap[0];
 
 
+    /**
+     * The number of changes made so far to the filter mappings or to the
+     * initialized filters, used by wrappers to validate the filter chains
+     * they have cached.
+     */
+    private volatile int filterVersion = 0;
+
+
     /**
      * The descriptive information string for this implementation.
      */
@@ -305,6 +321,15 @@ public class StandardContext
     private String instanceListeners[] = new String[0];
 
 
+    /**
+     * The number of threads initializing the servlets which share the same
+     * load on startup value concurrently.  The default of one initializes
+     * them one after another, and zero or less means one per available
+     * processor.
+     */
+    private int loadOnStartupThreads = 1;
+
+
     /**
      * The login configuration descriptor for this web application.
      */
@@ -405,12 +430,26 @@ public class StandardContext
     private HashMap servletMappings = new HashMap();
 
 
+    /**
+     * The precompiled form of <code>servletMappings</code> used by our
+     * mapper, or <code>null</code> if it must be rebuilt.
+     */
+    private volatile ServletMappingIndex servletMappingIndex = null;
+
+
     /**
      * The session timeout (in minutes) for this web application.
      */
     private int sessionTimeout = 30;
 
 
+    /**
+     * The number of milliseconds the last successful start of this
+     * web application took.
+     */
+    private long startupTime = 0L;
+
+
     /**
      * The status code error pages for this web application, keyed by
      * HTTP status code (as an Integer).
@@ -805,6 +844,36 @@ public class StandardContext
     }
 
 
+    /**
+     * Return the number of threads initializing the "load on startup"
+     * servlets of this web application.
+     */
+    public int getLoadOnStartupThreads() {
+
+        return (this.loadOnStartupThreads);
+
+    }
+
+
+    /**
+     * Set the number of threads initializing the "load on startup" servlets
+     * of this web application.  Servlets with different load on startup
+     * values are still initialized in the order of these values.
+     *
+     * @param loadOnStartupThreads The new number of threads, zero or less
+     *  for one per available processor
+     */
+    public void setLoadOnStartupThreads(int loadOnStartupThreads) {
+
+        int oldLoadOnStartupThreads = this.loadOnStartupThreads;
+        this.loadOnStartupThreads = loadOnStartupThreads;
+        support.firePropertyChange("loadOnStartupThreads",
+                                   new Integer(oldLoadOnStartupThreads),
+                                   new Integer(this.loadOnStartupThreads));
+
+    }
+
+
     /**
      * Return the login configuration descriptor for this web application.
      */
@@ -1161,6 +1230,73 @@ public class StandardContext
     // ------------------------------------------------------ Public Properties
 
 
+    /**
+     * Return the current size of the resource cache, in bytes.
+     */
+    public long getCacheSize() {
+
+        ResourceCache cache = findResourceCache();
+        return ((cache == null) ? 0 : cache.getSize());
+
+    }
+
+
+    /**
+     * Return the number of resource lookups served by the resource cache.
+     */
+    public long getCacheHitCount() {
+
+        ResourceCache cache = findResourceCache();
+        return ((cache == null) ? 0 : cache.getHitCount());
+
+    }
+
+
+    /**
+     * Return the number of resource lookups which missed the resource cache.
+     */
+    public long getCacheMissCount() {
+
+        ResourceCache cache = findResourceCache();
+        return ((cache == null) ? 0 : cache.getMissCount());
+
+    }
+
+
+    /**
+     * Return the number of lookups of missing resources answered by the
+     * resource cache.
+     */
+    public long getCacheNotFoundHitCount() {
+
+        ResourceCache cache = findResourceCache();
+        return ((cache == null) ? 0 : cache.getNotFoundHitCount());
+
+    }
+
+
+    /**
+     * Return the number of entries evicted from the resource cache.
+     */
+    public long getCacheEvictionCount() {
+
+        ResourceCache cache = findResourceCache();
+        return ((cache == null) ? 0 : cache.getEvictionCount());
+
+    }
+
+
+    /**
+     * Return the number of milliseconds the last successful start of this
+     * web application took, or zero if it has not been started yet.
+     */
+    public long getStartupTime() {
+
+        return (this.startupTime);
+
+    }
+
+
     /**
      * Return the Locale to character set mapper class for this Context.
      */
@@ -1318,6 +1454,9 @@ public class StandardContext
         }
 
         super.addChild(child);
+        synchronized (servletMappings) {
+            servletMappingIndex = null;
+        }
 
     }
 
@@ -1490,6 +1629,7 @@ public class StandardContext
             System.arraycopy(filterMaps, 0, results, 0, filterMaps.length);
             results[filterMaps.length] = filterMap;
             filterMaps = results;
+            filterChanged();
         }
         fireContainerEvent("addFilterMap", filterMap);
 
@@ -1674,6 +1814,7 @@ public class StandardContext
         // Add this mapping to our registered set
         synchronized (servletMappings) {
             servletMappings.put(pattern, name);
+            servletMappingIndex = null;
         }
         fireContainerEvent("addServletMapping", pattern);
 
@@ -1994,6 +2135,18 @@ public class StandardContext
     }
 
 
+    /**
+     * Return the current version of the filter mappings and initialized
+     * filters of this Context.  The version changes whenever a filter
+     * mapping is added or removed, or the filters are started or stopped.
+     */
+    int findFilterVersion() {
+
+        return (filterVersion);
+
+    }
+
+
     /**
      * Return the set of InstanceListener classes that will be added to
      * newly created Wrappers automatically.
@@ -2243,6 +2396,26 @@ public class StandardContext
     }
 
 
+    /**
+     * Return the precompiled servlet mappings of this Context, building
+     * them first if the mappings or the children have changed since they
+     * were last requested.
+     */
+    ServletMappingIndex findServletMappingIndex() {
+
+        ServletMappingIndex index = servletMappingIndex;
+        if (index != null)
+            return (index);
+        synchronized (servletMappings) {
+            if (servletMappingIndex == null)
+                servletMappingIndex =
+                    new ServletMappingIndex(servletMappings, this);
+            return (servletMappingIndex);
+        }
+
+    }
+
+
     /**
      * Return the context-relative URI of the error page for the specified
      * HTTP status code, if any; otherwise return <code>null</code>.
@@ -2653,6 +2826,22 @@ public class StandardContext
     }
 
 
+    /**
+     * Remove an existing child Container from association with this parent
+     * Container.
+     *
+     * @param child Existing child Container to be removed
+     */
+    public void removeChild(Container child) {
+
+        super.removeChild(child);
+        synchronized (servletMappings) {
+            servletMappingIndex = null;
+        }
+
+    }
+
+
     /**
      * Remove the specified security constraint from this web application.
      *
@@ -2782,6 +2971,7 @@ public class StandardContext
             System.arraycopy(filterMaps, n + 1, results, n,
                              (filterMaps.length - 1) - n);
             filterMaps = results;
+            filterChanged();
 
         }
 
@@ -2975,6 +3165,7 @@ public class StandardContext
 
         synchronized (servletMappings) {
             servletMappings.remove(pattern);
+            servletMappingIndex = null;
         }
         fireContainerEvent("removeServletMapping", pattern);
 
@@ -3144,6 +3335,7 @@ public class StandardContext
                     ok = false;
                 }
             }
+            filterChanged();
         }
 
         return (ok);
@@ -3173,6 +3365,7 @@ public class StandardContext
                 filterConfig.release();
             }
             filterConfigs.clear();
+            filterChanged();
         }
         return (true);
 
@@ -3304,7 +3497,9 @@ public class StandardContext
 
     /**
      * Load and initialize all servlets marked "load on startup" in the
-     * web application deployment descriptor.
+     * web application deployment descriptor.  If we have more than one
+     * <code>loadOnStartupThreads</code>, the servlets sharing the same
+     * load on startup value are initialized concurrently.
      *
      * @param children Array of wrappers for all currently defined
      *  servlets (including those not declared load on startup)
@@ -3330,25 +3525,99 @@ public class StandardContext
         }
 
         // Load the collected "load on startup" servlets
-        Iterator keys = map.keySet().iterator();
-        while (keys.hasNext()) {
-            Integer key = (Integer) keys.next();
-            ArrayList list = (ArrayList) map.get(key);
-            Iterator wrappers = list.iterator();
-            while (wrappers.hasNext()) {
-                Wrapper wrapper = (Wrapper) wrappers.next();
-                try {
-                    wrapper.load();
-                } catch (ServletException e) {
-                    log(sm.getString("standardWrapper.loadException",
-                                     getName()), e);
-                    // NOTE: load errors (including a servlet that throws
-                    // UnavailableException from tht init() method) are NOT
-                    // fatal to application startup
+        int threads = loadOnStartupThreads;
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = null;
+        try {
+            Iterator keys = map.keySet().iterator();
+            while (keys.hasNext()) {
+                Integer key = (Integer) keys.next();
+                ArrayList list = (ArrayList) map.get(key);
+                if ((threads > 1) && (list.size() > 1)) {
+                    if (executor == null) {
+                        executor = new ThreadPoolExecutor
+                            (threads, threads, 10, TimeUnit.SECONDS,
+                             new LinkedBlockingQueue(),
+                             new StartThreadFactory(logName()));
+                        executor.allowCoreThreadTimeOut(true);
+                    }
+                    loadOnStartup(executor, list);
+                    continue;
+                }
+                Iterator wrappers = list.iterator();
+                while (wrappers.hasNext()) {
+                    Wrapper wrapper = (Wrapper) wrappers.next();
+                    try {
+                        wrapper.load();
+                    } catch (ServletException e) {
+                        log(sm.getString("standardWrapper.loadException",
+                                         getName()), e);
+                        // NOTE: load errors (including a servlet that throws
+                        // UnavailableException from tht init() method) are
+                        // NOT fatal to application startup
+                    }
+                }
+            }
+        } finally {
+            if (executor != null)
+                executor.shutdown();
+        }
+
+    }
+
+
+    /**
+     * Load and initialize concurrently, on the specified executor, the
+     * specified servlets sharing the same load on startup value, and wait
+     * for all of them.  Their load errors are logged in the order of the
+     * list, whatever order they happened in.
+     *
+     * @param executor The executor to load the servlets on
+     * @param list The wrappers of the servlets to be loaded
+     */
+    private void loadOnStartup(ExecutorService executor, ArrayList list) {
+
+        Future results[] = new Future[list.size()];
+        for (int i = 0; i < results.length; i++) {
+            final Wrapper wrapper = (Wrapper) list.get(i);
+            results[i] = executor.submit(new Callable() {
+                public Object call() throws ServletException {
+                    ClassLoader oldCCL = bindThread();
+                    try {
+                        wrapper.load();
+                    } finally {
+                        unbindThread(oldCCL);
+                    }
+                    return (null);
                 }
+            });
+        }
+
+        Throwable failure = null;
+        for (int i = 0; i < results.length; i++) {
+            try {
+                results[i].get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ServletException)
+                    log(sm.getString("standardWrapper.loadException",
+                                     getName()), e.getCause());
+                else if (failure == null)
+                    failure = e.getCause();
+            } catch (InterruptedException e) {
+                for (int j = i; j < results.length; j++)
+                    results[j].cancel(true);
+                Thread.currentThread().interrupt();
+                return;
             }
         }
 
+        // Other failures propagate, as when loading one servlet at a time
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        else if (failure instanceof Error)
+            throw (Error) failure;
+
     }
 
 
@@ -3365,6 +3634,7 @@ public class StandardContext
 
         if (debug >= 1)
             log("Starting");
+        long startTime = System.currentTimeMillis();
 
         // Notify our interested LifecycleListeners
         lifecycle.fireLifecycleEvent(BEFORE_START_EVENT, null);
@@ -3538,8 +3808,10 @@ public class StandardContext
 
         // Set available status depending upon startup success
         if (ok) {
+            startupTime = System.currentTimeMillis() - startTime;
             if (debug >= 1)
-                log("Starting completed");
+                log(sm.getString("standardContext.startupTime",
+                                 new Long(startupTime)));
             setAvailable(true);
         } else {
             log(sm.getString("standardContext.startFailed"));
@@ -3815,6 +4087,30 @@ public class StandardContext
     }
 
 
+    /**
+     * Return the cache of our resources, if any.
+     */
+    private ResourceCache findResourceCache() {
+
+        DirContext resources = getResources();
+        if (resources instanceof ProxyDirContext)
+            return (((ProxyDirContext) resources).getCache());
+        return (null);
+
+    }
+
+
+    /**
+     * Record a change to the filter mappings or to the initialized filters,
+     * invalidating the filter chains cached by our wrappers.
+     */
+    private synchronized void filterChanged() {
+
+        filterVersion++;
+
+    }
+
+
 
     /**
      * Get base path.
@@ -200,44 +200,48 @@ public final class StandardContextMapper
                         "' and relativeURI='" + relativeURI + "'");
 
         // Apply the standard request URI mapping rules from the specification
+        ServletMappingIndex index = context.findServletMappingIndex();
         Wrapper wrapper = null;
         String servletPath = relativeURI;
         String pathInfo = null;
-        String name = null;
 
         // Rule 1 -- Exact Match
         if (wrapper == null) {
             if (debug >= 2)
                 context.log("  Trying exact match");
             if (!(relativeURI.equals("/")))
-                name = context.findServletMapping(relativeURI);
-            if (name != null)
-                wrapper = (Wrapper) context.findChild(name);
-            if (wrapper != null) {
-                servletPath = relativeURI;
-                pathInfo = null;
-            }
+                wrapper = index.getExact(relativeURI);
         }
 
-        // Rule 2 -- Prefix Match
+        // Rule 2 -- Prefix Match (the longest matching prefix wins)
         if (wrapper == null) {
             if (debug >= 2)
                 context.log("  Trying prefix match");
-            servletPath = relativeURI;
-            while (true) {
-                name = context.findServletMapping(servletPath + "/*");
-                if (name != null)
-                    wrapper = (Wrapper) context.findChild(name);
-                if (wrapper != null) {
-                    pathInfo = relativeURI.substring(servletPath.length());
-                    if (pathInfo.length() == 0)
-                        pathInfo = null;
-                    break;
+            ServletMappingIndex.Node node = index.getRoot();
+            int length = relativeURI.length();
+            int end = 0;
+            wrapper = node.wrapper;
+            if ((length == 0) || (relativeURI.charAt(0) == '/')) {
+                int pos = 0;
+                while ((node != null) && (pos < length)) {
+                    int next = relativeURI.indexOf('/', pos + 1);
+                    if (next < 0)
+                        next = length;
+                    node = node.findChild(relativeURI, pos + 1, next);
+                    if ((node != null) && (node.wrapper != null)) {
+                        wrapper = node.wrapper;
+                        end = next;
+                    }
+                    pos = next;
                 }
-                int slash = servletPath.lastIndexOf('/');
-                if (slash < 0)
-                    break;
-                servletPath = servletPath.substring(0, slash);
+            } else {
+                wrapper = null;
+            }
+            if (wrapper != null) {
+                servletPath = relativeURI.substring(0, end);
+                pathInfo = relativeURI.substring(end);
+                if (pathInfo.length() == 0)
+                    pathInfo = null;
             }
         }
 
@@ -245,20 +249,10 @@ public final class StandardContextMapper
         if (wrapper == null) {
             if (debug >= 2)
                 context.log("  Trying extension match");
-            int slash = relativeURI.lastIndexOf('/');
-            if (slash >= 0) {
-                String last = relativeURI.substring(slash);
-                int period = last.lastIndexOf('.');
-                if (period >= 0) {
-                    String pattern = "*" + last.substring(period);
-                    name = context.findServletMapping(pattern);
-                    if (name != null)
-                        wrapper = (Wrapper) context.findChild(name);
-                    if (wrapper != null) {
-                        servletPath = relativeURI;
-                        pathInfo = null;
-                    }
-                }
+            wrapper = index.getExtension(relativeURI);
+            if (wrapper != null) {
+                servletPath = relativeURI;
+                pathInfo = null;
             }
         }
 
@@ -266,9 +260,7 @@ public final class StandardContextMapper
         if (wrapper == null) {
             if (debug >= 2)
                 context.log("  Trying default match");
-            name = context.findServletMapping("/");
-            if (name != null)
-                wrapper = (Wrapper) context.findChild(name);
+            wrapper = index.getDefault();
             if (wrapper != null) {
                 servletPath = relativeURI;
                 pathInfo = null;
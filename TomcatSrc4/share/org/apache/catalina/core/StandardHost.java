@@ -798,7 +798,7 @@ public class StandardHost
      * @exception IOException if an input/output error was encountered
      *  during installation
      */
-    public synchronized void install(URL config, URL war) throws IOException {
+    public void install(URL config, URL war) throws IOException {
 
         deployer.install(config, war);
 
@@ -208,7 +208,7 @@ public class StandardHostDeployer implements Deployer {
      * @exception IOException if an input/output error was encountered
      *  during installation
      */
-    public synchronized void install(String contextPath, URL war)
+    public void install(String contextPath, URL war)
         throws IOException {
 
         // Validate the format and state of our arguments
@@ -292,7 +292,7 @@ public class StandardHostDeployer implements Deployer {
      * @exception IOException if an input/output error was encountered
      *  during installation
      */
-    public synchronized void install(URL config, URL war) throws IOException {
+    public void install(URL config, URL war) throws IOException {
 
         // Validate the format and state of our arguments
         if (config == null)
@@ -322,31 +322,50 @@ public class StandardHostDeployer implements Deployer {
 
         }
 
+        // Parse the configuration descriptor, one at a time as the
+        // digester is shared
+        Context context = null;
+        synchronized (this) {
+            this.context = null;
+            this.overrideDocBase = docBase;
+            InputStream stream = null;
+            try {
+                stream = config.openStream();
+                Digester digester = createDigester();
+                digester.setDebug(host.getDebug());
+                digester.clear();
+                digester.push(this);
+                digester.parse(stream);
+                stream.close();
+                stream = null;
+            } catch (Exception e) {
+                host.log
+                    (sm.getString("standardHost.installError", docBase), e);
+                throw new IOException(e.toString());
+            } finally {
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (Throwable t) {
+                        ;
+                    }
+                }
+                context = this.context;
+                this.context = null;
+            }
+        }
+        if (context == null)
+            return;
+
         // Install the new web application
-        this.context = null;
-        this.overrideDocBase = docBase;
-        InputStream stream = null;
         try {
-            stream = config.openStream();
-            Digester digester = createDigester();
-            digester.setDebug(host.getDebug());
-            digester.clear();
-            digester.push(this);
-            digester.parse(stream);
-            stream.close();
-            stream = null;
+            host.fireContainerEvent(PRE_INSTALL_EVENT, context);
+            host.addChild(context);
+            host.fireContainerEvent(INSTALL_EVENT, context);
         } catch (Exception e) {
             host.log
                 (sm.getString("standardHost.installError", docBase), e);
             throw new IOException(e.toString());
-        } finally {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (Throwable t) {
-                    ;
-                }
-            }
         }
 
     }
@@ -506,13 +525,15 @@ public class StandardHostDeployer implements Deployer {
 
 
     /**
-     * Delegate a request to add a child Context to our associated Host.
+     * Accept the child Context configured by the descriptor being parsed.
+     * It is added to our associated Host, and started, once the parsing
+     * is over.
      *
      * @param child The child Context to be added
      */
     public void addChild(Container child) {
 
-        context = (Context) child;
+        Context context = (Context) child;
         String contextPath = context.getPath();
         if (contextPath == null)
             throw new IllegalArgumentException
@@ -525,9 +546,7 @@ public class StandardHostDeployer implements Deployer {
                 (sm.getString("standardHost.pathUsed", contextPath));
         if (this.overrideDocBase != null)
             context.setDocBase(this.overrideDocBase);
-        host.fireContainerEvent(PRE_INSTALL_EVENT, context);
-        host.addChild(child);
-        host.fireContainerEvent(INSTALL_EVENT, context);
+        this.context = context;
 
     }
 
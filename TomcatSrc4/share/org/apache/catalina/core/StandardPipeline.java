@@ -136,6 +136,13 @@ public class StandardPipeline
     protected Valve basic = null;
 
 
+    /**
+     * The precompiled chain through our Valves and the basic Valve, which
+     * is rebuilt whenever they change.
+     */
+    protected volatile ValveContext chain = null;
+
+
     /**
      * The Container with which this Pipeline is associated.
      */
@@ -390,7 +397,10 @@ public class StandardPipeline
                 return;
             }
         }
-        this.basic = valve;
+        synchronized (valves) {
+            this.basic = valve;
+            compile();
+        }
 
     }
 
@@ -435,6 +445,7 @@ public class StandardPipeline
             System.arraycopy(valves, 0, results, 0, valves.length);
             results[valves.length] = valve;
             valves = results;
+            compile();
         }
 
     }
@@ -477,7 +488,13 @@ public class StandardPipeline
         throws IOException, ServletException {
 
         // Invoke the first Valve in this pipeline for this request
-        (new StandardPipelineValveContext()).invokeNext(request, response);
+        ValveContext chain = this.chain;
+        if (chain == null) {
+            synchronized (valves) {
+                chain = compile();
+            }
+        }
+        chain.invokeNext(request, response);
 
     }
 
@@ -514,6 +531,7 @@ public class StandardPipeline
                 results[n++] = valves[i];
             }
             valves = results;
+            compile();
             try {
                 if (valve instanceof Contained)
                     ((Contained) valve).setContainer(null);
@@ -538,6 +556,27 @@ public class StandardPipeline
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Build the chain through the current Valves and basic Valve of this
+     * Pipeline, and make it the one used by subsequent requests.  The chain
+     * is immutable and holds no per-request state, so it is shared by all
+     * the requests processed concurrently.  The caller must hold the lock
+     * on <code>valves</code>, so that concurrent changes compile in order.
+     */
+    protected ValveContext compile() {
+
+        Valve current[] = valves;
+        ValveContext next = new StandardPipelineValveChain(null, null);
+        if (basic != null)
+            next = new StandardPipelineValveChain(basic, next);
+        for (int i = current.length - 1; i >= 0; i--)
+            next = new StandardPipelineValveChain(current[i], next);
+        chain = next;
+        return (next);
+
+    }
+
+
     /**
      * Log a message on the Logger associated with our Container (if any).
      *
@@ -652,4 +691,97 @@ public class StandardPipeline
     }
 
 
+    // --------------------------------- StandardPipelineValveChain Inner Class
+
+
+    /**
+     * An element of the precompiled chain through the Valves of this
+     * Pipeline.  Calling <code>invokeNext()</code> on an element invokes
+     * its Valve, passing the following element as the ValveContext, so that
+     * no per-request context needs to be created.
+     */
+    protected class StandardPipelineValveChain
+        implements ValveContext {
+
+
+        // ------------------------------------------------------- Constructor
+
+
+        /**
+         * Construct an element of the chain.
+         *
+         * @param valve The Valve invoked by this element, or
+         *  <code>null</code> for the end of the chain
+         * @param next The element following this one
+         */
+        protected StandardPipelineValveChain(Valve valve, ValveContext next) {
+
+            this.valve = valve;
+            this.next = next;
+
+        }
+
+
+        // ------------------------------------------------- Instance Variables
+
+
+        /**
+         * The Valve invoked by this element.
+         */
+        protected final Valve valve;
+
+
+        /**
+         * The element passed to our Valve as its ValveContext.
+         */
+        protected final ValveContext next;
+
+
+        // --------------------------------------------------------- Properties
+
+
+        /**
+          * Return descriptive information about this ValveContext
+          * implementation.
+          */
+        public String getInfo() {
+
+            return info;
+
+        }
+
+
+        // ----------------------------------------------------- Public Methods
+
+
+        /**
+         * Cause the <code>invoke()</code> method of the next Valve that is
+         * part of the Pipeline currently being processed (if any) to be
+         * executed, passing on the specified request and response objects
+         * plus the ValveContext following it in the chain.
+         *
+         * @param request The request currently being processed
+         * @param response The response currently being created
+         *
+         * @exception IOException if thrown by a subsequent Valve, Filter, or
+         *  Servlet
+         * @exception ServletException if thrown by a subsequent Valve, Filter,
+         *  or Servlet
+         * @exception ServletException if there are no further Valves
+         *  configured in the Pipeline currently being processed
+         */
+        public void invokeNext(Request request, Response response)
+            throws IOException, ServletException {
+
+            if (valve == null)
+                throw new ServletException
+                    (sm.getString("standardPipeline.noValve"));
+            valve.invoke(request, response, next);
+
+        }
+
+
+    }
+
+
 }
@@ -67,6 +67,8 @@ package org.apache.catalina.core;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.servlet.FilterConfig;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
@@ -139,6 +141,26 @@ final class StandardWrapperValve
         StringManager.getManager(Constants.Package);
 
 
+    /**
+     * The maximum number of request paths for which the selected filters
+     * are cached.
+     */
+    private static final int MAX_CACHED_PATHS = 1024;
+
+
+    /**
+     * The filter chain released last by each thread, ready for reuse.
+     */
+    private static final ThreadLocal chains = new ThreadLocal();
+
+
+    /**
+     * The filters selected for the current filter configuration of our
+     * Context.
+     */
+    private volatile FilterCache filterCache = null;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -298,7 +320,7 @@ final class StandardWrapperValve
         // Release the filter chain (if any) for this request
         try {
             if (filterChain != null)
-                filterChain.release();
+                releaseFilterChain(filterChain);
         } catch (Throwable e) {
             log(sm.getString("standardWrapper.releaseFilters",
                              wrapper.getName()), e);
@@ -349,7 +371,9 @@ final class StandardWrapperValve
      * execution of the specified servlet instance.  If we should not execute
      * a filter chain at all, return <code>null</code>.
      * <p>
-     * <strong>FIXME</strong> - Pool the chain instances!
+     * The chain object is reused by the current thread once it has been
+     * released, and the set of filters selected for a request path is
+     * cached until the filter configuration of the Context changes.
      *
      * @param request The servlet request we are processing
      * @param servlet The servlet instance to be wrapped
@@ -361,23 +385,29 @@ final class StandardWrapperValve
         if (servlet == null)
             return (null);
 
-        // Create and initialize a filter chain object
+        // Reuse the chain object released last by this thread, if any
         ApplicationFilterChain filterChain =
-          new ApplicationFilterChain();
+            (ApplicationFilterChain) chains.get();
+        if (filterChain == null)
+            filterChain = new ApplicationFilterChain();
+        else
+            chains.set(null);
         filterChain.setServlet(servlet);
         StandardWrapper wrapper = (StandardWrapper) getContainer();
         filterChain.setSupport(wrapper.getInstanceSupport());
 
-        // Acquire the filter mappings for this Context
+        // Acquire the filters cached for the current filter configuration
         StandardContext context = (StandardContext) wrapper.getParent();
-        FilterMap filterMaps[] = context.findFilterMaps();
+        int version = context.findFilterVersion();
+        FilterCache cache = filterCache;
+        if ((cache == null) || (cache.version != version)) {
+            cache = new FilterCache(version, context.findFilterMaps());
+            filterCache = cache;
+        }
 
         // If there are no filter mappings, we are done
-        if ((filterMaps == null) || (filterMaps.length == 0))
+        if (cache.filterMaps.length == 0)
             return (filterChain);
-//        if (debug >= 1)
-//            log("createFilterChain:  Processing " + filterMaps.length +
-//                " filter map entries");
 
         // Acquire the information we will need to match filter mappings
         String requestPath = null;
@@ -391,63 +421,96 @@ final class StandardWrapperValve
             if (requestURI.length() >= contextPath.length())
                 requestPath = requestURI.substring(contextPath.length());
         }
-        String servletName = wrapper.getName();
-//        if (debug >= 1) {
-//            log(" requestPath=" + requestPath);
-//            log(" servletName=" + servletName);
-//        }
-        int n = 0;
+
+        // Select the filters, unless they are already known for this path
+        ApplicationFilterConfig filters[] = null;
+        if (requestPath != null) {
+            if (cache.anyPath)
+                filters = cache.filters;
+            else
+                filters = (ApplicationFilterConfig[])
+                    cache.paths.get(requestPath);
+        }
+        if (filters == null) {
+            filters = selectFilters(context, cache.filterMaps, requestPath,
+                                    wrapper.getName());
+            if (requestPath != null) {
+                if (cache.anyPath) {
+                    cache.filters = filters;
+                } else {
+                    if (cache.paths.size() >= MAX_CACHED_PATHS)
+                        cache.paths.clear();
+                    cache.paths.put(requestPath, filters);
+                }
+            }
+        }
+        filterChain.setFilters(filters);
+
+        // Return the completed filter chain
+        return (filterChain);
+
+    }
+
+
+    /**
+     * Release the specified filter chain, and keep it for reuse by the
+     * current thread.
+     *
+     * @param filterChain The filter chain to be released
+     */
+    private void releaseFilterChain(ApplicationFilterChain filterChain) {
+
+        filterChain.release();
+        chains.set(filterChain);
+
+    }
+
+
+    /**
+     * Select the filters that apply to the specified request path and
+     * servlet name:  the path-mapped filters first, then the filters that
+     * match on servlet name, each in the order they were defined.
+     *
+     * @param context The Context owning the filters
+     * @param filterMaps The filter mappings of this Context
+     * @param requestPath Context-relative request path of this request
+     * @param servletName Name of the servlet being executed
+     */
+    private ApplicationFilterConfig[] selectFilters(StandardContext context,
+                                                    FilterMap filterMaps[],
+                                                    String requestPath,
+                                                    String servletName) {
+
+        ArrayList results = new ArrayList();
 
         // Add the relevant path-mapped filters to this filter chain
         for (int i = 0; i < filterMaps.length; i++) {
-//            if (debug >= 2)
-//                log(" Checking path-mapped filter '" +
-//                    filterMaps[i] + "'");
             if (!matchFiltersURL(filterMaps[i], requestPath))
                 continue;
             ApplicationFilterConfig filterConfig = (ApplicationFilterConfig)
                 context.findFilterConfig(filterMaps[i].getFilterName());
             if (filterConfig == null) {
-//                if (debug >= 2)
-//                    log(" Missing path-mapped filter '" +
-//                        filterMaps[i] + "'");
                 ;       // FIXME - log configuration problem
                 continue;
             }
-//            if (debug >= 2)
-//                log(" Adding path-mapped filter '" +
-//                    filterConfig.getFilterName() + "'");
-            filterChain.addFilter(filterConfig);
-            n++;
+            results.add(filterConfig);
         }
 
         // Add filters that match on servlet name second
         for (int i = 0; i < filterMaps.length; i++) {
-//            if (debug >= 2)
-//                log(" Checking servlet-mapped filter '" +
-//                    filterMaps[i] + "'");
             if (!matchFiltersServlet(filterMaps[i], servletName))
                 continue;
             ApplicationFilterConfig filterConfig = (ApplicationFilterConfig)
                 context.findFilterConfig(filterMaps[i].getFilterName());
             if (filterConfig == null) {
-//                if (debug >= 2)
-//                    log(" Missing servlet-mapped filter '" +
-//                        filterMaps[i] + "'");
                 ;       // FIXME - log configuration problem
                 continue;
             }
-//            if (debug >= 2)
-//                log(" Adding servlet-mapped filter '" +
-//                     filterMaps[i] + "'");
-            filterChain.addFilter(filterConfig);
-            n++;
+            results.add(filterConfig);
         }
 
-        // Return the completed filter chain
-//        if (debug >= 2)
-//            log(" Returning chain with " + n + " filters");
-        return (filterChain);
+        return ((ApplicationFilterConfig[]) results.toArray
+                (new ApplicationFilterConfig[results.size()]));
 
     }
 
@@ -582,16 +645,11 @@ final class StandardWrapperValve
         if (testPath.equals("/*"))
             return (true);      // Optimize a common case
         if (testPath.endsWith("/*")) {
-            String comparePath = requestPath;
-            while (true) {
-                if (testPath.equals(comparePath + "/*"))
-                    return (true);
-                int slash = comparePath.lastIndexOf('/');
-                if (slash < 0)
-                    break;
-                comparePath = comparePath.substring(0, slash);
-            }
-            return (false);
+            int length = testPath.length() - 2;
+            if (!requestPath.regionMatches(0, testPath, 0, length))
+                return (false);
+            return ((requestPath.length() == length)
+                    || (requestPath.charAt(length) == '/'));
         }
 
         // Case 3 - Extension Match
@@ -599,8 +657,9 @@ final class StandardWrapperValve
             int slash = requestPath.lastIndexOf('/');
             int period = requestPath.lastIndexOf('.');
             if ((slash >= 0) && (period > slash))
-                return (testPath.equals("*." +
-                                        requestPath.substring(period + 1)));
+                return ((testPath.length() - 1 == requestPath.length() - period)
+                        && requestPath.regionMatches(period, testPath, 1,
+                                                     testPath.length() - 1));
         }
 
         // Case 4 - "Default" Match
@@ -609,4 +668,53 @@ final class StandardWrapperValve
     }
 
 
+    // ----------------------------------------------------------- Inner Classes
+
+
+    /**
+     * The filters selected for the requests processed by our Wrapper, for
+     * a given version of the filter configuration of the Context.
+     */
+    private static final class FilterCache {
+
+        FilterCache(int version, FilterMap filterMaps[]) {
+            this.version = version;
+            this.filterMaps = filterMaps;
+            for (int i = 0; i < filterMaps.length; i++) {
+                String urlPattern = filterMaps[i].getURLPattern();
+                if ((urlPattern != null) && !urlPattern.equals("/*"))
+                    anyPath = false;
+            }
+        }
+
+        /**
+         * The filter configuration version this cache is valid for.
+         */
+        final int version;
+
+        /**
+         * The filter mappings of the Context for this version.
+         */
+        final FilterMap filterMaps[];
+
+        /**
+         * Do the same filters apply to every request path?
+         */
+        boolean anyPath = true;
+
+        /**
+         * The filters applying to every request path, if
+         * <code>anyPath</code> is set and they have been selected.
+         */
+        volatile ApplicationFilterConfig filters[] = null;
+
+        /**
+         * The filters selected for each request path, if
+         * <code>anyPath</code> is not set.
+         */
+        final ConcurrentHashMap paths = new ConcurrentHashMap();
+
+    }
+
+
 }
@@ -81,8 +81,10 @@ import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.Attributes;
 import java.util.jar.Attributes.Name;
 import java.util.jar.JarEntry;
@@ -184,6 +186,21 @@ public class WebappClassLoader extends URLClassLoader
             "org.apache.xalan" // Xalan
     };
 
+    /**
+     * The maximum number of names held in <code>notFoundResources</code>.
+     */
+    private static final int MAX_NOT_FOUND_RESOURCES = 4096;
+
+    /**
+     * The JARs probed for a path whose directory no JAR contains.
+     */
+    private static final int[] NO_JARS = new int[0];
+
+    static {
+        // Classes of different names may be loaded concurrently
+        registerAsParallelCapable();
+    }
+
     // ----------------------------------------------------------- Constructors
 
     /**
@@ -240,12 +257,13 @@ public class WebappClassLoader extends URLClassLoader
      * The cache of ResourceEntry for classes and resources we have loaded,
      * keyed by resource name.
      */
-    protected HashMap resourceEntries = new HashMap();
+    protected ConcurrentHashMap resourceEntries = new ConcurrentHashMap();
 
     /**
-     * The list of not found resources.
+     * The list of not found resources, holding at most
+     * <code>MAX_NOT_FOUND_RESOURCES</code> names.
      */
-    protected HashMap notFoundResources = new HashMap();
+    protected ConcurrentHashMap notFoundResources = new ConcurrentHashMap();
 
     /**
      * The debugging detail level of this component.
@@ -287,6 +305,15 @@ public class WebappClassLoader extends URLClassLoader
      */
     protected File[] jarRealFiles = new File[0];
 
+    /**
+     * The JARs which contain entries in each directory, keyed by directory
+     * path including its trailing "/" (the empty string for the root).
+     * The values are arrays of indexes into <code>jarFiles</code>, in the
+     * order the JARs should be searched.  The map is replaced rather than
+     * modified when a JAR is added.
+     */
+    protected volatile HashMap jarIndex = new HashMap();
+
     /**
      * The path which will be monitored for added Jar files.
      */
@@ -614,6 +641,7 @@ public class WebappClassLoader extends URLClassLoader
             result2[i] = jarFiles[i];
         }
         result2[jarFiles.length] = jarFile;
+        indexJar(jarFile, jarFiles.length);
         jarFiles = result2;
 
         // Add the file to the list
@@ -1009,8 +1037,12 @@ public class WebappClassLoader extends URLClassLoader
             }
         }
 
-        // Looking at the JAR files
-        for (i = 0; i < jarFilesLength; i++) {
+        // Looking at the JAR files which may contain it
+        int[] jars = findJars(name);
+        for (int j = 0; j < jars.length; j++) {
+            i = jars[j];
+            if (i >= jarFilesLength)
+                break;
             JarEntry jarEntry = jarFiles[i].getJarEntry(name);
             if (jarEntry != null) {
                 try {
@@ -1265,87 +1297,71 @@ public class WebappClassLoader extends URLClassLoader
             return (clazz);
         }
 
-        // (0.2) Try loading the class with the system class loader, to prevent
-        // the webapp from overriding J2SE classes
-        try {
-            clazz = system.loadClass(name);
-            if (clazz != null) {
-                if (resolve)
-                    resolveClass(clazz);
-                return (clazz);
-            }
-        } catch (ClassNotFoundException e) {
-            // Ignore
-        }
-
-        // (0.5) Permission to access this class when using a SecurityManager
-        if (securityManager != null) {
-            int i = name.lastIndexOf('.');
-            if (i >= 0) {
-                try {
-                    securityManager.checkPackageAccess(name.substring(0, i));
-                } catch (SecurityException se) {
-                    String error = "Security Violation, attempt to use "
-                            + "Restricted Class: " + name;
-                    System.out.println(error);
-                    se.printStackTrace();
-                    log(error);
-                    throw new ClassNotFoundException(error);
-                }
-            }
-        }
-
-        boolean delegateLoad = delegate || filter(name);
+        // Only one thread at a time looks for a given class name, as the
+        // JVM would have it of a class loader which is not parallel capable
+        synchronized (getClassLoadingLock(name)) {
 
-        // (1) Delegate to our parent if requested
-        if (delegateLoad) {
-            if (debug >= 3)
-                log("  Delegating to parent classloader");
-            ClassLoader loader = parent;
-            if (loader == null)
-                loader = system;
+            // (0.2) Try loading the class with the system class loader, to prevent
+            // the webapp from overriding J2SE classes
             try {
-                clazz = loader.loadClass(name);
+                clazz = system.loadClass(name);
                 if (clazz != null) {
-                    if (debug >= 3)
-                        log("  Loading class from parent");
                     if (resolve)
                         resolveClass(clazz);
                     return (clazz);
                 }
             } catch (ClassNotFoundException e) {
-                ;
+                // Ignore
             }
-        }
 
-        // (2) Search local repositories
-        if (debug >= 3)
-            log("  Searching local repositories");
-        try {
-            clazz = findClass(name);
-            if (clazz != null) {
+            // (0.5) Permission to access this class when using a SecurityManager
+            if (securityManager != null) {
+                int i = name.lastIndexOf('.');
+                if (i >= 0) {
+                    try {
+                        securityManager.checkPackageAccess(name.substring(0, i));
+                    } catch (SecurityException se) {
+                        String error = "Security Violation, attempt to use "
+                                + "Restricted Class: " + name;
+                        System.out.println(error);
+                        se.printStackTrace();
+                        log(error);
+                        throw new ClassNotFoundException(error);
+                    }
+                }
+            }
+
+            boolean delegateLoad = delegate || filter(name);
+
+            // (1) Delegate to our parent if requested
+            if (delegateLoad) {
                 if (debug >= 3)
-                    log("  Loading class from local repository");
-                if (resolve)
-                    resolveClass(clazz);
-                return (clazz);
+                    log("  Delegating to parent classloader");
+                ClassLoader loader = parent;
+                if (loader == null)
+                    loader = system;
+                try {
+                    clazz = loader.loadClass(name);
+                    if (clazz != null) {
+                        if (debug >= 3)
+                            log("  Loading class from parent");
+                        if (resolve)
+                            resolveClass(clazz);
+                        return (clazz);
+                    }
+                } catch (ClassNotFoundException e) {
+                    ;
+                }
             }
-        } catch (ClassNotFoundException e) {
-            ;
-        }
 
-        // (3) Delegate to parent unconditionally
-        if (!delegateLoad) {
+            // (2) Search local repositories
             if (debug >= 3)
-                log("  Delegating to parent classloader");
-            ClassLoader loader = parent;
-            if (loader == null)
-                loader = system;
+                log("  Searching local repositories");
             try {
-                clazz = loader.loadClass(name);
+                clazz = findClass(name);
                 if (clazz != null) {
                     if (debug >= 3)
-                        log("  Loading class from parent");
+                        log("  Loading class from local repository");
                     if (resolve)
                         resolveClass(clazz);
                     return (clazz);
@@ -1353,10 +1369,32 @@ public class WebappClassLoader extends URLClassLoader
             } catch (ClassNotFoundException e) {
                 ;
             }
-        }
 
-        // This class was not found
-        throw new ClassNotFoundException(name);
+            // (3) Delegate to parent unconditionally
+            if (!delegateLoad) {
+                if (debug >= 3)
+                    log("  Delegating to parent classloader");
+                ClassLoader loader = parent;
+                if (loader == null)
+                    loader = system;
+                try {
+                    clazz = loader.loadClass(name);
+                    if (clazz != null) {
+                        if (debug >= 3)
+                            log("  Loading class from parent");
+                        if (resolve)
+                            resolveClass(clazz);
+                        return (clazz);
+                    }
+                } catch (ClassNotFoundException e) {
+                    ;
+                }
+            }
+
+            // This class was not found
+            throw new ClassNotFoundException(name);
+
+        }
 
     }
 
@@ -1486,6 +1524,7 @@ public class WebappClassLoader extends URLClassLoader
         repositories = new String[0];
         files = new File[0];
         jarFiles = new JarFile[0];
+        jarIndex = new HashMap();
         jarRealFiles = new File[0];
         jarPath = null;
         jarNames = new String[0];
@@ -1545,11 +1584,16 @@ public class WebappClassLoader extends URLClassLoader
 
             // Define the package (if null)
             if (pkg == null) {
-                if (entry.manifest == null) {
-                    definePackage(packageName, null, null, null, null, null,
-                        null, null);
-                } else {
-                    definePackage(packageName, entry.manifest, entry.codeBase);
+                try {
+                    if (entry.manifest == null) {
+                        definePackage(packageName, null, null, null, null,
+                            null, null, null);
+                    } else {
+                        definePackage(packageName, entry.manifest,
+                            entry.codeBase);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Defined concurrently by another class of the package
                 }
             }
 
@@ -1579,7 +1623,7 @@ public class WebappClassLoader extends URLClassLoader
         }
 
         if (entry.loadedClass == null) {
-            synchronized (this) {
+            synchronized (getClassLoadingLock(name)) {
                 if (entry.loadedClass == null) {
                     clazz = defineClass(name, entry.binaryContent, 0,
                         entry.binaryContent.length, codeSource);
@@ -1691,7 +1735,14 @@ public class WebappClassLoader extends URLClassLoader
 
         JarEntry jarEntry = null;
 
-        for (i = 0; (entry == null) && (i < jarFilesLength); i++) {
+        // Only the JARs with entries in the same directory are probed
+        int[] jars = (entry == null) ? findJars(path) : NO_JARS;
+
+        for (int j = 0; (entry == null) && (j < jars.length); j++) {
+
+            i = jars[j];
+            if (i >= jarFilesLength)
+                break;
 
             jarEntry = jarFiles[i].getJarEntry(path);
 
@@ -1718,7 +1769,11 @@ public class WebappClassLoader extends URLClassLoader
         }
 
         if (entry == null) {
-            synchronized (notFoundResources) {
+            // Remembering a miss only saves probing the candidate JARs
+            if (jars.length > 0) {
+                // Start over rather than let the misses accumulate
+                if (notFoundResources.size() >= MAX_NOT_FOUND_RESOURCES)
+                    notFoundResources.clear();
                 notFoundResources.put(name, name);
             }
             return null;
@@ -1757,22 +1812,35 @@ public class WebappClassLoader extends URLClassLoader
         }
 
         // Add the entry in the local resource repository
-        synchronized (resourceEntries) {
-            // Ensures that all the threads which may be in a race to load
-            // a particular class all end up with the same ResourceEntry
-            // instance
-            ResourceEntry entry2 = (ResourceEntry) resourceEntries.get(name);
-            if (entry2 == null) {
-                resourceEntries.put(name, entry);
-            } else {
-                entry = entry2;
-            }
+        // Ensures that all the threads which may be in a race to load
+        // a particular class all end up with the same ResourceEntry
+        // instance
+        ResourceEntry entry2 =
+            (ResourceEntry) resourceEntries.putIfAbsent(name, entry);
+        if (entry2 != null) {
+            entry = entry2;
         }
 
         return entry;
 
     }
 
+    /**
+     * Return the indexes in <code>jarFiles</code> of the JARs which have
+     * entries in the directory of the specified path, in search order.
+     *
+     * @param path Path of the resource, relative to the JAR root
+     */
+    protected int[] findJars(String path) {
+
+        int[] jars = (int[]) jarIndex.get(path.substring
+                                          (0, path.lastIndexOf('/') + 1));
+        if (jars == null)
+            return NO_JARS;
+        return jars;
+
+    }
+
     /**
      * Returns true if the specified package name is sealed according to the
      * given manifest.
@@ -1940,6 +2008,45 @@ public class WebappClassLoader extends URLClassLoader
 
     }
 
+    /**
+     * Add the directories of the specified JAR to <code>jarIndex</code>.
+     * A directory entry is also indexed under its parent, since
+     * <code>getJarEntry()</code> finds it without its trailing "/".
+     *
+     * @param jarFile The JAR to index
+     * @param index Its index in <code>jarFiles</code>
+     */
+    private void indexJar(JarFile jarFile, int index) {
+
+        HashSet directories = new HashSet();
+        Enumeration entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            String name = ((JarEntry) entries.nextElement()).getName();
+            int slash = name.lastIndexOf('/');
+            directories.add(name.substring(0, slash + 1));
+            if (slash == name.length() - 1) {
+                slash = name.lastIndexOf('/', slash - 1);
+                directories.add(name.substring(0, slash + 1));
+            }
+        }
+
+        HashMap result = (HashMap) jarIndex.clone();
+        Iterator iterator = directories.iterator();
+        while (iterator.hasNext()) {
+            Object directory = iterator.next();
+            int[] jars = (int[]) result.get(directory);
+            int length = (jars == null) ? 0 : jars.length;
+            int[] result2 = new int[length + 1];
+            for (int i = 0; i < length; i++) {
+                result2[i] = jars[i];
+            }
+            result2[length] = index;
+            result.put(directory, result2);
+        }
+        jarIndex = result;
+
+    }
+
     /**
      * Get URL.
      */
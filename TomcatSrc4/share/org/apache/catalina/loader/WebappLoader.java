@@ -95,6 +95,8 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Logger;
+import org.apache.catalina.util.FileChangeListener;
+import org.apache.catalina.util.FileWatcher;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 import org.apache.naming.resources.DirContextURLStreamHandler;
@@ -120,7 +122,8 @@ import org.apache.naming.resources.Resource;
  */
 
 public class WebappLoader
-        implements Lifecycle, Loader, PropertyChangeListener, Runnable {
+        implements FileChangeListener, Lifecycle, Loader,
+                   PropertyChangeListener, Runnable {
 
     // ----------------------------------------------------------- Constructors
 
@@ -239,6 +242,24 @@ public class WebappLoader
      */
     private boolean threadDone = false;
 
+    /**
+     * Is the <code>FileWatcher</code> watching our WEB-INF directory?
+     * If not, the background thread polls every
+     * <code>checkInterval</code> seconds.
+     */
+    private boolean watched = false;
+
+    /**
+     * Has the <code>FileWatcher</code> reported a change since the
+     * background thread last checked for modifications?
+     */
+    private boolean changed = false;
+
+    /**
+     * The monitor the background thread waits on for changes.
+     */
+    private Object changeLock = new Object();
+
     /**
      * Name to register for the background thread.
      */
@@ -669,6 +690,36 @@ public class WebappLoader
 
     }
 
+    // --------------------------------------------- FileChangeListener Methods
+
+    /**
+     * Wake up the background thread, a file in our WEB-INF directory has
+     * changed.
+     *
+     * @param file The file which has changed
+     */
+    public void fileChanged(File file) {
+
+        synchronized (changeLock) {
+            changed = true;
+            changeLock.notifyAll();
+        }
+
+    }
+
+    /**
+     * Log the failure to process a change to a file of our WEB-INF
+     * directory.
+     *
+     * @param file The file which has changed
+     * @param throwable The failure which occurred
+     */
+    public void fileChangeFailed(File file, Throwable throwable) {
+
+        log(sm.getString("webappLoader.fileChangeFailed", file), throwable);
+
+    }
+
     // ----------------------------------------- PropertyChangeListener Methods
 
     /**
@@ -1136,7 +1187,16 @@ public class WebappLoader
     private void threadSleep() {
 
         try {
-            Thread.sleep(checkInterval * 1000L);
+            if (watched) {
+                // Wait for the FileWatcher to report a change
+                synchronized (changeLock) {
+                    while (!changed && !threadDone)
+                        changeLock.wait();
+                    changed = false;
+                }
+            } else {
+                Thread.sleep(checkInterval * 1000L);
+            }
         } catch (InterruptedException e) {
             ;
         }
@@ -1164,6 +1224,16 @@ public class WebappLoader
             throw new IllegalStateException(
                 sm.getString("webappLoader.notContext"));
 
+        // Have our WEB-INF directory watched rather than polled, if we can
+        String path = ((Context) container).getServletContext()
+            .getRealPath("/WEB-INF");
+        changed = false;
+        watched = (path != null) && FileWatcher.getFileWatcher()
+            .watch(new File(path), true, this);
+        if (debug >= 1)
+            log(sm.getString(watched ? "webappLoader.watching"
+                             : "webappLoader.polling", path));
+
         // Start the background thread
         if (debug >= 1)
             log(" Starting background thread");
@@ -1186,6 +1256,10 @@ public class WebappLoader
 
         if (debug >= 1)
             log(" Stopping background thread");
+        if (watched) {
+            FileWatcher.getFileWatcher().unwatch(this);
+            watched = false;
+        }
         threadDone = true;
         thread.interrupt();
         try {
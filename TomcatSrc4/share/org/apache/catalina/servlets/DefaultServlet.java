@@ -100,6 +100,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.catalina.Globals;
+import org.apache.catalina.connector.RequestFacade;
+import org.apache.catalina.connector.ResponseFacade;
 import org.apache.catalina.util.FastHttpDateFormat;
 import org.apache.catalina.util.MD5Encoder;
 import org.apache.catalina.util.ServerInfo;
@@ -146,6 +148,12 @@ public class DefaultServlet extends HttpServlet {
      */
     protected int output = 2048;
 
+    /**
+     * Minimal file size (in KB) for which the content is handed over to a
+     * connector supporting sendfile, or a negative value to disable it.
+     */
+    protected int sendfileSize = 48;
+
     /**
      * The set of welcome files for this web application
      */
@@ -263,6 +271,12 @@ public class DefaultServlet extends HttpServlet {
         } catch (Throwable t) {
             ;
         }
+        try {
+            value = getServletConfig().getInitParameter("sendfileSize");
+            sendfileSize = Integer.parseInt(value);
+        } catch (Throwable t) {
+            ;
+        }
 
         // Sanity check on the specified buffer sizes
         if (input < 256)
@@ -1008,7 +1022,9 @@ public class DefaultServlet extends HttpServlet {
                     // Silent catch
                 }
                 if (ostream != null) {
-                    copy(resourceInfo, ostream);
+                    if (!checkSendfile(request, response, resourceInfo,
+                                       0, contentLength))
+                        copy(resourceInfo, ostream);
                 } else {
                     copy(resourceInfo, writer);
                 }
@@ -1044,7 +1060,9 @@ public class DefaultServlet extends HttpServlet {
                         // Silent catch
                     }
                     if (ostream != null) {
-                        copy(resourceInfo, ostream, range);
+                        if (!checkSendfile(request, response, resourceInfo,
+                                           range.start, range.end + 1))
+                            copy(resourceInfo, ostream, range);
                     } else {
                         copy(resourceInfo, writer, range);
                     }
@@ -1643,6 +1661,56 @@ public class DefaultServlet extends HttpServlet {
 
     }
 
+    /**
+     * Hand the specified region of a static file over to the connector,
+     * which will send it straight to the client socket once this servlet
+     * returns.  This is only done if the connector announced sendfile
+     * support, the region is at least <code>sendfileSize</code> KB long,
+     * the resource is backed by a regular file on disk, and the request and
+     * response are those of the connector itself.  A wrapped response,
+     * such as a compressing filter, or a forwarded request would otherwise
+     * see none of the content the connector sends after it.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param resourceInfo The ResourceInfo object
+     * @param start Offset of the first byte to send
+     * @param end Offset following the last byte to send
+     * @return <code>true</code> if the connector will send the content
+     */
+    private boolean checkSendfile(HttpServletRequest request,
+                                  HttpServletResponse response,
+                                  ResourceInfo resourceInfo,
+                                  long start, long end) {
+
+        if ((sendfileSize < 0)
+            || !(request instanceof RequestFacade)
+            || !(response instanceof ResponseFacade)
+            || ((end - start) < (sendfileSize * 1024L))
+            || resourceInfo.collection || (resourceInfo.file == null)
+            || !Boolean.TRUE.equals(request.getAttribute
+                                    (Globals.SENDFILE_SUPPORTED_ATTR))
+            || (request.getAttribute(Globals.CONTEXT_PATH_ATTR) != null))
+            return false;
+
+        String realPath = getServletContext().getRealPath(resourceInfo.path);
+        if (realPath == null)
+            return false;
+        File file = new File(realPath);
+        if (!file.isFile() || (file.length() != resourceInfo.length))
+            return false;
+
+        if (debug > 0)
+            log("DefaultServlet.checkSendfile:  file=" + realPath
+                + ", start=" + start + ", end=" + end);
+        request.setAttribute(Globals.SENDFILE_FILENAME_ATTR,
+                             file.getAbsolutePath());
+        request.setAttribute(Globals.SENDFILE_FILE_START_ATTR, new Long(start));
+        request.setAttribute(Globals.SENDFILE_FILE_END_ATTR, new Long(end));
+        return (true);
+
+    }
+
     /**
      * Copy the contents of the specified input stream to the specified
      * output stream, and ensure that both streams are closed before returning
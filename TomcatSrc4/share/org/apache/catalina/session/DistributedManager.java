@@ -69,11 +69,14 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.util.HashMap;
 import org.apache.catalina.Cluster;
 import org.apache.catalina.Container;
 import org.apache.catalina.LifecycleException;
@@ -82,12 +85,20 @@ import org.apache.catalina.Session;
 import org.apache.catalina.cluster.ClusterSender;
 import org.apache.catalina.cluster.ClusterReceiver;
 import org.apache.catalina.cluster.ReplicationWrapper;
+import org.apache.catalina.cluster.TcpSender;
 import org.apache.catalina.util.CustomObjectInputStream;
 
 /**
  * This manager is responsible for in memory replication of
  * Sessions across a defined Cluster. It could also utilize a
  * Store to make Sessions persistence.
+ * <p>
+ * Sessions whose attributes change are queued and sent by a replicator
+ * thread once <code>replicationWindow</code> milliseconds have passed
+ * since the first of them was queued, so that a Session changed several
+ * times within the window is sent once, and the Sessions sent together
+ * travel in one message.  Received messages are applied by a receiver
+ * thread as soon as they arrive.
  *
  * @author Bip Thelin
  * @version $Revision: 1.5 $, $Date: 2002/01/03 08:52:57 $
@@ -99,6 +110,29 @@ public final class DistributedManager extends PersistentManagerBase {
     // ----------------------------------------------------- Instance Variables
 
 
+    /**
+     * The size in bytes above which a batch of Sessions is sent without
+     * waiting for the rest of the window, over a TCP transport.
+     */
+    private static final int BATCH_SIZE = 65536;
+
+    /**
+     * The same size over multicast, where each batch is a single datagram
+     * and <code>MulticastReceiver</code> reads at most 5000 bytes of it,
+     * including the <code>ReplicationWrapper</code> around the batch.
+     */
+    private static final int MULTICAST_BATCH_SIZE = 4000;
+
+    /**
+     * Type of the messages holding the changes made to a session.
+     */
+    private static final byte DELTA = 2;
+
+    /**
+     * Type of the messages holding a whole session.
+     */
+    private static final byte FULL = 1;
+
     /**
      * The descriptive information about this implementation.
      */
@@ -109,6 +143,12 @@ public final class DistributedManager extends PersistentManagerBase {
      */
     protected static String name = "DistributedManager";
 
+    /**
+     * The size in bytes above which a batch is sent, for the transport of
+     * our ClusterSender.
+     */
+    private int batchSize = MULTICAST_BATCH_SIZE;
+
     /**
      * Our ClusterSender, used when replicating sessions
      */
@@ -119,6 +159,82 @@ public final class DistributedManager extends PersistentManagerBase {
      */
     private ClusterReceiver clusterReceiver = null;
 
+    /**
+     * The maximum number of deltas sent for a session before it is sent
+     * whole again.  Zero by default, since an attribute changed in place
+     * is not sent in a delta.
+     */
+    private int maxDeltas = 0;
+
+    /**
+     * The state of the sessions as last sent to or received from our
+     * Cluster, keyed by session identifier.
+     */
+    private HashMap replicated = new HashMap();
+
+    /**
+     * The Sessions waiting to be replicated, keyed by session identifier.
+     */
+    private HashMap pending = new HashMap();
+
+    /**
+     * When the oldest Session in <code>pending</code> was queued.
+     */
+    private long pendingSince = 0L;
+
+    /**
+     * The number of milliseconds changed Sessions are held before being
+     * replicated.
+     */
+    private int replicationWindow = 100;
+
+    /**
+     * The thread replicating the pending Sessions.
+     */
+    private Thread replicatorThread = null;
+
+    /**
+     * The thread applying the messages received from our Cluster.
+     */
+    private Thread receiverThread = null;
+
+    /**
+     * The number of Sessions, whole or changes, sent to our Cluster.
+     */
+    private volatile long replicatedSessions = 0L;
+
+    /**
+     * The number of bytes sent to our Cluster.
+     */
+    private volatile long replicatedBytes = 0L;
+
+    /**
+     * The number of Sessions, whole or changes, received from our Cluster.
+     */
+    private volatile long receivedSessions = 0L;
+
+    /**
+     * The number of bytes received from our Cluster.
+     */
+    private volatile long receivedBytes = 0L;
+
+    /**
+     * Milliseconds between the oldest Session of the last batch being
+     * queued and the batch being sent.
+     */
+    private volatile long replicationLag = 0L;
+
+    /**
+     * The largest <code>replicationLag</code> seen.
+     */
+    private volatile long maxReplicationLag = 0L;
+
+    /**
+     * Milliseconds between the last batch received being sent by its
+     * member and being applied here.
+     */
+    private volatile long receiveLag = 0L;
+
 
     // ------------------------------------------------------------- Properties
 
@@ -139,6 +255,106 @@ public final class DistributedManager extends PersistentManagerBase {
         return (this.name);
     }
 
+    /**
+     * Return the maximum number of deltas sent for a session before it
+     * is sent whole again.
+     */
+    public int getMaxDeltas() {
+        return (this.maxDeltas);
+    }
+
+    /**
+     * Set the maximum number of deltas sent for a session before it is
+     * sent whole again.  Zero sends sessions whole every time.
+     *
+     * @param maxDeltas The new maximum number of deltas
+     */
+    public void setMaxDeltas(int maxDeltas) {
+        int oldMaxDeltas = this.maxDeltas;
+        this.maxDeltas = maxDeltas;
+        support.firePropertyChange("maxDeltas",
+                                   new Integer(oldMaxDeltas),
+                                   new Integer(this.maxDeltas));
+    }
+
+    /**
+     * Return the number of milliseconds changed Sessions are held before
+     * being replicated.
+     */
+    public int getReplicationWindow() {
+        return (this.replicationWindow);
+    }
+
+    /**
+     * Set the number of milliseconds changed Sessions are held before
+     * being replicated.  Changes made to a Session within the window are
+     * sent together.
+     *
+     * @param replicationWindow The new window
+     */
+    public void setReplicationWindow(int replicationWindow) {
+        int oldReplicationWindow = this.replicationWindow;
+        this.replicationWindow = replicationWindow;
+        support.firePropertyChange("replicationWindow",
+                                   new Integer(oldReplicationWindow),
+                                   new Integer(this.replicationWindow));
+    }
+
+    /**
+     * Return the number of Sessions, whole or changes, sent to our
+     * Cluster.
+     */
+    public long getReplicatedSessions() {
+        return (this.replicatedSessions);
+    }
+
+    /**
+     * Return the number of bytes sent to our Cluster.
+     */
+    public long getReplicatedBytes() {
+        return (this.replicatedBytes);
+    }
+
+    /**
+     * Return the number of Sessions, whole or changes, received from our
+     * Cluster.
+     */
+    public long getReceivedSessions() {
+        return (this.receivedSessions);
+    }
+
+    /**
+     * Return the number of bytes received from our Cluster.
+     */
+    public long getReceivedBytes() {
+        return (this.receivedBytes);
+    }
+
+    /**
+     * Return the milliseconds between the oldest Session of the last
+     * batch sent being queued and the batch being sent.
+     */
+    public long getReplicationLag() {
+        return (this.replicationLag);
+    }
+
+    /**
+     * Return the largest replication lag seen since this Manager was
+     * started.
+     */
+    public long getMaxReplicationLag() {
+        return (this.maxReplicationLag);
+    }
+
+    /**
+     * Return the milliseconds between the last batch received being sent
+     * by its member and being applied here.  This includes any difference
+     * between the clocks of the two members.
+     */
+    public long getReceiveLag() {
+        return (this.receiveLag);
+    }
+
 
     // --------------------------------------------------------- Public Methods
 
@@ -150,27 +366,24 @@ public final class DistributedManager extends PersistentManagerBase {
      */
     public Session createSession() {
         Session session = super.createSession();
-        ObjectOutputStream oos = null;
-        ByteArrayOutputStream bos = null;
-        ByteArrayInputStream bis = null;
-
-        try {
-            bos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(new BufferedOutputStream(bos));
-
-            ((StandardSession)session).writeObjectData(oos);
-            oos.close();
-
-            byte[] obs = bos.toByteArray();
-            clusterSender.send(obs);
+        changed(session);
+        return (session);
+    }
 
-            if(debug > 0)
-                log("Replicating Session: "+session.getId());
-        } catch (IOException e) {
-            log("An error occurred when replicating Session: "+session.getId());
+    /**
+     * Remove this Session from the active Sessions for this Manager,
+     * and forget its replication state.
+     *
+     * @param session Session to be removed
+     */
+    public void remove(Session session) {
+        super.remove(session);
+        synchronized (pending) {
+            pending.remove(session.getId());
+        }
+        synchronized (replicated) {
+            replicated.remove(session.getId());
         }
-
-        return (session);
     }
 
     /**
@@ -189,78 +402,485 @@ public final class DistributedManager extends PersistentManagerBase {
             this.clusterSender = cluster.getClusterSender(getName());
             this.clusterReceiver = cluster.getClusterReceiver(getName());
         }
+        if (clusterSender instanceof TcpSender)
+            batchSize = BATCH_SIZE;
+        else
+            batchSize = MULTICAST_BATCH_SIZE;
 
+        replicationLag = 0L;
+        maxReplicationLag = 0L;
         super.start();
     }
 
     /**
-     * Called from our background thread to process new received Sessions
+     * Called from our receiver thread to process new received Sessions,
+     * and changes to the Sessions received before.
      *
      */
     public void processClusterReceiver() {
-        Object[] objs = clusterReceiver.getObjects();
+        if (clusterReceiver == null)
+            return;
+
+        processClusterReceiver(clusterReceiver.getObjects());
+    }
+
+    /**
+     * Called from our background thread to queue the Sessions which have
+     * been accessed since they were last sent to or received from our
+     * Cluster.  Sessions whose attributes change are queued as soon as
+     * they do.
+     *
+     */
+    public void processReplication() {
+        if (clusterSender == null)
+            return;
+
+        Session sessions[] = findSessions();
+        for (int i = 0; i < sessions.length; i++) {
+            if (modified(sessions[i]))
+                changed(sessions[i]);
+        }
+    }
+
+    /**
+     * The background thread that checks for session timeouts and shutdown.
+     */
+    public void run() {
+        // Loop until the termination semaphore is set
+        while (!threadDone) {
+            threadSleep();
+            processReplication();
+            processExpires();
+            processPersistenceChecks();
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Start our background thread, and the threads replicating and
+     * receiving Sessions.
+     */
+    protected void threadStart() {
+        super.threadStart();
+
+        String threadName = getName() + "[" + container.getName() + "]";
+        if ((clusterSender != null) && (replicatorThread == null)) {
+            replicatorThread = new Thread(new Replicator(),
+                                          threadName + "Replicator");
+            replicatorThread.setDaemon(true);
+            replicatorThread.start();
+        }
+        if ((clusterReceiver != null) && (receiverThread == null)) {
+            receiverThread = new Thread(new Receiver(),
+                                        threadName + "Receiver");
+            receiverThread.setDaemon(true);
+            receiverThread.start();
+        }
+    }
+
+    /**
+     * Stop our background thread, and the threads replicating and
+     * receiving Sessions once the pending Sessions have been sent.
+     */
+    protected void threadStop() {
+        super.threadStop();
+
+        synchronized (pending) {
+            pending.notifyAll();
+        }
+        join(replicatorThread);
+        replicatorThread = null;
+        if (receiverThread != null)
+            receiverThread.interrupt();
+        join(receiverThread);
+        receiverThread = null;
+    }
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Queue the specified Session for replication.
+     *
+     * @param session Session whose attributes have changed
+     */
+    void changed(Session session) {
+        if ((clusterSender == null) || !(session instanceof StandardSession))
+            return;
+
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                pendingSince = System.currentTimeMillis();
+                pending.notifyAll();
+            }
+            pending.put(session.getId(), session);
+        }
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Has the specified Session changed since it was last sent to or
+     * received from our Cluster?
+     */
+    private boolean modified(Session session) {
+        if (!(session instanceof StandardSession))
+            return (false);
+
+        Replica replica = null;
+        synchronized (replicated) {
+            replica = (Replica) replicated.get(session.getId());
+        }
+        return ((replica == null)
+                || (replica.version
+                    != ((StandardSession) session).getVersion())
+                || (replica.lastAccessedTime
+                    != session.getLastAccessedTime()));
+    }
+
+    /**
+     * Apply the specified messages received from our Cluster.
+     *
+     * @param objs The ReplicationWrappers received
+     */
+    private void processClusterReceiver(Object[] objs) {
+        for(int i=0; i < objs.length;i++) {
+            ReplicationWrapper repObj = (ReplicationWrapper)objs[i];
+            byte[] buf = repObj.getDataStream();
+            receivedBytes += buf.length;
+            try {
+                DataInputStream dis =
+                    new DataInputStream(new ByteArrayInputStream(buf));
+                long sent = dis.readLong();
+                int n = dis.readInt();
+                for (int j = 0; j < n; j++) {
+                    byte[] message = new byte[dis.readInt()];
+                    dis.readFully(message);
+                    receive(message);
+                }
+                receiveLag = System.currentTimeMillis() - sent;
+            } catch (IOException e) {
+                log("Error occurred when trying to read replicated session: "+
+                    e.toString());
+            }
+        }
+    }
+
+    /**
+     * Apply one Session, whole or changes, received from our Cluster.
+     *
+     * @param buf The message holding the Session
+     */
+    private void receive(byte[] buf) {
         StandardSession _session = null;
         ByteArrayInputStream bis = null;
         Loader loader = null;
         ClassLoader classLoader = null;
         ObjectInputStream ois = null;
-        byte[] buf = new byte[5000];
-        ReplicationWrapper repObj = null;
 
-        for(int i=0; i < objs.length;i++) {
-            try {
-                bis = new ByteArrayInputStream(buf);
-                repObj = (ReplicationWrapper)objs[i];
-                buf = repObj.getDataStream();
-                bis = new ByteArrayInputStream(buf, 0, buf.length);
+        try {
+            bis = new ByteArrayInputStream(buf, 0, buf.length);
 
-                if (container != null)
-                    loader = container.getLoader();
+            if (container != null)
+                loader = container.getLoader();
 
-                if (loader != null)
-                    classLoader = loader.getClassLoader();
+            if (loader != null)
+                classLoader = loader.getClassLoader();
 
-                if (classLoader != null)
-                    ois = new CustomObjectInputStream(bis,
-                                                      classLoader);
-                else
-                    ois = new ObjectInputStream(bis);
+            if (classLoader != null)
+                ois = new CustomObjectInputStream(bis,
+                                                  classLoader);
+            else
+                ois = new ObjectInputStream(bis);
 
-                _session = (StandardSession) super.createSession();
+            byte type = ois.readByte();
+            String id = ois.readUTF();
+            receivedSessions++;
+            if (type == FULL) {
+                _session = new StandardSession(this);
                 _session.readObjectData(ois);
                 _session.setManager(this);
+                add(_session);
 
                 if (debug > 0)
-                    log("Loading replicated session: "+_session.getId());
-            } catch (IOException e) {
-                log("Error occurred when trying to read replicated session: "+
-                    e.toString());
-            } catch (ClassNotFoundException e) {
-                log("Error occurred when trying to read replicated session: "+
-                    e.toString());
-            } finally {
-                if (ois != null) {
-                    try {
-                        ois.close();
-                        bis = null;
-                    } catch (IOException e) {
-                        ;
+                    log("Loading replicated session: "+id);
+            } else {
+                Object current = sessions.get(id);
+                if (!(current instanceof StandardSession)) {
+                    // Wait for the next time it is sent whole
+                    if (debug > 0)
+                        log("Ignoring changes to unknown session: "+id);
+                    return;
+                }
+                _session = (StandardSession) current;
+                _session.readDeltaData(ois);
+
+                if (debug > 0)
+                    log("Applying changes to replicated session: "+id);
+            }
+
+            // Do not send what we have just received back
+            synchronized (replicated) {
+                replicated.put(id, new Replica(_session, 0));
+            }
+        } catch (IOException e) {
+            log("Error occurred when trying to read replicated session: "+
+                e.toString());
+        } catch (ClassNotFoundException e) {
+            log("Error occurred when trying to read replicated session: "+
+                e.toString());
+        } finally {
+            if (ois != null) {
+                try {
+                    ois.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the specified Sessions to our Cluster, as few messages of at
+     * most about <code>batchSize</code> bytes.  A Session larger than that
+     * is sent on its own.
+     *
+     * @param queued The Sessions to be replicated
+     * @param since When the oldest of them was queued
+     */
+    private void replicate(Object queued[], long since) {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        int n = 0;
+
+        for (int i = 0; i < queued.length; i++) {
+            byte[] message = replicate((StandardSession) queued[i]);
+            if (message == null)
+                continue;
+            if ((n > 0) && (batch.size() + message.length > batchSize)) {
+                send(batch, n, since);
+                batch.reset();
+                n = 0;
+            }
+            batch.write(message.length >>> 24);
+            batch.write(message.length >>> 16);
+            batch.write(message.length >>> 8);
+            batch.write(message.length);
+            batch.write(message, 0, message.length);
+            n++;
+        }
+        if (n > 0)
+            send(batch, n, since);
+    }
+
+    /**
+     * Send a batch of Sessions to our Cluster.  The batch is prefixed
+     * with the time it is sent and its number of Sessions.
+     */
+    private void send(ByteArrayOutputStream batch, int n, long since) {
+        try {
+            ByteArrayOutputStream bos =
+                new ByteArrayOutputStream(batch.size() + 12);
+            DataOutputStream dos = new DataOutputStream(bos);
+            long now = System.currentTimeMillis();
+            dos.writeLong(now);
+            dos.writeInt(n);
+            batch.writeTo(dos);
+            dos.flush();
+
+            byte[] obs = bos.toByteArray();
+            clusterSender.send(obs);
+            replicatedSessions += n;
+            replicatedBytes += obs.length;
+            replicationLag = now - since;
+            if (replicationLag > maxReplicationLag)
+                maxReplicationLag = replicationLag;
+        } catch (IOException e) {
+            log("An error occurred when replicating Sessions: "+
+                e.toString());
+        }
+    }
+
+    /**
+     * Serialize the specified Session if it has changed since it was last
+     * sent or received: only the changes made since then, or the whole
+     * Session once <code>maxDeltas</code> deltas have been sent.
+     *
+     * @param _session Session to be replicated
+     * @return The message to send, or <code>null</code> if unchanged
+     */
+    private byte[] replicate(StandardSession _session) {
+        String id = _session.getId();
+        if (id == null)
+            return (null);
+
+        Replica replica = null;
+        synchronized (replicated) {
+            replica = (Replica) replicated.get(id);
+        }
+        long lastAccessedTime = _session.getLastAccessedTime();
+        long since = -1L;
+        int deltas = 0;
+        if (replica != null) {
+            if ((replica.version == _session.getVersion())
+                && (replica.lastAccessedTime == lastAccessedTime))
+                return (null);
+            if (replica.deltas < maxDeltas) {
+                since = replica.version;
+                deltas = replica.deltas + 1;
+            }
+        }
+
+        try {
+            ByteArrayOutputStream bos = null;
+            ObjectOutputStream oos = null;
+            long version = -1L;
+
+            if (since >= 0L) {
+                bos = new ByteArrayOutputStream();
+                oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+                oos.writeByte(DELTA);
+                oos.writeUTF(id);
+                version = _session.writeDeltaData(oos, since);
+            }
+            if (version < 0L) {
+                bos = new ByteArrayOutputStream();
+                oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+                oos.writeByte(FULL);
+                oos.writeUTF(id);
+                version = _session.getVersion();
+                _session.writeObjectData(oos);
+                deltas = 0;
+            }
+            oos.close();
+            if (deltas == 0)
+                _session.setEstimatedSize(bos.size(), version);
+
+            synchronized (replicated) {
+                replicated.put(id, new Replica(version, lastAccessedTime,
+                                               deltas));
+            }
+
+            if(debug > 0)
+                log("Replicating Session: "+id);
+            return (bos.toByteArray());
+        } catch (IOException e) {
+            log("An error occurred when replicating Session: "+id);
+            return (null);
+        } catch (IllegalStateException e) {
+            // Invalidated while queued
+            return (null);
+        }
+    }
+
+    /**
+     * Wait for the specified thread to end.
+     */
+    private void join(Thread thread) {
+        if (thread == null)
+            return;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            ;
+        }
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * Replicates the pending Sessions once they have been held for
+     * <code>replicationWindow</code> milliseconds.  The pending Sessions
+     * are sent one last time when our background thread is stopped.
+     */
+    private final class Replicator implements Runnable {
+
+        public void run() {
+            while (true) {
+                Object queued[] = null;
+                long since = 0L;
+                synchronized (pending) {
+                    while (!threadDone && pending.isEmpty()) {
+                        try {
+                            pending.wait();
+                        } catch (InterruptedException e) {
+                            ;
+                        }
                     }
+                    if (pending.isEmpty())
+                        return;
+                    long wait = pendingSince + replicationWindow
+                        - System.currentTimeMillis();
+                    if (!threadDone && (wait > 0L)) {
+                        try {
+                            pending.wait(wait);
+                        } catch (InterruptedException e) {
+                            ;
+                        }
+                        continue;
+                    }
+                    queued = pending.values().toArray();
+                    since = pendingSince;
+                    pending.clear();
                 }
+                replicate(queued, since);
             }
         }
+
     }
 
+
     /**
-     * The background thread that checks for session timeouts and shutdown.
+     * Applies the messages received from our Cluster as they arrive.
      */
-    public void run() {
-        // Loop until the termination semaphore is set
-        while (!threadDone) {
-            threadSleep();
-            processClusterReceiver();
-            processExpires();
-            processPersistenceChecks();
+    private final class Receiver implements Runnable {
+
+        public void run() {
+            while (!threadDone) {
+                processClusterReceiver(clusterReceiver.getObjects(1000L));
+            }
         }
+
+    }
+
+
+    /**
+     * The state of a Session as last sent to or received from our Cluster.
+     */
+    private static final class Replica {
+
+        Replica(StandardSession session, int deltas) {
+            this(session.getVersion(), session.getLastAccessedTime(), deltas);
+        }
+
+        Replica(long version, long lastAccessedTime, int deltas) {
+            this.version = version;
+            this.lastAccessedTime = lastAccessedTime;
+            this.deltas = deltas;
+        }
+
+        /**
+         * Version of the Session.
+         */
+        final long version;
+
+        /**
+         * Last accessed time of the Session.
+         */
+        final long lastAccessedTime;
+
+        /**
+         * Number of deltas sent since the Session was last sent whole.
+         */
+        final int deltas;
+
     }
 }
@@ -80,6 +80,13 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
 import org.apache.catalina.Container;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Loader;
@@ -120,9 +127,25 @@ public class JDBCStore
     protected String connString = null;
 
     /**
-     * The database connection.
+     * Name of the JNDI resource of a <code>DataSource</code> to draw
+     * connections from, instead of opening them with the driver.
      */
-    private Connection conn = null;
+    protected String dataSourceName = null;
+
+    /**
+     * The DataSource connections are drawn from, if any.
+     */
+    protected DataSource dataSource = null;
+
+    /**
+     * Idle connections opened by this Store, if no DataSource is used.
+     */
+    private LinkedList connections = new LinkedList();
+
+    /**
+     * Max number of idle connections kept open by this Store.
+     */
+    protected int maxIdleConnections = 4;
 
     /**
      * Driver to use.
@@ -164,34 +187,10 @@ public class JDBCStore
     // ------------------------------------------------------------- SQL Variables
 
     /**
-     * Variable to hold the <code>getSize()</code> prepared statement.
-     */
-    protected PreparedStatement preparedSizeSql = null;
-
-    /**
-     * Variable to hold the <code>keys()</code> prepared statement.
-     */
-    protected PreparedStatement preparedKeysSql = null;
-
-    /**
-     * Variable to hold the <code>save()</code> prepared statement.
-     */
-    protected PreparedStatement preparedSaveSql = null;
-
-    /**
-     * Variable to hold the <code>clear()</code> prepared statement.
-     */
-    protected PreparedStatement preparedClearSql = null;
-
-    /**
-     * Variable to hold the <code>remove()</code> prepared statement.
+     * Max number of session identifiers bound to a single
+     * <code>DELETE</code> statement.
      */
-    protected PreparedStatement preparedRemoveSql = null;
-
-    /**
-     * Variable to hold the <code>load()</code> prepared statement.
-     */
-    protected PreparedStatement preparedLoadSql = null;
+    protected static final int REMOVE_BATCH = 100;
 
     // ------------------------------------------------------------- Properties
 
@@ -257,6 +256,47 @@ public class JDBCStore
         return(this.connString);
     }
 
+    /**
+     * Set the JNDI name of the DataSource for this Store.
+     *
+     * @param dataSourceName The new JNDI name, relative to
+     *  <code>java:comp/env</code>
+     */
+    public void setDataSourceName(String dataSourceName) {
+        String oldDataSourceName = this.dataSourceName;
+        this.dataSourceName = dataSourceName;
+        support.firePropertyChange("dataSourceName",
+                                   oldDataSourceName,
+                                   this.dataSourceName);
+    }
+
+    /**
+     * Return the JNDI name of the DataSource for this Store.
+     */
+    public String getDataSourceName() {
+        return(this.dataSourceName);
+    }
+
+    /**
+     * Set the max number of idle connections kept open by this Store.
+     *
+     * @param maxIdleConnections The new max number of idle connections
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        int oldMaxIdleConnections = this.maxIdleConnections;
+        this.maxIdleConnections = maxIdleConnections;
+        support.firePropertyChange("maxIdleConnections",
+                                   new Integer(oldMaxIdleConnections),
+                                   new Integer(this.maxIdleConnections));
+    }
+
+    /**
+     * Return the max number of idle connections kept open by this Store.
+     */
+    public int getMaxIdleConnections() {
+        return(this.maxIdleConnections);
+    }
+
     /**
      * Set the table for this Store.
      *
@@ -388,43 +428,20 @@ public class JDBCStore
      */
     public String[] keys() throws IOException {
         String keysSql =
-            "SELECT COUNT(s."+sessionIdCol+"), c."+sessionIdCol+
-            " FROM "+sessionTable+" s, "+sessionTable+" c"+
-            " GROUP BY c."+sessionIdCol;
-
+            "SELECT "+sessionIdCol+" FROM ".concat(sessionTable);
         Connection _conn = getConnection();
-        ResultSet rst = null;
-        String keys[] = null;
-        int i;
+        String keys[] = new String[0];
 
         if(_conn == null)
-            return(new String[0]);
+            return(keys);
 
         try {
-            if(preparedKeysSql == null)
-                preparedKeysSql = _conn.prepareStatement(keysSql);
-
-            rst = preparedKeysSql.executeQuery();
-            if (rst != null && rst.next()) {
-                keys = new String[rst.getInt(1)];
-                keys[0] = rst.getString(2);
-                i=1;
-
-                while(rst.next())
-                    keys[i++] = rst.getString(2);
-            } else {
-                keys = new String[0];
-            }
+            keys = select(_conn, keysSql, null);
         } catch(SQLException e) {
             log(sm.getString(getStoreName()+".SQLException", e));
+            close(_conn);
+            _conn = null;
         } finally {
-            try {
-                if(rst != null)
-                    rst.close();
-            } catch(SQLException e) {
-                ;
-            }
-
             release(_conn);
             _conn = null;
         }
@@ -444,28 +461,24 @@ public class JDBCStore
         String sizeSql = "SELECT COUNT("+sessionIdCol+
             ") FROM ".concat(sessionTable);
         Connection _conn = getConnection();
+        PreparedStatement stmt = null;
         ResultSet rst = null;
 
         if(_conn == null)
             return(size);
 
         try {
-            if(preparedSizeSql == null)
-                preparedSizeSql = _conn.prepareStatement(sizeSql);
-
-            rst = preparedSizeSql.executeQuery();
+            stmt = _conn.prepareStatement(sizeSql);
+            rst = stmt.executeQuery();
             if (rst.next())
                 size = rst.getInt(1);
         } catch(SQLException e) {
             log(sm.getString(getStoreName()+".SQLException", e));
+            close(_conn);
+            _conn = null;
         } finally {
-            try {
-                if(rst != null)
-                    rst.close();
-            } catch(SQLException e) {
-                ;
-            }
-
+            close(rst);
+            close(stmt);
             release(_conn);
             _conn = null;
         }
@@ -485,12 +498,14 @@ public class JDBCStore
     public Session load(String id)
         throws ClassNotFoundException, IOException {
         ResultSet rst = null;
+        PreparedStatement stmt = null;
         Connection _conn = getConnection();
         StandardSession _session = null;
         Loader loader = null;
         ClassLoader classLoader = null;
         ObjectInputStream ois = null;
         BufferedInputStream bis = null;
+        byte[] data = null;
         Container container = manager.getContainer();
         String loadSql = "SELECT "+sessionIdCol+
             ", "+sessionDataCol+" FROM "+sessionTable+
@@ -500,55 +515,51 @@ public class JDBCStore
             return(null);
 
         try {
-            if(preparedLoadSql == null)
-                preparedLoadSql = _conn.prepareStatement(loadSql);
-
-            preparedLoadSql.setString(1, id);
-            rst = preparedLoadSql.executeQuery();
+            stmt = _conn.prepareStatement(loadSql);
+            stmt.setString(1, id);
+            rst = stmt.executeQuery();
             if (rst.next()) {
-                bis = new BufferedInputStream(rst.getBinaryStream(2));
-
-                if (container != null)
-                    loader = container.getLoader();
-
-                if (loader != null)
-                    classLoader = loader.getClassLoader();
-
-                if (classLoader != null)
-                    ois = new CustomObjectInputStream(bis,
-                                                      classLoader);
-                else
-                    ois = new ObjectInputStream(bis);
+                // Read the data before the connection is given back
+                data = read(rst.getBinaryStream(2));
             } else if (debug > 0) {
                 log(getStoreName()+": No persisted data object found");
             }
         } catch(SQLException e) {
             log(sm.getString(getStoreName()+".SQLException", e));
+            close(_conn);
+            _conn = null;
         } finally {
-            try {
-                if(rst != null)
-                    rst.close();
-            } catch(SQLException e) {
-                ;
-            }
-
+            close(rst);
+            close(stmt);
             release(_conn);
             _conn = null;
         }
 
-        if(ois != null) {
+        if(data != null) {
+            bis = new BufferedInputStream(new ByteArrayInputStream(data));
+
+            if (container != null)
+                loader = container.getLoader();
+
+            if (loader != null)
+                classLoader = loader.getClassLoader();
+
+            if (classLoader != null)
+                ois = new CustomObjectInputStream(bis,
+                                                  classLoader);
+            else
+                ois = new ObjectInputStream(bis);
+
             try {
-                _session = (StandardSession) manager.createSession();
+                _session = new StandardSession(manager);
                 _session.readObjectData(ois);
                 _session.setManager(manager);
             } finally {
-                if (ois != null) {
-                    try {
-                        ois.close();
-                        bis = null;
-                    } catch (IOException e) {
-                        ;
-                    }
+                try {
+                    ois.close();
+                    bis = null;
+                } catch (IOException e) {
+                    ;
                 }
             }
 
@@ -570,28 +581,40 @@ public class JDBCStore
      * @exception IOException if an input/output error occurs
      */
     public void remove(String id) throws IOException {
+        remove(new String[] { id });
+    }
+
+    /**
+     * Remove the Sessions with the specified session identifiers from
+     * this Store, if present, with one <code>DELETE</code> statement for
+     * every <code>REMOVE_BATCH</code> identifiers.
+     *
+     * @param ids Session identifiers of the Sessions to be removed
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void remove(String[] ids) throws IOException {
         Connection _conn = getConnection();
-        String removeSql = "DELETE FROM "+sessionTable+" WHERE "+
-            sessionIdCol+" = ?";
 
         if(_conn == null)
             return;
 
         try {
-            if(preparedRemoveSql == null)
-                preparedRemoveSql = _conn.prepareStatement(removeSql);
-
-            preparedRemoveSql.setString(1, id);
-            preparedRemoveSql.execute();
+            delete(_conn, ids);
         } catch(SQLException e) {
             log(sm.getString(getStoreName()+".SQLException", e));
+            close(_conn);
+            _conn = null;
         } finally {
             release(_conn);
             _conn = null;
         }
 
-        if (debug > 0)
-            log(sm.getString(getStoreName()+".removing", id, sessionTable));
+        if (debug > 0) {
+            for (int i = 0; i < ids.length; i++)
+                log(sm.getString(getStoreName()+".removing",
+                                 ids[i], sessionTable));
+        }
     }
 
     /**
@@ -601,19 +624,21 @@ public class JDBCStore
      */
     public void clear() throws IOException {
         Connection _conn = getConnection();
+        PreparedStatement stmt = null;
         String clearSql = "DELETE FROM ".concat(sessionTable);
 
         if(_conn == null)
             return;
 
         try {
-            if(preparedClearSql == null)
-                preparedClearSql = _conn.prepareStatement(clearSql);
-
-            preparedClearSql.execute();
+            stmt = _conn.prepareStatement(clearSql);
+            stmt.execute();
         } catch(SQLException e) {
             log(sm.getString(getStoreName()+".SQLException", e));
+            close(_conn);
+            _conn = null;
         } finally {
+            close(stmt);
             release(_conn);
             _conn = null;
         }
@@ -626,85 +651,159 @@ public class JDBCStore
      * @exception IOException if an input/output error occurs
      */
     public void save(Session session) throws IOException {
+        save(new Session[] { session });
+    }
+
+    /**
+     * Save the specified sessions to the Store, as one JDBC batch in a
+     * single transaction.
+     *
+     * @param sessions the sessions to be stored
+     * @exception IOException if an input/output error occurs, or if the
+     *  sessions could not be written to the database
+     */
+    public void save(Session[] sessions) throws IOException {
         String saveSql = "INSERT INTO "+sessionTable+" ("+
             sessionIdCol+", "+
             sessionDataCol+", "+
             sessionValidCol+", "+
             sessionMaxInactiveCol+", "+
             sessionLastAccessedCol+") VALUES (?, ?, ?, ?, ?)";
+        String[] ids = new String[sessions.length];
+        byte[][] data = new byte[sessions.length][];
+        PreparedStatement stmt = null;
+
+        // Serialize before taking a connection
+        for(int i = 0; i < sessions.length; i++) {
+            StandardSession session = (StandardSession) sessions[i];
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos =
+                new ObjectOutputStream(new BufferedOutputStream(bos));
+            long version = session.getVersion();
+            session.writeObjectData(oos);
+            oos.close();
+            ids[i] = session.getId();
+            data[i] = bos.toByteArray();
+            session.setEstimatedSize(data[i].length, version);
+        }
+
         Connection _conn = getConnection();
-        ObjectOutputStream oos = null;
-        ByteArrayOutputStream bos = null;
-        ByteArrayInputStream bis = null;
-        InputStream in = null;
 
         if(_conn == null)
-            return;
-
-        // If sessions already exist in DB, remove and insert again.
-        // TODO:
-        // * Check if ID exists in database and if so use UPDATE.
-        remove(session.getId());
+            throw new IOException
+                (sm.getString(getStoreName()+".checkConnectionDBReOpenFail"));
 
         try {
-            bos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+            _conn.setAutoCommit(false);
+
+            // If sessions already exist in DB, remove and insert again.
+            // TODO:
+            // * Check if ID exists in database and if so use UPDATE.
+            delete(_conn, ids);
+
+            stmt = _conn.prepareStatement(saveSql);
+            for(int i = 0; i < sessions.length; i++) {
+                stmt.setString(1, ids[i]);
+                stmt.setBinaryStream(2, new ByteArrayInputStream(data[i]),
+                                     data[i].length);
+                stmt.setString(3, sessions[i].isValid()?"1":"0");
+                stmt.setInt(4, sessions[i].getMaxInactiveInterval());
+                stmt.setLong(5, sessions[i].getLastAccessedTime());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            _conn.commit();
+            _conn.setAutoCommit(true);
+        } catch(SQLException e) {
+            log(sm.getString(getStoreName()+".SQLException", e));
+            try {
+                _conn.rollback();
+            } catch(SQLException f) {
+                ;
+            }
+            close(_conn);
+            _conn = null;
+            throw new IOException(e.toString());
+        } finally {
+            close(stmt);
+            release(_conn);
+            _conn = null;
+        }
 
-            ((StandardSession)session).writeObjectData(oos);
-            oos.close();
+        if (debug > 0) {
+            for (int i = 0; i < ids.length; i++)
+                log(sm.getString(getStoreName()+".saving",
+                                 ids[i], sessionTable));
+        }
+    }
 
-            byte[] obs = bos.toByteArray();
-            int size = obs.length;
-            bis = new ByteArrayInputStream(obs, 0, size);
-            in = new BufferedInputStream(bis, size);
+    // --------------------------------------------------------- Protected Methods
+
+    /**
+     * Return the identifiers of the Sessions which have expired as of the
+     * specified time, selected from the maxinactive and lastaccess columns
+     * so that only those Sessions need to be loaded.
+     *
+     * @param timeNow Current time
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected String[] expirationCandidates(long timeNow) throws IOException {
+        String expiredSql = "SELECT "+sessionIdCol+" FROM "+sessionTable+
+            " WHERE "+sessionMaxInactiveCol+" >= 0 AND (? - "+
+            sessionLastAccessedCol+") / 1000 >= "+sessionMaxInactiveCol;
+        Connection _conn = getConnection();
+        String keys[] = null;
 
-            if(preparedSaveSql == null)
-                preparedSaveSql = _conn.prepareStatement(saveSql);
+        if(_conn == null)
+            return(new String[0]);
 
-            preparedSaveSql.setString(1, session.getId());
-            preparedSaveSql.setBinaryStream(2, in, size);
-            preparedSaveSql.setString(3, session.isValid()?"1":"0");
-            preparedSaveSql.setInt(4, session.getMaxInactiveInterval());
-            preparedSaveSql.setLong(5, session.getLastAccessedTime());
-            preparedSaveSql.execute();
+        try {
+            keys = select(_conn, expiredSql, new Long(timeNow));
         } catch(SQLException e) {
+            // Fall back to checking every session
             log(sm.getString(getStoreName()+".SQLException", e));
-        } catch (IOException e) {
-            ;
+            close(_conn);
+            _conn = null;
         } finally {
-            if(bis != null)
-                bis.close();
-
-            if(in != null)
-                in.close();
-
-            bis = null;
-            bos = null;
-            oos = null;
-            in = null;
-
             release(_conn);
             _conn = null;
         }
-        if (debug > 0)
-            log(sm.getString(getStoreName()+".saving",
-                             session.getId(), sessionTable));
-    }
 
-    // --------------------------------------------------------- Protected Methods
+        if(keys == null)
+            keys = super.expirationCandidates(timeNow);
+        return(keys);
+    }
 
     /**
-     * Check the connection associated with this store, if it's
-     * <code>null</code> or closed try to reopen it.
+     * Return a connection to the database, drawn from the DataSource if
+     * one is configured, and otherwise from the idle connections of this
+     * Store, opening a new one if there are none left.  Every connection
+     * must be given back with <code>release()</code>.
      * Returns <code>null</code> if the connection could not be established.
      *
      * @return <code>Connection</code> if the connection suceeded
      */
     protected Connection getConnection(){
+        Connection conn = null;
+
         try {
-            if(conn == null || conn.isClosed()) {
+            if(dataSource != null)
+                return(dataSource.getConnection());
+
+            synchronized(connections) {
+                while(conn == null && !connections.isEmpty()) {
+                    conn = (Connection) connections.removeFirst();
+                    if(conn.isClosed()) {
+                        if (debug > 0)
+                            log(sm.getString(getStoreName()+".checkConnectionDBClosed"));
+                        conn = null;
+                    }
+                }
+            }
+
+            if(conn == null) {
                 Class.forName(driverName);
-                log(sm.getString(getStoreName()+".checkConnectionDBClosed"));
                 conn = DriverManager.getConnection(connString);
                 conn.setAutoCommit(true);
 
@@ -723,23 +822,50 @@ public class JDBCStore
     }
 
     /**
-     * Release the connection, not needed here since the
-     * connection is not associated with a connection pool.
+     * Give back a connection obtained from <code>getConnection()</code>.
+     * Connections drawn from the DataSource are closed, which returns them
+     * to its pool; connections opened by this Store are kept open for the
+     * next operation, up to <code>maxIdleConnections</code>.
      *
      * @param conn The connection to be released
      */
     protected void release(Connection conn) {
-        ;
+        if(conn == null)
+            return;
+
+        if(dataSource == null) {
+            synchronized(connections) {
+                if(connections.size() < maxIdleConnections) {
+                    connections.addFirst(conn);
+                    return;
+                }
+            }
+        }
+
+        close(conn);
     }
 
     /**
      * Called once when this Store is first started.
      */
     public void start() throws LifecycleException {
+        // Look up the DataSource, while our naming context is bound
+        if(dataSourceName != null) {
+            try {
+                Context envCtx =
+                    (Context) new InitialContext().lookup("java:comp/env");
+                this.dataSource = (DataSource) envCtx.lookup(dataSourceName);
+            } catch (NamingException e) {
+                throw new LifecycleException
+                    (sm.getString(getStoreName()+".dataSourceNotFound",
+                                  dataSourceName), e);
+            }
+        }
+
         super.start();
 
         // Open connection to the database
-        this.conn = getConnection();
+        release(getConnection());
     }
 
     /**
@@ -751,74 +877,124 @@ public class JDBCStore
         super.stop();
 
         // Close and release everything associated with our db.
-        if(conn != null) {
-            try {
-                conn.commit();
-            } catch (SQLException e) {
-                ;
-            }
+        synchronized(connections) {
+            while(!connections.isEmpty())
+                close((Connection) connections.removeFirst());
+        }
+        this.dataSource = null;
+    }
 
-            if( preparedSizeSql != null ) {
-                try {
-                    preparedSizeSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
-            }
+    // --------------------------------------------------------- Private Methods
 
-            if( preparedKeysSql != null ) { 
-                try {
-                    preparedKeysSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
+    /**
+     * Delete the rows of the specified sessions, with one statement for
+     * every <code>REMOVE_BATCH</code> identifiers.
+     */
+    private void delete(Connection _conn, String[] ids) throws SQLException {
+        for(int i = 0; i < ids.length; i += REMOVE_BATCH) {
+            int n = Math.min(REMOVE_BATCH, ids.length - i);
+            StringBuffer removeSql = new StringBuffer("DELETE FROM ");
+            removeSql.append(sessionTable).append(" WHERE ");
+            removeSql.append(sessionIdCol);
+            if(n == 1) {
+                removeSql.append(" = ?");
+            } else {
+                removeSql.append(" IN (?");
+                for(int j = 1; j < n; j++)
+                    removeSql.append(", ?");
+                removeSql.append(")");
             }
 
-            if( preparedSaveSql != null ) { 
-                try {
-                    preparedSaveSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
+            PreparedStatement stmt =
+                _conn.prepareStatement(removeSql.toString());
+            try {
+                for(int j = 0; j < n; j++)
+                    stmt.setString(j + 1, ids[i + j]);
+                stmt.execute();
+            } finally {
+                close(stmt);
             }
+        }
+    }
 
-            if( preparedClearSql != null ) { 
-                try {
-                    preparedClearSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
-            }
+    /**
+     * Return the session identifiers selected by the specified query,
+     * binding <code>timeNow</code> to its parameter if not
+     * <code>null</code>.
+     */
+    private String[] select(Connection _conn, String sql, Long timeNow)
+        throws SQLException {
+        PreparedStatement stmt = _conn.prepareStatement(sql);
+        ResultSet rst = null;
+        ArrayList keys = new ArrayList();
 
-            if( preparedRemoveSql != null ) { 
-                try {
-                    preparedRemoveSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
-            }
+        try {
+            if(timeNow != null)
+                stmt.setLong(1, timeNow.longValue());
+            rst = stmt.executeQuery();
+            while(rst.next())
+                keys.add(rst.getString(1));
+        } finally {
+            close(rst);
+            close(stmt);
+        }
 
-            if( preparedLoadSql != null ) { 
-                try {
-                    preparedLoadSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
-            }
+        return((String[]) keys.toArray(new String[keys.size()]));
+    }
 
-            try {
+    /**
+     * Read the specified stream fully, and close it.
+     */
+    private byte[] read(InputStream in) throws IOException {
+        if(in == null)
+            return(null);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        try {
+            int n;
+            while((n = in.read(buf)) >= 0)
+                bos.write(buf, 0, n);
+        } finally {
+            in.close();
+        }
+
+        return(bos.toByteArray());
+    }
+
+    /**
+     * Close the specified connection, ignoring any error.
+     */
+    private void close(Connection conn) {
+        try {
+            if(conn != null)
                 conn.close();
-            } catch (SQLException e) {
-                ;
-            }
+        } catch(SQLException e) {
+            ;
+        }
+    }
 
-            this.preparedSizeSql = null;
-            this.preparedKeysSql = null;
-            this.preparedSaveSql = null;
-            this.preparedClearSql = null;
-            this.preparedRemoveSql = null;
-            this.preparedLoadSql = null;
-            this.conn = null;
+    /**
+     * Close the specified statement, ignoring any error.
+     */
+    private void close(Statement stmt) {
+        try {
+            if(stmt != null)
+                stmt.close();
+        } catch(SQLException e) {
+            ;
+        }
+    }
+
+    /**
+     * Close the specified result set, ignoring any error.
+     */
+    private void close(ResultSet rst) {
+        try {
+            if(rst != null)
+                rst.close();
+        } catch(SQLException e) {
+            ;
         }
     }
 }
@@ -71,8 +71,8 @@ import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.catalina.Container;
 import org.apache.catalina.DefaultContext;
 import org.apache.catalina.Engine;
@@ -159,6 +159,13 @@ public abstract class ManagerBase implements Manager {
     protected String entropy = null;
 
 
+    /**
+     * The active sessions of this Manager, ordered by expiration time.
+     */
+    private final SessionExpirationQueue expirations =
+        new SessionExpirationQueue();
+
+
     /**
      * The descriptive information string for this implementation.
      */
@@ -191,6 +198,21 @@ public abstract class ManagerBase implements Manager {
     protected String randomClass = "java.security.SecureRandom";
 
 
+    /**
+     * Number of random number generators created, mixed in their seed so
+     * that generators seeded at the same time do not produce the same
+     * sequence.
+     */
+    private static long seeds = 0;
+
+
+    /**
+     * The generator of session identifiers.
+     */
+    private final SessionIdGenerator sessionIdGenerator =
+        new SessionIdGenerator(this);
+
+
     /**
      * The set of previously recycled Sessions for this Manager.
      */
@@ -199,9 +221,11 @@ public abstract class ManagerBase implements Manager {
 
     /**
      * The set of currently active Sessions for this Manager, keyed by
-     * session identifier.
+     * session identifier.  Lookups never block, and iterations are weakly
+     * consistent:  they reflect the sessions present when the iteration
+     * started, and may or may not reflect later additions and removals.
      */
-    protected HashMap sessions = new HashMap();
+    protected ConcurrentHashMap sessions = new ConcurrentHashMap();
 
 
     /**
@@ -239,6 +263,7 @@ public abstract class ManagerBase implements Manager {
 
         String oldAlgorithm = this.algorithm;
         this.algorithm = algorithm;
+        sessionIdGenerator.reset();
         support.firePropertyChange("algorithm", oldAlgorithm, this.algorithm);
 
     }
@@ -321,24 +346,8 @@ public abstract class ManagerBase implements Manager {
      */
     public synchronized MessageDigest getDigest() {
 
-        if (this.digest == null) {
-            if (debug >= 1)
-                log(sm.getString("managerBase.getting", algorithm));
-            try {
-                this.digest = MessageDigest.getInstance(algorithm);
-            } catch (NoSuchAlgorithmException e) {
-                log(sm.getString("managerBase.digest", algorithm), e);
-                try {
-                    this.digest = MessageDigest.getInstance(DEFAULT_ALGORITHM);
-                } catch (NoSuchAlgorithmException f) {
-                    log(sm.getString("managerBase.digest",
-                                     DEFAULT_ALGORITHM), e);
-                    this.digest = null;
-                }
-            }
-            if (debug >= 1)
-                log(sm.getString("managerBase.gotten"));
-        }
+        if (this.digest == null)
+            this.digest = createDigest();
 
         return (this.digest);
 
@@ -398,6 +407,7 @@ public abstract class ManagerBase implements Manager {
 
         String oldEntropy = entropy;
         this.entropy = entropy;
+        sessionIdGenerator.reset();
         support.firePropertyChange("entropy", oldEntropy, this.entropy);
 
     }
@@ -460,39 +470,58 @@ public abstract class ManagerBase implements Manager {
      */
     public synchronized Random getRandom() {
 
-        if (this.random == null) {
-            synchronized (this) {
-                if (this.random == null) {
-                    // Calculate the new random number generator seed
-                    log(sm.getString("managerBase.seeding", randomClass));
-                    long seed = System.currentTimeMillis();
-                    char entropy[] = getEntropy().toCharArray();
-                    for (int i = 0; i < entropy.length; i++) {
-                        long update = ((byte) entropy[i]) << ((i % 8) * 8);
-                        seed ^= update;
-                    }
-                    try {
-                        // Construct and seed a new random number generator
-                        Class clazz = Class.forName(randomClass);
-                        this.random = (Random) clazz.newInstance();
-                        this.random.setSeed(seed);
-                    } catch (Exception e) {
-                        // Fall back to the simple case
-                        log(sm.getString("managerBase.random", randomClass),
-                            e);
-                        this.random = new java.util.Random();
-                        this.random.setSeed(seed);
-                    }
-                    log(sm.getString("managerBase.complete", randomClass));
-                }
-            }
-        }
+        if (this.random == null)
+            this.random = createRandom();
 
         return (this.random);
 
     }
 
 
+    /**
+     * Return the number of session identifiers generated by this Manager.
+     */
+    public long getSessionIdCount() {
+
+        return (sessionIdGenerator.getCount());
+
+    }
+
+
+    /**
+     * Return the longest time spent generating a session identifier, in
+     * microseconds.
+     */
+    public long getSessionIdMaxTime() {
+
+        return (sessionIdGenerator.getMaxTime());
+
+    }
+
+
+    /**
+     * Return the number of random number generators used to generate
+     * session identifiers, which is the peak number of identifiers
+     * generated concurrently.
+     */
+    public int getSessionIdSources() {
+
+        return (sessionIdGenerator.getSources());
+
+    }
+
+
+    /**
+     * Return the total time spent generating session identifiers, in
+     * microseconds.
+     */
+    public long getSessionIdTime() {
+
+        return (sessionIdGenerator.getTime());
+
+    }
+
+
     /**
      * Return the random number generator class name.
      */
@@ -512,6 +541,7 @@ public abstract class ManagerBase implements Manager {
 
         String oldRandomClass = this.randomClass;
         this.randomClass = randomClass;
+        sessionIdGenerator.reset();
         support.firePropertyChange("randomClass", oldRandomClass,
                                    this.randomClass);
 
@@ -528,9 +558,10 @@ public abstract class ManagerBase implements Manager {
      */
     public void add(Session session) {
 
-        synchronized (sessions) {
-            sessions.put(session.getId(), session);
-        }
+        Session previous = (Session) sessions.put(session.getId(), session);
+        if ((previous != null) && (previous != session))
+            expirations.cancel(previous);
+        expirations.schedule(session);
 
     }
 
@@ -613,10 +644,7 @@ public abstract class ManagerBase implements Manager {
 
         if (id == null)
             return (null);
-        synchronized (sessions) {
-            Session session = (Session) sessions.get(id);
-            return (session);
-        }
+        return ((Session) sessions.get(id));
 
     }
 
@@ -627,12 +655,7 @@ public abstract class ManagerBase implements Manager {
      */
     public Session[] findSessions() {
 
-        Session results[] = null;
-        synchronized (sessions) {
-            results = new Session[sessions.size()];
-            results = (Session[]) sessions.values().toArray(results);
-        }
-        return (results);
+        return ((Session[]) sessions.values().toArray(new Session[0]));
 
     }
 
@@ -644,9 +667,10 @@ public abstract class ManagerBase implements Manager {
      */
     public void remove(Session session) {
 
-        synchronized (sessions) {
-            sessions.remove(session.getId());
-        }
+        String id = session.getId();
+        if (id != null)
+            sessions.remove(id);
+        expirations.cancel(session);
 
     }
 
@@ -667,31 +691,97 @@ public abstract class ManagerBase implements Manager {
 
 
     /**
-     * Generate and return a new session identifier.
+     * Return the active sessions whose maximum inactive interval has
+     * elapsed as of the specified time.  Only the sessions due to expire
+     * are examined, rather than all the active sessions.
+     *
+     * @param timeNow Current time
      */
-    protected synchronized String generateSessionId() {
+    protected Session[] findExpiredSessions(long timeNow) {
+
+        return (expirations.expired(timeNow));
 
-        // Generate a byte array containing a session identifier
-        Random random = getRandom();
-        byte bytes[] = new byte[SESSION_ID_BYTES];
-        getRandom().nextBytes(bytes);
-        bytes = getDigest().digest(bytes);
+    }
 
-        // Render the result as a String of hexadecimal digits
-        StringBuffer result = new StringBuffer();
-        for (int i = 0; i < bytes.length; i++) {
-            byte b1 = (byte) ((bytes[i] & 0xf0) >> 4);
-            byte b2 = (byte) (bytes[i] & 0x0f);
-            if (b1 < 10)
-                result.append((char) ('0' + b1));
-            else
-                result.append((char) ('A' + (b1 - 10)));
-            if (b2 < 10)
-                result.append((char) ('0' + b2));
-            else
-                result.append((char) ('A' + (b2 - 10)));
+
+    /**
+     * Create and return a new MessageDigest to be used for calculating
+     * session identifiers, according to the <code>algorithm</code>
+     * property.  Return <code>null</code> if neither the requested nor the
+     * default algorithm is available.
+     */
+    protected MessageDigest createDigest() {
+
+        MessageDigest digest = null;
+        if (debug >= 1)
+            log(sm.getString("managerBase.getting", algorithm));
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            log(sm.getString("managerBase.digest", algorithm), e);
+            try {
+                digest = MessageDigest.getInstance(DEFAULT_ALGORITHM);
+            } catch (NoSuchAlgorithmException f) {
+                log(sm.getString("managerBase.digest",
+                                 DEFAULT_ALGORITHM), e);
+                digest = null;
+            }
         }
-        return (result.toString());
+        if (debug >= 1)
+            log(sm.getString("managerBase.gotten"));
+
+        return (digest);
+
+    }
+
+
+    /**
+     * Create, seed and return a new random number generator to be used for
+     * generating session identifiers, according to the
+     * <code>randomClass</code> and <code>entropy</code> properties.
+     */
+    protected Random createRandom() {
+
+        // Calculate the new random number generator seed
+        log(sm.getString("managerBase.seeding", randomClass));
+        long seed = System.currentTimeMillis();
+        synchronized (ManagerBase.class) {
+            seed ^= (++seeds) * 0x9E3779B97F4A7C15L;
+        }
+        seed ^= System.nanoTime();
+        char entropy[] = getEntropy().toCharArray();
+        for (int i = 0; i < entropy.length; i++) {
+            long update = ((byte) entropy[i]) << ((i % 8) * 8);
+            seed ^= update;
+        }
+
+        Random random = null;
+        try {
+            // Construct and seed a new random number generator
+            Class clazz = Class.forName(randomClass);
+            random = (Random) clazz.newInstance();
+            random.setSeed(seed);
+        } catch (Exception e) {
+            // Fall back to the simple case
+            log(sm.getString("managerBase.random", randomClass), e);
+            random = new java.util.Random();
+            random.setSeed(seed);
+        }
+        log(sm.getString("managerBase.complete", randomClass));
+
+        return (random);
+
+    }
+
+
+    /**
+     * Generate and return a new session identifier.  This method does not
+     * synchronize: concurrent callers are served by distinct random number
+     * generators (see <code>SessionIdGenerator</code>).
+     */
+    protected String generateSessionId() {
+
+        return (sessionIdGenerator.generate());
 
     }
 
@@ -728,6 +818,35 @@ public abstract class ManagerBase implements Manager {
     // -------------------------------------------------------- Package Methods
 
 
+    /**
+     * Notification that an attribute of the specified session was bound
+     * or removed by the application.  The default implementation does
+     * nothing.
+     *
+     * @param session Session whose attributes have changed
+     */
+    void changed(Session session) {
+
+        ;
+
+    }
+
+
+    /**
+     * Schedule again the expiration of the specified session, after its
+     * maximum inactive interval has changed.
+     *
+     * @param session Session whose expiration time has changed
+     */
+    void reschedule(Session session) {
+
+        String id = session.getId();
+        if ((id != null) && (sessions.get(id) == session))
+            expirations.schedule(session);
+
+    }
+
+
     /**
      * Log a message on the Logger associated with our Container (if any).
      *
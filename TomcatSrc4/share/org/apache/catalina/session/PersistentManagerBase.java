@@ -78,7 +78,10 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import javax.servlet.ServletContext;
 import org.apache.catalina.Container;
@@ -128,12 +131,33 @@ public abstract class PersistentManagerBase
     private static final String info = "PersistentManagerBase/1.0";
 
 
+    /**
+     * The estimated size (in bytes) of the active Sessions, as of the last
+     * time it was checked against <code>maxActiveBytes</code>.
+     */
+    private long activeBytes = 0;
+
+
     /**
      * The lifecycle event support for this component.
      */
     protected LifecycleSupport lifecycle = new LifecycleSupport(this);
 
 
+    /**
+     * The maximum number of active Sessions whose size is measured each
+     * time the size of the active Sessions is checked.
+     */
+    private static final int MAX_SIZE_SAMPLES = 256;
+
+
+    /**
+     * The maximum estimated size (in bytes) of the active Sessions, or -1
+     * for no limit.
+     */
+    private long maxActiveBytes = -1;
+
+
     /**
      * The maximum number of active Sessions allowed, or -1 for no limit.
      */
@@ -205,6 +229,26 @@ public abstract class PersistentManagerBase
     private int maxIdleSwap = -1;
 
 
+    /**
+     * Should sessions be written to the Store asynchronously, by a
+     * write-behind background thread?
+     */
+    private boolean writeBehind = false;
+
+
+    /**
+     * The maximum number of session writes which may be pending when
+     * writing behind.
+     */
+    private int maxPendingWrites = 1000;
+
+
+    /**
+     * The write-behind stage in front of our Store, if started.
+     */
+    private StoreWriter writer = null;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -376,6 +420,46 @@ public abstract class PersistentManagerBase
     }
 
 
+    /**
+     * Return the estimated size (in bytes) of the active Sessions, as of
+     * the last time it was checked against <code>maxActiveBytes</code>.
+     */
+    public long getActiveBytes() {
+
+        return (this.activeBytes);
+
+    }
+
+
+    /**
+     * Return the maximum estimated size (in bytes) of the active Sessions,
+     * or -1 for no limit.
+     */
+    public long getMaxActiveBytes() {
+
+        return (this.maxActiveBytes);
+
+    }
+
+
+    /**
+     * Set the maximum estimated size (in bytes) of the active Sessions, or
+     * -1 for no limit.  The size of a Session is estimated as the size of
+     * its serialized form.
+     *
+     * @param max The new maximum size
+     */
+    public void setMaxActiveBytes(long max) {
+
+        long oldMaxActiveBytes = this.maxActiveBytes;
+        this.maxActiveBytes = max;
+        support.firePropertyChange("maxActiveBytes",
+                                   new Long(oldMaxActiveBytes),
+                                   new Long(this.maxActiveBytes));
+
+    }
+
+
     /**
      * Return the maximum number of active Sessions allowed, or -1 for
      * no limit.
@@ -494,6 +578,124 @@ public abstract class PersistentManagerBase
     }
 
 
+    /**
+     * Return the maximum number of session writes which may be pending
+     * when writing behind.
+     */
+    public int getMaxPendingWrites() {
+
+        return (this.maxPendingWrites);
+
+    }
+
+
+    /**
+     * Set the maximum number of session writes which may be pending when
+     * writing behind.  When it is reached, swapping out and backing up
+     * sessions wait for the pending writes to complete.  Changes take
+     * effect the next time this Manager is started.
+     *
+     * @param maxPendingWrites The new maximum number of pending writes
+     */
+    public void setMaxPendingWrites(int maxPendingWrites) {
+
+        int oldMaxPendingWrites = this.maxPendingWrites;
+        this.maxPendingWrites = maxPendingWrites;
+        support.firePropertyChange("maxPendingWrites",
+                                   new Integer(oldMaxPendingWrites),
+                                   new Integer(this.maxPendingWrites));
+
+    }
+
+
+    /**
+     * Return the number of session saves merged into an already pending
+     * save.
+     */
+    public long getCoalescedWrites() {
+
+        StoreWriter writer = this.writer;
+        return (writer == null ? 0 : writer.getCoalescedCount());
+
+    }
+
+
+    /**
+     * Return the longest time (in milliseconds) between queueing a session
+     * write and completing it.
+     */
+    public long getMaxWriteTime() {
+
+        StoreWriter writer = this.writer;
+        return (writer == null ? 0 : writer.getMaxTime());
+
+    }
+
+
+    /**
+     * Return the number of session writes currently pending.
+     */
+    public int getPendingWrites() {
+
+        StoreWriter writer = this.writer;
+        return (writer == null ? 0 : writer.getPendingCount());
+
+    }
+
+
+    /**
+     * Return the number of session writes completed by the write-behind
+     * background thread.
+     */
+    public long getWriteCount() {
+
+        StoreWriter writer = this.writer;
+        return (writer == null ? 0 : writer.getWriteCount());
+
+    }
+
+
+    /**
+     * Return the total time (in milliseconds) between queueing session
+     * writes and completing them.
+     */
+    public long getWriteTime() {
+
+        StoreWriter writer = this.writer;
+        return (writer == null ? 0 : writer.getTime());
+
+    }
+
+
+    /**
+     * Return the write-behind flag.
+     */
+    public boolean getWriteBehind() {
+
+        return (this.writeBehind);
+
+    }
+
+
+    /**
+     * Set the write-behind flag.  If set, sessions swapped out, backed up
+     * or removed are written to the Store by a background thread, and
+     * pending writes are flushed when this Manager is stopped.  Changes take
+     * effect the next time this Manager is started.
+     *
+     * @param writeBehind The new write-behind flag
+     */
+    public void setWriteBehind(boolean writeBehind) {
+
+        boolean oldWriteBehind = this.writeBehind;
+        this.writeBehind = writeBehind;
+        support.firePropertyChange("writeBehind",
+                                   new Boolean(oldWriteBehind),
+                                   new Boolean(this.writeBehind));
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -524,6 +726,7 @@ public abstract class PersistentManagerBase
 
             processMaxIdleSwaps();
             processMaxActiveSwaps();
+            processMaxActiveBytesSwaps();
             processMaxIdleBackups();
 
     }
@@ -617,7 +820,10 @@ public abstract class PersistentManagerBase
 
         String[] ids = null;
         try {
-            ids = store.keys();
+            if (writer != null)
+                ids = writer.keys();
+            else
+                ids = store.keys();
         } catch (IOException e) {
             log("Can't load sessions from store, " + e.getMessage(), e);
             return;
@@ -650,7 +856,9 @@ public abstract class PersistentManagerBase
 
         super.remove (session);
 
-        if (store != null)
+        if (writer != null)
+            writer.remove(session.getId());
+        else if (store != null)
             try {
                 store.remove(session.getId());
             } catch (IOException e) {
@@ -711,7 +919,10 @@ public abstract class PersistentManagerBase
 
         Session session = null;
         try {
-            session = store.load(id);
+            if (writer != null)
+                session = writer.load(id);
+            else
+                session = store.load(id);
         } catch (ClassNotFoundException e) {
             log(sm.getString("persistentManager.deserializeError", id, e));
             throw new IllegalStateException
@@ -721,6 +932,10 @@ public abstract class PersistentManagerBase
         if (session == null)
             return (null);
 
+        // A session the writer could not swap out is active already
+        if (super.findSession(id) == session)
+            return (session);
+
         if (!session.isValid()
                 || isSessionStale(session, System.currentTimeMillis())) {
             log("session swapped in is invalid or expired");
@@ -757,6 +972,15 @@ public abstract class PersistentManagerBase
             return;
 
         ((StandardSession)session).passivate();
+        if (writer != null) {
+            // The writer recycles the session once written, and hands it
+            // back if it is swapped in again before that
+            synchronized (writer) {
+                writer.save(session, true);
+                super.remove(session);
+            }
+            return;
+        }
         writeSession(session);
         super.remove(session);
         session.recycle();
@@ -776,6 +1000,11 @@ public abstract class PersistentManagerBase
                 isSessionStale(session, System.currentTimeMillis()))
             return;
 
+        if (writer != null) {
+            writer.save(session, false);
+            return;
+        }
+
         try {
             store.save(session);
         } catch (IOException e) {
@@ -857,6 +1086,12 @@ public abstract class PersistentManagerBase
         else if (store instanceof Lifecycle)
             ((Lifecycle)store).start();
 
+        // Start the write-behind thread
+        if ((store != null) && writeBehind) {
+            writer = new StoreWriter(this, store, maxPendingWrites);
+            writer.start("StoreWriter[" + container.getName() + "]");
+        }
+
         // Start the background reaper thread
         threadStart();
 
@@ -899,6 +1134,12 @@ public abstract class PersistentManagerBase
             }
         }
 
+        // Flush pending writes
+        if (writer != null) {
+            writer.stop();
+            writer = null;
+        }
+
         if (getStore() != null && getStore() instanceof Lifecycle)
             ((Lifecycle)getStore()).stop();
 
@@ -970,7 +1211,7 @@ public abstract class PersistentManagerBase
             return;
 
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
+        Session sessions[] = findExpiredSessions(timeNow);
 
         for (int i = 0; i < sessions.length; i++) {
             StandardSession session = (StandardSession) sessions[i];
@@ -991,15 +1232,15 @@ public abstract class PersistentManagerBase
         if (!isStarted() || maxIdleSwap < 0)
             return;
 
-        Session sessions[] = findSessions();
+        Iterator iterator = sessions.values().iterator();
         long timeNow = System.currentTimeMillis();
 
         // Swap out all sessions idle longer than maxIdleSwap
         // FIXME: What's preventing us from mangling a session during
         // a request?
         if (maxIdleSwap >= 0) {
-            for (int i = 0; i < sessions.length; i++) {
-                StandardSession session = (StandardSession) sessions[i];
+            while (iterator.hasNext()) {
+                StandardSession session = (StandardSession) iterator.next();
                 if (!session.isValid())
                     continue;
                 int timeIdle = // Truncate, do not round up
@@ -1029,30 +1270,32 @@ public abstract class PersistentManagerBase
         if (!isStarted() || getMaxActiveSessions() < 0)
             return;
 
-        Session sessions[] = findSessions();
+        int active = sessions.size();
 
         // FIXME: Smarter algorithm (LRU)
-        if (getMaxActiveSessions() >= sessions.length)
+        if (getMaxActiveSessions() >= active)
             return;
 
         if(debug > 0)
             log(sm.getString
                 ("persistentManager.tooManyActive",
-                 new Integer(sessions.length)));
+                 new Integer(active)));
 
-        int toswap = sessions.length - getMaxActiveSessions();
+        int toswap = active - getMaxActiveSessions();
         long timeNow = System.currentTimeMillis();
+        Iterator iterator = sessions.values().iterator();
 
-        for (int i = 0; i < sessions.length && toswap > 0; i++) {
+        while (iterator.hasNext() && toswap > 0) {
+            Session session = (Session) iterator.next();
             int timeIdle = // Truncate, do not round up
-                (int) ((timeNow - sessions[i].getLastAccessedTime()) / 1000L);
+                (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
             if (timeIdle > minIdleSwap) {
                 if(debug > 1)
                     log(sm.getString
                         ("persistentManager.swapTooManyActive",
-                         sessions[i].getId(), new Integer(timeIdle)));
+                         session.getId(), new Integer(timeIdle)));
                 try {
-                    swapOut(sessions[i]);
+                    swapOut(session);
                 } catch (IOException e) {
                     ;   // This is logged in writeSession()
                 }
@@ -1063,6 +1306,94 @@ public abstract class PersistentManagerBase
     }
 
 
+    /**
+     * Swap the least recently accessed sessions out to Store if the
+     * estimated size of the active sessions exceeds maxActiveBytes.
+     */
+    protected void processMaxActiveBytesSwaps() {
+
+        if (!isStarted() || getMaxActiveBytes() < 0)
+            return;
+
+        // Measure the sessions changed since they were last measured, up to
+        // MAX_SIZE_SAMPLES of them, and count the others with the size they
+        // had then, or the average size if they were never measured
+        Session sessions[] = findSessions();
+        int sizes[] = new int[sessions.length];
+        long measured = 0;
+        int count = 0;
+        int samples = 0;
+        for (int i = 0; i < sessions.length; i++) {
+            StandardSession session = (StandardSession) sessions[i];
+            if (((session.getEstimatedSize() < 0)
+                 || (session.getEstimatedVersion() != session.getVersion()))
+                && (samples < MAX_SIZE_SAMPLES)) {
+                measure(session);
+                samples++;
+            }
+            sizes[i] = session.getEstimatedSize();
+            if (sizes[i] >= 0) {
+                measured += sizes[i];
+                count++;
+            }
+        }
+        int average = (count == 0) ? 0 : (int) (measured / count);
+        long total = 0;
+        for (int i = 0; i < sessions.length; i++) {
+            if (sizes[i] < 0)
+                sizes[i] = average;
+            total += sizes[i];
+        }
+        activeBytes = total;
+        if (total <= getMaxActiveBytes())
+            return;
+
+        if(debug > 0)
+            log(sm.getString
+                ("persistentManager.tooManyActiveBytes",
+                 new Long(total)));
+
+        // Swap out the least recently accessed sessions first, ordered as
+        // of now since they may be accessed meanwhile
+        final long accessed[] = new long[sessions.length];
+        Integer order[] = new Integer[sessions.length];
+        for (int i = 0; i < sessions.length; i++) {
+            accessed[i] = sessions[i].getLastAccessedTime();
+            order[i] = new Integer(i);
+        }
+        Arrays.sort(order, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long a1 = accessed[((Integer) o1).intValue()];
+                long a2 = accessed[((Integer) o2).intValue()];
+                return ((a1 < a2) ? -1 : ((a1 == a2) ? 0 : 1));
+            }
+        });
+
+        long timeNow = System.currentTimeMillis();
+        for (int i = 0;
+             (i < order.length) && (total > getMaxActiveBytes()); i++) {
+            int j = order[i].intValue();
+            Session session = sessions[j];
+            int timeIdle = // Truncate, do not round up
+                (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
+            if (timeIdle > minIdleSwap) {
+                if(debug > 1)
+                    log(sm.getString
+                        ("persistentManager.swapTooManyActiveBytes",
+                         session.getId(), new Integer(timeIdle)));
+                try {
+                    swapOut(session);
+                } catch (IOException e) {
+                    continue;   // This is logged in writeSession()
+                }
+                total -= sizes[j];
+            }
+        }
+        activeBytes = total;
+
+    }
+
+
     /**
      * Back up idle sessions.
      */
@@ -1071,13 +1402,13 @@ public abstract class PersistentManagerBase
         if (!isStarted() || maxIdleBackup < 0)
             return;
 
-        Session sessions[] = findSessions();
+        Iterator iterator = sessions.values().iterator();
         long timeNow = System.currentTimeMillis();
 
         // Back up all sessions idle longer than maxIdleBackup
         if (maxIdleBackup >= 0) {
-            for (int i = 0; i < sessions.length; i++) {
-                StandardSession session = (StandardSession) sessions[i];
+            while (iterator.hasNext()) {
+                StandardSession session = (StandardSession) iterator.next();
                 if (!session.isValid())
                     continue;
                 int timeIdle = // Truncate, do not round up
@@ -1100,6 +1431,37 @@ public abstract class PersistentManagerBase
     }
 
 
+    /**
+     * Measure the estimated size of the specified session, by serializing
+     * it whole and counting the bytes written.
+     *
+     * @param session The session to measure
+     */
+    private void measure(StandardSession session) {
+
+        final int count[] = new int[1];
+        OutputStream counter = new OutputStream() {
+            public void write(int b) {
+                count[0]++;
+            }
+            public void write(byte b[], int off, int len) {
+                count[0] += len;
+            }
+        };
+
+        long version = session.getVersion();
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(counter);
+            session.writeObjectData(oos);
+            oos.close();
+        } catch (IOException e) {
+            return;
+        }
+        session.setEstimatedSize(count[0], version);
+
+    }
+
+
     /**
      * Sleep for the duration specified by the <code>checkInterval</code>
      * property.
@@ -0,0 +1,1297 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+import javax.servlet.ServletContext;
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Globals;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
+import org.apache.catalina.util.CustomObjectInputStream;
+
+
+/**
+ * Concrete implementation of the <b>Store</b> interface that appends saved
+ * Sessions to a log of memory-mapped segment files in a configured
+ * directory.  Sessions that are saved are still subject to being expired
+ * based on inactivity.
+ * <p>
+ * Each save or removal appends a record to the newest segment; a new
+ * segment is created when the current one is full.  An index held in
+ * memory maps each session identifier to its latest record, along with
+ * the last accessed time and maximum inactive interval of the session, so
+ * that <code>keys()</code>, <code>getSize()</code> and the expiration check
+ * never scan the directory or read sessions which have not expired.
+ * Records carry a checksum: when the Store is started, the segments are
+ * read in order to rebuild the index, and a record which was only partially
+ * written (after a crash, for example) ends the segment it belongs to.
+ * Segments made mostly of superseded records are compacted by the
+ * background thread, which copies their live records to the newest
+ * segment and deletes them.
+ *
+ * @version $Revision$ $Date$
+ */
+
+public final class SegmentStore
+    extends StoreBase implements Store {
+
+
+    // ----------------------------------------------------- Constants
+
+
+    /**
+     * Percentage of superseded records above which a segment is compacted.
+     */
+    private static final int COMPACT_RATIO = 50;
+
+
+    /**
+     * Type of the records saving the changes made to a session since its
+     * previous record.
+     */
+    private static final byte DELTA = 3;
+
+
+    /**
+     * Size of the fixed part of a record payload: type, last accessed time,
+     * maximum inactive interval and length of the session identifier.
+     */
+    private static final int PAYLOAD_HEADER = 1 + 8 + 4 + 2;
+
+
+    /**
+     * Size of the record header: payload length and checksum.
+     */
+    private static final int RECORD_HEADER = 4 + 4;
+
+
+    /**
+     * Type of the records removing a session.
+     */
+    private static final byte REMOVE = 2;
+
+
+    /**
+     * Type of the records saving a session.
+     */
+    private static final byte SAVE = 1;
+
+
+    /**
+     * The extension to use for segment filenames.
+     */
+    private static final String SEGMENT_EXT = ".segment";
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The pathname of the directory in which Sessions are stored.
+     * This may be an absolute pathname, or a relative path that is
+     * resolved against the temporary work directory for this application.
+     */
+    private String directory = ".";
+
+
+    /**
+     * A File representing the directory in which Sessions are stored.
+     */
+    private File directoryFile = null;
+
+
+    /**
+     * Location of the latest record of each saved session, keyed by
+     * session identifier.
+     */
+    private HashMap index = new HashMap();
+
+
+    /**
+     * The descriptive information about this implementation.
+     */
+    private static final String info = "SegmentStore/1.0";
+
+
+    /**
+     * The maximum number of delta records saved for a session before it is
+     * saved whole again.  Zero by default, since an attribute changed in
+     * place is not written in a delta.
+     */
+    private int maxDeltas = 0;
+
+
+    /**
+     * Sequence number of the next segment.
+     */
+    private long nextSegment = 1;
+
+
+    /**
+     * The segments, oldest first, or <code>null</code> if they have not
+     * been opened yet.  The last one is the segment records are appended
+     * to.
+     */
+    private ArrayList segments = null;
+
+
+    /**
+     * The size (in bytes) of new segments.
+     */
+    private int segmentSize = 16 * 1024 * 1024;
+
+
+    /**
+     * Name to register for this Store, used for logging.
+     */
+    private static final String storeName = "segmentStore";
+
+
+    /**
+     * Name to register for the background thread.
+     */
+    private static final String threadName = "SegmentStore";
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the directory path for this Store.
+     */
+    public String getDirectory() {
+
+        return (directory);
+
+    }
+
+
+    /**
+     * Set the directory path for this Store.
+     *
+     * @param path The new directory path
+     */
+    public void setDirectory(String path) {
+
+        String oldDirectory = this.directory;
+        this.directory = path;
+        this.directoryFile = null;
+        support.firePropertyChange("directory", oldDirectory,
+                                   this.directory);
+
+    }
+
+
+    /**
+     * Return descriptive information about this Store implementation and
+     * the corresponding version number, in the format
+     * <code>&lt;description&gt;/&lt;version&gt;</code>.
+     */
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+
+    /**
+     * Return the maximum number of delta records saved for a session before
+     * it is saved whole again.
+     */
+    public int getMaxDeltas() {
+
+        return (maxDeltas);
+
+    }
+
+
+    /**
+     * Set the maximum number of delta records saved for a session before
+     * it is saved whole again.  Zero saves sessions whole every time.
+     *
+     * @param maxDeltas The new maximum number of delta records
+     */
+    public void setMaxDeltas(int maxDeltas) {
+
+        int oldMaxDeltas = this.maxDeltas;
+        this.maxDeltas = maxDeltas;
+        support.firePropertyChange("maxDeltas",
+                                   new Integer(oldMaxDeltas),
+                                   new Integer(this.maxDeltas));
+
+    }
+
+
+    /**
+     * Return the size (in bytes) of new segments.
+     */
+    public int getSegmentSize() {
+
+        return (segmentSize);
+
+    }
+
+
+    /**
+     * Set the size (in bytes) of new segments.  A session larger than this
+     * size is saved in a segment of its own.
+     *
+     * @param segmentSize The new segment size
+     */
+    public void setSegmentSize(int segmentSize) {
+
+        int oldSegmentSize = this.segmentSize;
+        this.segmentSize = segmentSize;
+        support.firePropertyChange("segmentSize",
+                                   new Integer(oldSegmentSize),
+                                   new Integer(this.segmentSize));
+
+    }
+
+
+    /**
+     * Return the thread name for this Store.
+     */
+    public String getThreadName() {
+
+        return (threadName);
+
+    }
+
+
+    /**
+     * Return the name for this Store, used for logging.
+     */
+    public String getStoreName() {
+
+        return (storeName);
+
+    }
+
+
+    /**
+     * Return the number of Sessions present in this Store.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public synchronized int getSize() throws IOException {
+
+        segments();
+        return (index.size());
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Remove all of the Sessions in this Store.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public synchronized void clear() throws IOException {
+
+        ArrayList segments = segments();
+        index.clear();
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = (Segment) segments.get(i);
+            segment.release();
+            segment.file.delete();
+        }
+        segments.clear();
+
+    }
+
+
+    /**
+     * Return an array containing the session identifiers of all Sessions
+     * currently saved in this Store.  If there are no such Sessions, a
+     * zero-length array is returned.
+     *
+     * @exception IOException if an input/output error occurred
+     */
+    public synchronized String[] keys() throws IOException {
+
+        segments();
+        return ((String[]) index.keySet().toArray(new String[index.size()]));
+
+    }
+
+
+    /**
+     * Load and return the Session associated with the specified session
+     * identifier from this Store, without removing it.  If there is no
+     * such stored Session, return <code>null</code>.
+     *
+     * @param id Session identifier of the session to load
+     *
+     * @exception ClassNotFoundException if a deserialization error occurs
+     * @exception IOException if an input/output error occurs
+     */
+    public Session load(String id)
+        throws ClassNotFoundException, IOException {
+
+        // Copy the serialized session and its deltas out of their segments
+        byte[] data = null;
+        byte[] deltas[] = null;
+        synchronized (this) {
+            segments();
+            Location location = (Location) index.get(id);
+            if (location == null)
+                return (null);
+            data = location.data();
+            int n = (location.deltas == null) ? 0 : location.deltas.size();
+            deltas = new byte[n][];
+            for (int i = 0; i < n; i++)
+                deltas[i] = ((Location) location.deltas.get(i)).data();
+        }
+        if (debug >= 1) {
+            log(sm.getString(getStoreName()+".loading", id, directory));
+        }
+
+        StandardSession session = new StandardSession(manager);
+        ObjectInputStream ois = stream(data);
+        try {
+            session.readObjectData(ois);
+        } finally {
+            ois.close();
+        }
+        for (int i = 0; i < deltas.length; i++) {
+            ois = stream(deltas[i]);
+            try {
+                session.readDeltaData(ois);
+            } finally {
+                ois.close();
+            }
+        }
+        session.setManager(manager);
+        return (session);
+
+    }
+
+
+    /**
+     * Remove the Session with the specified session identifier from
+     * this Store, if present.  If no such Session is present, this method
+     * takes no action.
+     *
+     * @param id Session identifier of the Session to be removed
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void remove(String id) throws IOException {
+
+        byte[] record = record(REMOVE, id, 0L, -1, null);
+
+        synchronized (this) {
+            segments();
+            Location previous = (Location) index.remove(id);
+            if (previous == null)
+                return;
+            if (debug >= 1) {
+                log(sm.getString(getStoreName()+".removing", id, directory));
+            }
+            previous.retire();
+            append(record, id, 0L, -1);
+        }
+
+    }
+
+
+    /**
+     * Save the specified Session into this Store.  Any previously saved
+     * information for the associated session identifier is replaced.
+     *
+     * @param session Session to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void save(Session session) throws IOException {
+
+        StandardSession standardSession = (StandardSession) session;
+        String id = session.getId();
+
+        // Save only the changes made since the previous save if we can,
+        // unless the session has accumulated enough of them already
+        Location base = null;
+        long since = -1L;
+        synchronized (this) {
+            segments();
+            base = (Location) index.get(id);
+            if ((base != null) && (base.version >= 0L)
+                && (base.deltaCount() < maxDeltas)
+                && (base.deltaLength < base.dataLength))
+                since = base.version;
+        }
+
+        while (true) {
+
+            // Serialize the session before locking the store
+            byte type = DELTA;
+            long version = -1L;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos =
+                new ObjectOutputStream(new BufferedOutputStream(bos));
+            try {
+                if (since >= 0L)
+                    version = standardSession.writeDeltaData(oos, since);
+                if (version < 0L) {
+                    type = SAVE;
+                    version = standardSession.getVersion();
+                    standardSession.writeObjectData(oos);
+                }
+            } finally {
+                oos.close();
+            }
+            if (type == SAVE)
+                standardSession.setEstimatedSize(bos.size(), version);
+            long lastAccessedTime = session.getLastAccessedTime();
+            int maxInactiveInterval = session.getMaxInactiveInterval();
+            byte[] record = record(type, id, lastAccessedTime,
+                                   maxInactiveInterval, bos.toByteArray());
+
+            synchronized (this) {
+                segments();
+                Location previous = (Location) index.get(id);
+                if ((type == DELTA)
+                    && ((previous != base) || (previous.version != since))) {
+                    // Saved concurrently, save it whole instead
+                    since = -1L;
+                    continue;
+                }
+                if (debug >= 1) {
+                    log(sm.getString(getStoreName()+".saving", id, directory));
+                }
+                Location location =
+                    append(record, id, lastAccessedTime, maxInactiveInterval);
+                location.segment.live += location.size;
+                if (type == DELTA) {
+                    base.delta(location);
+                    base.version = version;
+                } else {
+                    location.version = version;
+                    index.put(id, location);
+                    if (previous != null)
+                        previous.retire();
+                }
+            }
+            return;
+
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Lifecycle Methods
+
+
+    /**
+     * Prepare for the beginning of active use of the public methods of this
+     * component, recovering the Sessions saved in the segments found in our
+     * directory.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    public void start() throws LifecycleException {
+
+        super.start();
+        try {
+            synchronized (this) {
+                segments();
+            }
+        } catch (IOException e) {
+            throw new LifecycleException(e);
+        }
+
+    }
+
+
+    /**
+     * Gracefully terminate the active use of the public methods of this
+     * component, flushing the segments to disk.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    public void stop() throws LifecycleException {
+
+        super.stop();
+        synchronized (this) {
+            if (segments == null)
+                return;
+            if (!segments.isEmpty())
+                ((Segment) segments.get(segments.size() - 1)).buffer.force();
+            index.clear();
+            for (int i = 0; i < segments.size(); i++)
+                ((Segment) segments.get(i)).release();
+            segments = null;
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the identifiers of the Sessions which have expired as of the
+     * specified time, according to the index.
+     *
+     * @param timeNow Current time
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected synchronized String[] expirationCandidates(long timeNow)
+        throws IOException {
+
+        segments();
+        ArrayList results = new ArrayList();
+        Iterator locations = index.values().iterator();
+        while (locations.hasNext()) {
+            Location location = (Location) locations.next();
+            if (location.maxInactiveInterval < 0)
+                continue;
+            int timeIdle = // Truncate, do not round up
+                (int) ((timeNow - location.lastAccessedTime) / 1000L);
+            if (timeIdle >= location.maxInactiveInterval)
+                results.add(location.id);
+        }
+        return ((String[]) results.toArray(new String[results.size()]));
+
+    }
+
+
+    /**
+     * Expire the Sessions saved in this Store, then compact the segments
+     * made mostly of superseded records.
+     */
+    protected void processExpires() {
+
+        super.processExpires();
+        if (!started)
+            return;
+        try {
+            compact();
+        } catch (IOException e) {
+            log(sm.getString(getStoreName()+".compactError", e));
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Append a record to the newest segment, creating a new segment if
+     * it does not fit.  The caller must own the monitor of this Store.
+     *
+     * @param record The complete record
+     * @param id Session identifier of the record
+     * @param lastAccessedTime Last accessed time of the session
+     * @param maxInactiveInterval Maximum inactive interval of the session
+     */
+    private Location append(byte[] record, String id, long lastAccessedTime,
+                            int maxInactiveInterval) throws IOException {
+
+        Segment segment = null;
+        if (!segments.isEmpty())
+            segment = (Segment) segments.get(segments.size() - 1);
+        if ((segment == null)
+            || (segment.end + record.length > segment.capacity)) {
+            if (segment != null)
+                segment.buffer.force();
+            segment = create(Math.max(segmentSize, record.length));
+        }
+
+        ByteBuffer out = segment.buffer.duplicate();
+        out.position(segment.end);
+        out.put(record);
+        // Mark the end of the log, in case stale data follows
+        if (out.remaining() >= 4)
+            out.putInt(0);
+
+        Location location =
+            new Location(id, segment, segment.end, record.length,
+                         lastAccessedTime, maxInactiveInterval);
+        segment.end += record.length;
+        return (location);
+
+    }
+
+
+    /**
+     * Compact, oldest first, the segments (other than the newest) whose
+     * records have mostly been superseded.  Live records are appended to
+     * the newest segment, along with the other records of their session so
+     * that its delta records keep following the record they apply to;
+     * removal records are kept as long as an older segment may contain a
+     * record they supersede.
+     */
+    private void compact() throws IOException {
+
+        int n = 0;
+        synchronized (this) {
+            n = segments().size() - 1;
+        }
+
+        for (int i = 0; i < n; i++) {
+            synchronized (this) {
+                if (segments == null)
+                    return;
+
+                // Find the oldest segment worth compacting
+                Segment victim = null;
+                for (int j = 0; j < segments.size() - 1; j++) {
+                    Segment segment = (Segment) segments.get(j);
+                    if ((segment.end - segment.live) * 100L
+                        >= segment.end * (long) COMPACT_RATIO) {
+                        victim = segment;
+                        break;
+                    }
+                }
+                if (victim == null)
+                    return;
+                boolean oldest = (victim == segments.get(0));
+                if (debug >= 1)
+                    log(sm.getString(getStoreName()+".compacting",
+                                     victim.file.getName()));
+
+                // Copy its live records to the newest segment
+                int first = segments.size() - 1;
+                int position = 0;
+                while (position < victim.end) {
+                    Record record = read(victim, position, false);
+                    if (record == null)
+                        break;
+                    if (record.type != REMOVE) {
+                        Location location = (Location) index.get(record.id);
+                        if ((location != null)
+                            && location.contains(victim, position)) {
+                            index.put(record.id, copy(location));
+                            location.retire();
+                        }
+                    } else if (!oldest && !index.containsKey(record.id)) {
+                        append(record.bytes, record.id, 0L, -1);
+                    }
+                    position += record.bytes.length;
+                }
+
+                // The copies must be on disk before the victim is deleted
+                for (int j = first; j < segments.size(); j++)
+                    ((Segment) segments.get(j)).buffer.force();
+                segments.remove(victim);
+                victim.release();
+                victim.file.delete();
+            }
+        }
+
+    }
+
+
+    /**
+     * Append a copy of the records of a saved session to the newest
+     * segment, and return the location of the copy.  The caller must own
+     * the monitor of this Store.
+     */
+    private Location copy(Location location) throws IOException {
+
+        Record record = read(location.segment, location.offset, false);
+        Location copy = append(record.bytes, location.id,
+                               location.lastAccessedTime,
+                               location.maxInactiveInterval);
+        copy.segment.live += copy.size;
+        copy.version = location.version;
+        for (int i = 0; i < location.deltaCount(); i++) {
+            Location delta = (Location) location.deltas.get(i);
+            record = read(delta.segment, delta.offset, false);
+            Location deltaCopy =
+                append(record.bytes, location.id, record.lastAccessedTime,
+                       record.maxInactiveInterval);
+            deltaCopy.segment.live += deltaCopy.size;
+            copy.delta(deltaCopy);
+        }
+        return (copy);
+
+    }
+
+
+    /**
+     * Create a new segment of the specified capacity, and make it the
+     * newest one.  The caller must own the monitor of this Store.
+     */
+    private Segment create(int capacity) throws IOException {
+
+        String name = String.valueOf(nextSegment++);
+        while (name.length() < 12)
+            name = "0" + name;
+        File file = new File(directory(), name + SEGMENT_EXT);
+        Segment segment = map(file, capacity);
+        segments.add(segment);
+        return (segment);
+
+    }
+
+
+    /**
+     * Return a File object representing the pathname to our
+     * session persistence directory, if any.  The directory will be
+     * created if it does not already exist.
+     */
+    private File directory() {
+
+        if (this.directory == null) {
+            return (null);
+        }
+        if (this.directoryFile != null) {
+            // NOTE:  Race condition is harmless, so do not synchronize
+            return (this.directoryFile);
+        }
+        File file = new File(this.directory);
+        if (!file.isAbsolute()) {
+            Container container = manager.getContainer();
+            if (container instanceof Context) {
+                ServletContext servletContext =
+                    ((Context) container).getServletContext();
+                File work = (File)
+                    servletContext.getAttribute(Globals.WORK_DIR_ATTR);
+                file = new File(work, this.directory);
+            } else {
+                throw new IllegalArgumentException
+                    ("Parent Container is not a Context");
+            }
+        }
+        if (!file.exists() || !file.isDirectory()) {
+            file.delete();
+            file.mkdirs();
+        }
+        this.directoryFile = file;
+        return (file);
+
+    }
+
+
+    /**
+     * Map the specified file, sized to the specified capacity.
+     */
+    private Segment map(File file, int capacity) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < capacity)
+                raf.setLength(capacity);
+            MappedByteBuffer buffer =
+                raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                     0, capacity);
+            return (new Segment(file, buffer, capacity));
+        } finally {
+            raf.close();
+        }
+
+    }
+
+
+    /**
+     * Return an object input stream reading the specified serialized data
+     * with the class loader of our Container, if any.
+     */
+    private ObjectInputStream stream(byte[] data) throws IOException {
+
+        Loader loader = null;
+        ClassLoader classLoader = null;
+        Container container = manager.getContainer();
+        if (container != null)
+            loader = container.getLoader();
+        if (loader != null)
+            classLoader = loader.getClassLoader();
+        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        if (classLoader != null)
+            return (new CustomObjectInputStream(bis, classLoader));
+        else
+            return (new ObjectInputStream(bis));
+
+    }
+
+
+    /**
+     * Read the record at the specified position of a segment, or return
+     * <code>null</code> if there is no valid record at this position.
+     *
+     * @param segment Segment to read
+     * @param position Offset of the record in the segment
+     * @param verify Should the checksum of the record be verified?
+     */
+    private Record read(Segment segment, int position, boolean verify) {
+
+        if (position + RECORD_HEADER > segment.capacity)
+            return (null);
+        ByteBuffer in = segment.buffer.duplicate();
+        int length = in.getInt(position);
+        if ((length < PAYLOAD_HEADER)
+            || (length > segment.capacity - position - RECORD_HEADER))
+            return (null);
+
+        byte[] bytes = new byte[RECORD_HEADER + length];
+        in.position(position);
+        in.get(bytes);
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        if (verify) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, RECORD_HEADER, length);
+            if (record.getInt(4) != (int) crc.getValue())
+                return (null);
+        }
+
+        record.position(RECORD_HEADER);
+        byte type = record.get();
+        long lastAccessedTime = record.getLong();
+        int maxInactiveInterval = record.getInt();
+        int idLength = record.getShort() & 0xffff;
+        if (idLength > record.remaining())
+            return (null);
+        String id = null;
+        try {
+            id = new String(bytes, record.position(), idLength, "UTF-8");
+        } catch (IOException e) {
+            return (null);
+        }
+        return (new Record(type, id, lastAccessedTime, maxInactiveInterval,
+                           bytes));
+
+    }
+
+
+    /**
+     * Build a complete record, including its header.
+     *
+     * @param type Type of the record
+     * @param id Session identifier
+     * @param lastAccessedTime Last accessed time of the session
+     * @param maxInactiveInterval Maximum inactive interval of the session
+     * @param data Serialized session, if any
+     */
+    private static byte[] record(byte type, String id, long lastAccessedTime,
+                                 int maxInactiveInterval, byte[] data)
+        throws IOException {
+
+        byte[] idBytes = id.getBytes("UTF-8");
+        int length = PAYLOAD_HEADER + idBytes.length
+            + ((data == null) ? 0 : data.length);
+        byte[] bytes = new byte[RECORD_HEADER + length];
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        record.position(RECORD_HEADER);
+        record.put(type);
+        record.putLong(lastAccessedTime);
+        record.putInt(maxInactiveInterval);
+        record.putShort((short) idBytes.length);
+        record.put(idBytes);
+        if (data != null)
+            record.put(data);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, RECORD_HEADER, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        return (bytes);
+
+    }
+
+
+    /**
+     * Return the segments, opening them and rebuilding the index the first
+     * time this method is called.  The caller must own the monitor of this
+     * Store.
+     */
+    private ArrayList segments() throws IOException {
+
+        if (segments != null)
+            return (segments);
+
+        ArrayList segments = new ArrayList();
+        index.clear();
+        File directory = directory();
+        String files[] = (directory == null) ? null : directory.list();
+        if (files == null)
+            files = new String[0];
+
+        // Segment names are zero padded sequence numbers
+        Arrays.sort(files);
+        int recovered = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].endsWith(SEGMENT_EXT))
+                continue;
+            long sequence = 0;
+            try {
+                sequence = Long.parseLong
+                    (files[i].substring(0, files[i].length()
+                                        - SEGMENT_EXT.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextSegment = Math.max(nextSegment, sequence + 1);
+            File file = new File(directory, files[i]);
+            Segment segment = map(file, (int) file.length());
+            segments.add(segment);
+
+            // Replay its records
+            int position = 0;
+            while (position < segment.capacity) {
+                Record record = read(segment, position, true);
+                if (record == null)
+                    break;
+                Location previous = null;
+                Location location =
+                    new Location(record.id, segment, position,
+                                 record.bytes.length,
+                                 record.lastAccessedTime,
+                                 record.maxInactiveInterval);
+                if (record.type == SAVE) {
+                    segment.live += location.size;
+                    previous = (Location) index.put(record.id, location);
+                } else if (record.type == DELTA) {
+                    // Superseded delta records may precede the record they
+                    // applied to, which is then missing or superseded too
+                    Location base = (Location) index.get(record.id);
+                    if (base != null) {
+                        segment.live += location.size;
+                        base.delta(location);
+                    }
+                } else {
+                    previous = (Location) index.remove(record.id);
+                }
+                if (previous != null)
+                    previous.retire();
+                position += record.bytes.length;
+                recovered++;
+            }
+            segment.end = position;
+            if ((position + RECORD_HEADER <= segment.capacity)
+                && (segment.buffer.getInt(position) != 0))
+                log(sm.getString(getStoreName()+".corrupted",
+                                 file.getName(), new Integer(position)));
+        }
+
+        if (debug >= 1)
+            log(sm.getString(getStoreName()+".recovered",
+                             new Integer(index.size()),
+                             new Integer(segments.size())));
+        this.segments = segments;
+        return (segments);
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * Location of a record of a saved session.  The location of the latest
+     * complete record of a session also holds the locations of the delta
+     * records which follow it.
+     */
+    private static final class Location {
+
+        Location(String id, Segment segment, int offset, int size,
+                 long lastAccessedTime, int maxInactiveInterval) {
+
+            this.id = id;
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.lastAccessedTime = lastAccessedTime;
+            this.maxInactiveInterval = maxInactiveInterval;
+            try {
+                this.dataOffset = offset + RECORD_HEADER + PAYLOAD_HEADER
+                    + id.getBytes("UTF-8").length;
+            } catch (IOException e) {
+                throw new IllegalStateException(e.toString());
+            }
+            this.dataLength = offset + size - dataOffset;
+
+        }
+
+        final String id;
+
+        final Segment segment;
+
+        final int offset;
+
+        final int size;
+
+        final int dataOffset;
+
+        final int dataLength;
+
+        long lastAccessedTime;
+
+        int maxInactiveInterval;
+
+        /**
+         * Locations of the delta records applying to this record, oldest
+         * first, or <code>null</code> if there are none.
+         */
+        ArrayList deltas = null;
+
+        /**
+         * Total data length of the delta records.
+         */
+        int deltaLength = 0;
+
+        /**
+         * Version of the session as saved by this record and its delta
+         * records, or <code>-1</code> if it is unknown.
+         */
+        long version = -1L;
+
+        /**
+         * Does this record, or one of its delta records, start at the
+         * specified position of the specified segment?
+         */
+        boolean contains(Segment segment, int position) {
+            if ((this.segment == segment) && (offset == position))
+                return (true);
+            for (int i = 0; i < deltaCount(); i++) {
+                Location delta = (Location) deltas.get(i);
+                if ((delta.segment == segment) && (delta.offset == position))
+                    return (true);
+            }
+            return (false);
+        }
+
+        /**
+         * Return the serialized data of this record.
+         */
+        byte[] data() {
+            byte[] data = new byte[dataLength];
+            ByteBuffer in = segment.buffer.duplicate();
+            in.position(dataOffset);
+            in.get(data);
+            return (data);
+        }
+
+        /**
+         * Add a delta record following this record.
+         */
+        void delta(Location delta) {
+            if (deltas == null)
+                deltas = new ArrayList();
+            deltas.add(delta);
+            deltaLength += delta.dataLength;
+            lastAccessedTime = delta.lastAccessedTime;
+            maxInactiveInterval = delta.maxInactiveInterval;
+        }
+
+        /**
+         * Return the number of delta records following this record.
+         */
+        int deltaCount() {
+            return ((deltas == null) ? 0 : deltas.size());
+        }
+
+        /**
+         * Account for this record and its delta records being superseded.
+         */
+        void retire() {
+            segment.live -= size;
+            for (int i = 0; i < deltaCount(); i++) {
+                Location delta = (Location) deltas.get(i);
+                delta.segment.live -= delta.size;
+            }
+        }
+
+    }
+
+
+    /**
+     * A record read from a segment.
+     */
+    private static final class Record {
+
+        Record(byte type, String id, long lastAccessedTime,
+               int maxInactiveInterval, byte[] bytes) {
+
+            this.type = type;
+            this.id = id;
+            this.lastAccessedTime = lastAccessedTime;
+            this.maxInactiveInterval = maxInactiveInterval;
+            this.bytes = bytes;
+
+        }
+
+        final byte type;
+
+        final String id;
+
+        final long lastAccessedTime;
+
+        final int maxInactiveInterval;
+
+        final byte[] bytes;
+
+    }
+
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static final class Segment {
+
+        Segment(File file, MappedByteBuffer buffer, int capacity) {
+
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+
+        }
+
+        final File file;
+
+        /**
+         * The mapping of the file, <code>null</code> once released.
+         */
+        MappedByteBuffer buffer;
+
+        final int capacity;
+
+        /**
+         * Offset of the end of the last record.
+         */
+        int end = 0;
+
+        /**
+         * Total size of the records which have not been superseded.
+         */
+        int live = 0;
+
+        /**
+         * Unmap the file now rather than when the buffer is garbage
+         * collected, so that its disk space is freed and, on platforms
+         * which do not delete mapped files, it can be deleted.  The caller
+         * must own the monitor of the Store, and nothing may read the
+         * segment afterwards.
+         */
+        void release() {
+
+            MappedByteBuffer buffer = this.buffer;
+            this.buffer = null;
+            if (buffer == null)
+                return;
+
+            // Java 9 and later
+            try {
+                Class clazz = Class.forName("sun.misc.Unsafe");
+                Field field = clazz.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                Method method = clazz.getMethod
+                    ("invokeCleaner", new Class[] { ByteBuffer.class });
+                method.invoke(field.get(null), new Object[] { buffer });
+                return;
+            } catch (Throwable t) {
+                ;
+            }
+
+            // Earlier versions
+            try {
+                Method method =
+                    buffer.getClass().getMethod("cleaner", new Class[0]);
+                method.setAccessible(true);
+                Object cleaner = method.invoke(buffer, new Object[0]);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean", new Class[0])
+                        .invoke(cleaner, new Object[0]);
+            } catch (Throwable t) {
+                ; // Left to the garbage collector
+            }
+
+        }
+
+    }
+
+
+}
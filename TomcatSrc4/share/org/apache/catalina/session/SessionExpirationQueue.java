@@ -0,0 +1,250 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+import org.apache.catalina.Session;
+
+
+/**
+ * Index of the sessions of a <code>ManagerBase</code>, ordered by the time
+ * at which they are due to expire, so that the background expiration check
+ * only examines the sessions whose maximum inactive interval may have
+ * elapsed instead of every active session.
+ * <p>
+ * Sessions are kept in buckets of one second, keyed by their expiration
+ * time as computed when they were scheduled.  Accessing a session does not
+ * move it: when its bucket comes due, the session is checked against its
+ * current last accessed time and maximum inactive interval, and is either
+ * reported as expired or scheduled again at its new expiration time.  Each
+ * active session is therefore examined about once per maximum inactive
+ * interval, and the cost of a check is proportional to the number of
+ * sessions actually due.  Only shortening the maximum inactive interval of
+ * a session requires it to be scheduled again immediately.
+ * <p>
+ * A session remembers the bucket it was last scheduled in; entries which
+ * do not match it anymore (because the session was scheduled again,
+ * removed or recycled) are dropped when their bucket comes due.
+ *
+ * @version $Revision$ $Date$
+ */
+
+final class SessionExpirationQueue {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Expiration slot of a session which is not scheduled.
+     */
+    static final long NONE = 0L;
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Lists of sessions keyed by expiration slot, in seconds.
+     */
+    private final TreeMap buckets = new TreeMap();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Stop tracking the specified session.
+     *
+     * @param session Session which is no longer active
+     */
+    void cancel(Session session) {
+
+        if (session instanceof StandardSession)
+            ((StandardSession) session).setExpirationSlot(NONE);
+
+    }
+
+
+    /**
+     * Return the sessions which have expired as of the specified time.
+     * Sessions which are due for a check but have been accessed since they
+     * were scheduled are scheduled again, and sessions which are reported
+     * are scheduled for another check in case their expiration fails.
+     *
+     * @param timeNow Current time
+     */
+    Session[] expired(long timeNow) {
+
+        long due = timeNow / 1000L;
+        ArrayList results = new ArrayList();
+
+        while (true) {
+
+            // Pick the next bucket due, without blocking scheduling
+            Long slot = null;
+            ArrayList bucket = null;
+            synchronized (this) {
+                if (buckets.isEmpty())
+                    break;
+                slot = (Long) buckets.firstKey();
+                if (slot.longValue() > due)
+                    break;
+                bucket = (ArrayList) buckets.remove(slot);
+            }
+
+            int n = bucket.size();
+            for (int i = 0; i < n; i++) {
+                StandardSession session = (StandardSession) bucket.get(i);
+                if (session.getExpirationSlot() != slot.longValue())
+                    continue;
+                int maxInactiveInterval = session.getMaxInactiveInterval();
+                if (!session.isValid() || (maxInactiveInterval < 0)) {
+                    session.setExpirationSlot(NONE);
+                    continue;
+                }
+                long expiration = session.getLastAccessedTime()
+                    + (maxInactiveInterval * 1000L);
+                if (expiration <= timeNow) {
+                    results.add(session);
+                    enqueue(session, due + 1);
+                } else {
+                    enqueue(session, Math.max(slot(expiration), due + 1));
+                }
+            }
+
+        }
+
+        return ((Session[]) results.toArray(new Session[results.size()]));
+
+    }
+
+
+    /**
+     * Schedule the specified session at its current expiration time, unless
+     * it is already scheduled at an earlier time, in which case it will be
+     * checked and scheduled again at that time.
+     *
+     * @param session Session to be scheduled
+     */
+    void schedule(Session session) {
+
+        if (!(session instanceof StandardSession))
+            return;
+        StandardSession standardSession = (StandardSession) session;
+
+        int maxInactiveInterval = session.getMaxInactiveInterval();
+        if (maxInactiveInterval < 0) {
+            standardSession.setExpirationSlot(NONE);
+            return;
+        }
+        long slot = slot(session.getLastAccessedTime()
+                         + (maxInactiveInterval * 1000L));
+        long current = standardSession.getExpirationSlot();
+        if ((current != NONE) && (current <= slot))
+            return;
+
+        enqueue(standardSession, slot);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Add the specified session to the bucket of the specified slot.
+     */
+    private void enqueue(StandardSession session, long slot) {
+
+        session.setExpirationSlot(slot);
+
+        Long key = new Long(slot);
+        synchronized (this) {
+            ArrayList bucket = (ArrayList) buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList();
+                buckets.put(key, bucket);
+            }
+            bucket.add(session);
+        }
+
+    }
+
+
+    /**
+     * Return the slot of the specified expiration time, which is the second
+     * containing that time.
+     */
+    private static long slot(long expiration) {
+
+        return (expiration / 1000L);
+
+    }
+
+
+}
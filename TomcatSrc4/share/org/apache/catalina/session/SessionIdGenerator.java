@@ -0,0 +1,359 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Generator of the session identifiers handed out by a
+ * <code>ManagerBase</code>.
+ * <p>
+ * Instead of a single random number generator and message digest guarded
+ * by the manager's monitor, the generator keeps a pool of sources, each of
+ * them owning its own random number generator, message digest and buffer of
+ * random bytes.  A thread borrows a source for the duration of a single
+ * identifier, so concurrent requests creating sessions never wait for each
+ * other; a new source is only created (and seeded) when all the existing
+ * ones are in use, so the size of the pool follows the peak number of
+ * threads generating identifiers at the same time.  Random bytes are
+ * fetched by batches, which amortizes the cost of the generator (and of
+ * the underlying entropy source for <code>SecureRandom</code>) over many
+ * identifiers.
+ * <p>
+ * The random number generator and message digest of the sources are
+ * created by the manager, according to its <code>randomClass</code> and
+ * <code>algorithm</code> properties.  Changing these properties discards
+ * the pooled sources.
+ *
+ * @version $Revision$ $Date$
+ */
+
+final class SessionIdGenerator {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Number of identifiers worth of random bytes fetched at once.
+     */
+    private static final int BATCH = 32;
+
+
+    /**
+     * Hexadecimal digits used to render identifiers.
+     */
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a generator for the specified manager.
+     *
+     * @param manager Manager creating the random number generators and
+     *  message digests of the sources
+     */
+    SessionIdGenerator(ManagerBase manager) {
+
+        this.manager = manager;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Number of identifiers generated.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+
+    /**
+     * Number of sources created since the last reset.
+     */
+    private final AtomicInteger created = new AtomicInteger();
+
+
+    /**
+     * Current generation of the sources.  Sources belonging to an older
+     * generation are dropped instead of being returned to the pool.
+     */
+    private volatile int generation = 0;
+
+
+    /**
+     * The manager on behalf of which identifiers are generated.
+     */
+    private final ManagerBase manager;
+
+
+    /**
+     * Longest time spent generating an identifier, in nanoseconds.
+     */
+    private final AtomicLong maxTime = new AtomicLong();
+
+
+    /**
+     * Idle sources.
+     */
+    private final ConcurrentLinkedQueue pool = new ConcurrentLinkedQueue();
+
+
+    /**
+     * Total time spent generating identifiers, in nanoseconds.
+     */
+    private final AtomicLong time = new AtomicLong();
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of identifiers generated.
+     */
+    long getCount() {
+
+        return (count.get());
+
+    }
+
+
+    /**
+     * Return the longest time spent generating an identifier, in
+     * microseconds.
+     */
+    long getMaxTime() {
+
+        return (maxTime.get() / 1000);
+
+    }
+
+
+    /**
+     * Return the number of sources created since the last reset, which is
+     * the peak number of identifiers generated concurrently.
+     */
+    int getSources() {
+
+        return (created.get());
+
+    }
+
+
+    /**
+     * Return the total time spent generating identifiers, in microseconds.
+     */
+    long getTime() {
+
+        return (time.get() / 1000);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Generate and return a new session identifier.
+     */
+    String generate() {
+
+        long start = System.nanoTime();
+
+        Source source = (Source) pool.poll();
+        if (source == null) {
+            source = new Source(generation, manager.createRandom(),
+                                manager.createDigest());
+            created.incrementAndGet();
+        }
+        String id = null;
+        try {
+            id = source.next();
+        } finally {
+            if (source.generation == generation)
+                pool.offer(source);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        count.incrementAndGet();
+        time.addAndGet(elapsed);
+        long max = maxTime.get();
+        while ((elapsed > max) && !maxTime.compareAndSet(max, elapsed))
+            max = maxTime.get();
+
+        return (id);
+
+    }
+
+
+    /**
+     * Discard the pooled sources, so that the following identifiers are
+     * generated using the current <code>randomClass</code>,
+     * <code>algorithm</code> and <code>entropy</code> of the manager.
+     */
+    synchronized void reset() {
+
+        generation++;
+        pool.clear();
+        created.set(0);
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A random number generator and message digest, used by a single thread
+     * at a time.
+     */
+    private static final class Source {
+
+        Source(int generation, Random random, MessageDigest digest) {
+
+            this.generation = generation;
+            this.random = random;
+            this.digest = digest;
+
+        }
+
+        /**
+         * Random bytes not consumed yet, starting at <code>pos</code>.
+         */
+        private final byte[] bytes =
+            new byte[BATCH * ManagerBase.SESSION_ID_BYTES];
+
+        /**
+         * The message digest applied to the random bytes, if any.
+         */
+        private final MessageDigest digest;
+
+        /**
+         * Generation this source belongs to.
+         */
+        final int generation;
+
+        /**
+         * Position of the first unused byte in the buffer.
+         */
+        private int pos = bytes.length;
+
+        /**
+         * The random number generator.
+         */
+        private final Random random;
+
+        /**
+         * Consume the next random bytes, and render their digest as a String
+         * of hexadecimal digits.
+         */
+        String next() {
+
+            if (pos >= bytes.length) {
+                random.nextBytes(bytes);
+                pos = 0;
+            }
+
+            byte[] result = null;
+            int offset = 0;
+            int length = ManagerBase.SESSION_ID_BYTES;
+            if (digest != null) {
+                digest.update(bytes, pos, length);
+                result = digest.digest();
+                length = result.length;
+            } else {
+                result = bytes;
+                offset = pos;
+            }
+
+            char[] chars = new char[length * 2];
+            for (int i = 0; i < length; i++) {
+                int b = result[offset + i];
+                chars[i * 2] = HEX[(b >> 4) & 0x0f];
+                chars[i * 2 + 1] = HEX[b & 0x0f];
+            }
+
+            // Do not leave consumed bytes around
+            for (int i = 0; i < ManagerBase.SESSION_ID_BYTES; i++)
+                bytes[pos + i] = 0;
+            pos += ManagerBase.SESSION_ID_BYTES;
+
+            return (new String(chars));
+
+        }
+
+    }
+
+
+}
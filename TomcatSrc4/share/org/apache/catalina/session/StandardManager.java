@@ -410,7 +410,7 @@ public class StandardManager
                     StandardSession session = new StandardSession(this);
                     session.readObjectData(ois);
                     session.setManager(this);
-                    sessions.put(session.getId(), session);
+                    add(session);
                     ((StandardSession) session).activate();
                 }
             } catch (ClassNotFoundException e) {
@@ -492,17 +492,18 @@ public class StandardManager
         }
 
         // Write the number of active sessions, followed by the details
-        ArrayList list = new ArrayList();
+        // (taken from a snapshot, as sessions may be added or removed
+        // concurrently)
+        ArrayList list = new ArrayList(sessions.values());
         synchronized (sessions) {
             if (debug >= 1)
-                log("Unloading " + sessions.size() + " sessions");
+                log("Unloading " + list.size() + " sessions");
             try {
-                oos.writeObject(new Integer(sessions.size()));
-                Iterator elements = sessions.values().iterator();
+                oos.writeObject(new Integer(list.size()));
+                Iterator elements = list.iterator();
                 while (elements.hasNext()) {
                     StandardSession session =
                         (StandardSession) elements.next();
-                    list.add(session);
                     ((StandardSession) session).passivate();
                     session.writeObjectData(oos);
                 }
@@ -747,23 +748,16 @@ public class StandardManager
     private void processExpires() {
 
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
+        Session sessions[] = findExpiredSessions(timeNow);
 
         for (int i = 0; i < sessions.length; i++) {
             StandardSession session = (StandardSession) sessions[i];
             if (!session.isValid())
                 continue;
-            int maxInactiveInterval = session.getMaxInactiveInterval();
-            if (maxInactiveInterval < 0)
-                continue;
-            int timeIdle = // Truncate, do not round up
-                (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
-            if (timeIdle >= maxInactiveInterval) {
-                try {
-                    session.expire();
-                } catch (Throwable t) {
-                    log(sm.getString("standardManager.expireException"), t);
-                }
+            try {
+                session.expire();
+            } catch (Throwable t) {
+                log(sm.getString("standardManager.expireException"), t);
             }
         }
 
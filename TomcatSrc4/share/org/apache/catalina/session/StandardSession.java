@@ -78,6 +78,7 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpSession;
@@ -151,6 +152,13 @@ class StandardSession
         "___NOT_SERIALIZABLE_EXCEPTION___";
 
 
+    /**
+     * The maximum number of removed attributes whose removal is tracked for
+     * <code>writeDeltaData()</code>.
+     */
+    private static final int MAX_REMOVED = 64;
+
+
     /**
      * The collection of user data attributes associated with this Session.
      */
@@ -165,6 +173,24 @@ class StandardSession
     private transient String authType = null;
 
 
+    /**
+     * The version at which each attribute was last bound or removed, keyed
+     * by attribute name, for the changes made since
+     * <code>changesFloor</code>.  NOTE:  This value is not included in the
+     * serialized version of this object.
+     */
+    private transient HashMap changes = new HashMap();
+
+
+    /**
+     * The version below which the changes made to this session are no
+     * longer tracked, because they were made before this object held the
+     * session or were discarded to bound <code>changes</code>.  NOTE:  This
+     * value is not included in the serialized version of this object.
+     */
+    private transient long changesFloor = nextVersion();
+
+
     /**
      * The <code>java.lang.Method</code> for the
      * <code>fireContainerEvent()</code> method of the
@@ -205,6 +231,31 @@ class StandardSession
     private transient boolean expiring = false;
 
 
+    /**
+     * The estimated size (in bytes) of this session, as measured by
+     * serializing it whole, or -1 if it has not been measured.  NOTE:  This
+     * value is not included in the serialized version of this object.
+     */
+    private transient int estimatedSize = -1;
+
+
+    /**
+     * The version of this session when <code>estimatedSize</code> was
+     * measured.  NOTE:  This value is not included in the serialized
+     * version of this object.
+     */
+    private transient long estimatedVersion = -1L;
+
+
+    /**
+     * The slot (in seconds) in which this session is scheduled by the
+     * expiration queue of its Manager, or zero if it is not scheduled.
+     * NOTE:  This value is not included in the serialized version of this
+     * object.
+     */
+    private transient volatile long expirationSlot = 0L;
+
+
     /**
      * The facade associated with this session.  NOTE:  This value is not
      * included in the serialized version of this object.
@@ -305,6 +356,21 @@ class StandardSession
     private long thisAccessedTime = creationTime;
 
 
+    /**
+     * The version of the attributes of this session, which is the version
+     * of their latest change.  NOTE:  This value is not included in the
+     * serialized version of this object.
+     */
+    private transient long version = changesFloor;
+
+
+    /**
+     * The source of change versions, shared by all sessions so that a
+     * version is never reused by a later holder of the same session.
+     */
+    private static final AtomicLong versions = new AtomicLong();
+
+
     // ----------------------------------------------------- Session Properties
 
 
@@ -349,6 +415,28 @@ class StandardSession
     }
 
 
+    /**
+     * Return the slot in which this session is scheduled for expiration.
+     */
+    long getExpirationSlot() {
+
+        return (this.expirationSlot);
+
+    }
+
+
+    /**
+     * Set the slot in which this session is scheduled for expiration.
+     *
+     * @param expirationSlot The new expiration slot
+     */
+    void setExpirationSlot(long expirationSlot) {
+
+        this.expirationSlot = expirationSlot;
+
+    }
+
+
     /**
      * Return the session identifier for this session.
      */
@@ -483,6 +571,10 @@ class StandardSession
 
         this.maxInactiveInterval = interval;
 
+        // A shorter interval may move our expiration time backwards
+        if ((manager != null) && (manager instanceof ManagerBase))
+            ((ManagerBase) manager).reschedule(this);
+
     }
 
 
@@ -755,7 +847,14 @@ class StandardSession
     public void recycle() {
 
         // Reset the instance variables associated with this Session
-        attributes.clear();
+        synchronized (attributes) {
+            attributes.clear();
+            changes.clear();
+            changesFloor = nextVersion();
+            version = changesFloor;
+        }
+        estimatedSize = -1;
+        estimatedVersion = -1L;
         setAuthType(null);
         creationTime = 0L;
         expiring = false;
@@ -836,6 +935,169 @@ class StandardSession
     // ------------------------------------------------ Session Package Methods
 
 
+    /**
+     * Return the estimated size (in bytes) of this session, or -1 if it has
+     * not been measured.
+     */
+    int getEstimatedSize() {
+
+        return (estimatedSize);
+
+    }
+
+
+    /**
+     * Return the version of this session when its estimated size was
+     * measured, or -1 if it has not been measured.
+     */
+    long getEstimatedVersion() {
+
+        return (estimatedVersion);
+
+    }
+
+
+    /**
+     * Set the estimated size of this session, as measured by serializing it
+     * whole as of the specified version.
+     *
+     * @param estimatedSize The size (in bytes) of the serialized session
+     * @param estimatedVersion The version of the serialized session
+     */
+    void setEstimatedSize(int estimatedSize, long estimatedVersion) {
+
+        this.estimatedSize = estimatedSize;
+        this.estimatedVersion = estimatedVersion;
+
+    }
+
+
+    /**
+     * Return the version of the attributes of this session.  A Store or a
+     * cluster which has saved or sent this session as of a given version
+     * may then save or send only the changes made since that version with
+     * <code>writeDeltaData()</code>.
+     */
+    long getVersion() {
+
+        synchronized (attributes) {
+            return (version);
+        }
+
+    }
+
+
+    /**
+     * Read the changes written by <code>writeDeltaData()</code> from the
+     * specified object input stream, and apply them to this session.  As
+     * with <code>readObjectData()</code>, no listeners are notified.
+     *
+     * @param stream The object input stream to read from
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    void readDeltaData(ObjectInputStream stream)
+        throws ClassNotFoundException, IOException {
+
+        // Deserialize the scalar instance variables
+        lastAccessedTime = stream.readLong();
+        maxInactiveInterval = stream.readInt();
+        isNew = stream.readBoolean();
+        isValid = stream.readBoolean();
+        thisAccessedTime = stream.readLong();
+        if (debug >= 2)
+            log("readDeltaData() loading session " + id);
+
+        // Deserialize the changed attributes, null meaning removed
+        int n = stream.readInt();
+        for (int i = 0; i < n; i++) {
+            String name = (String) stream.readObject();
+            Object value = stream.readObject();
+            if (NOT_SERIALIZED.equals(value))
+                value = null;
+            if (debug >= 2)
+                log("  loading attribute '" + name +
+                    "' with value '" + value + "'");
+            synchronized (attributes) {
+                if (value == null)
+                    attributes.remove(name);
+                else
+                    attributes.put(name, value);
+                changed(name);
+            }
+        }
+
+    }
+
+
+    /**
+     * Write the changes made to this session since the specified version,
+     * along with its scalar instance variables, to the specified object
+     * output stream, and return the version they bring the session to.  If
+     * these changes are no longer tracked, nothing is written and
+     * <code>-1</code> is returned; the whole session must then be written
+     * with <code>writeObjectData()</code>.
+     * <p>
+     * <b>IMPLEMENTATION NOTE</b>:  Only the attributes bound or removed
+     * through this session are tracked; an attribute value modified in
+     * place is only written with the whole session.
+     *
+     * @param stream The object output stream to write to
+     * @param since Version of the session the changes are relative to
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    long writeDeltaData(ObjectOutputStream stream, long since)
+        throws IOException {
+
+        // Accumulate the changed attributes, null meaning removed
+        ArrayList saveNames = new ArrayList();
+        ArrayList saveValues = new ArrayList();
+        long saveVersion = 0L;
+        synchronized (attributes) {
+            if (since < changesFloor)
+                return (-1L);
+            Iterator names = changes.keySet().iterator();
+            while (names.hasNext()) {
+                String name = (String) names.next();
+                if (((Long) changes.get(name)).longValue() <= since)
+                    continue;
+                Object value = attributes.get(name);
+                saveNames.add(name);
+                saveValues.add((value instanceof Serializable) ? value : null);
+            }
+            saveVersion = version;
+        }
+
+        // Write the scalar instance variables and the changed attributes
+        stream.writeLong(lastAccessedTime);
+        stream.writeInt(maxInactiveInterval);
+        stream.writeBoolean(isNew);
+        stream.writeBoolean(isValid);
+        stream.writeLong(thisAccessedTime);
+        if (debug >= 2)
+            log("writeDeltaData() storing session " + id);
+        int n = saveNames.size();
+        stream.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            stream.writeObject((String) saveNames.get(i));
+            try {
+                stream.writeObject(saveValues.get(i));
+                if (debug >= 2)
+                    log("  storing attribute '" + saveNames.get(i) +
+                        "' with value '" + saveValues.get(i) + "'");
+            } catch (NotSerializableException e) {
+                log(sm.getString("standardSession.notSerializable",
+                                 saveNames.get(i), id), e);
+                stream.writeObject(NOT_SERIALIZED);
+            }
+        }
+        return (saveVersion);
+
+    }
+
+
     /**
      * Read a serialized version of the contents of this session object from
      * the specified object input stream, without requiring that the
@@ -1125,10 +1387,13 @@ class StandardSession
             if (found) {
                 value = attributes.get(name);
                 attributes.remove(name);
+                changed(name);
             } else {
                 return;
             }
         }
+        if ((manager != null) && (manager instanceof ManagerBase))
+            ((ManagerBase) manager).changed(this);
 
         // Do we need to do valueUnbound() and attributeRemoved() notification?
         if (!notify) {
@@ -1244,7 +1509,10 @@ class StandardSession
         synchronized (attributes) {
             unbound = attributes.get(name);
             attributes.put(name, value);
+            changed(name);
         }
+        if ((manager != null) && (manager instanceof ManagerBase))
+            ((ManagerBase) manager).changed(this);
 
         // Call the valueUnbound() method if necessary
         if ((unbound != null) &&
@@ -1349,6 +1617,13 @@ class StandardSession
         // Deserialize the attribute count and attribute values
         if (attributes == null)
             attributes = new HashMap();
+        synchronized (attributes) {
+            if (changes == null)
+                changes = new HashMap();
+            changes.clear();
+            changesFloor = nextVersion();
+            version = changesFloor;
+        }
         int n = ((Integer) stream.readObject()).intValue();
         boolean isValidSave = isValid;
         isValid = true;
@@ -1444,6 +1719,37 @@ class StandardSession
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * Record that the specified attribute was bound or removed.  When more
+     * removed attributes are tracked than <code>MAX_REMOVED</code>, the
+     * tracked changes are discarded, so that the next delta written for
+     * this session is the whole session instead.  The caller must own the
+     * monitor of <code>attributes</code>.
+     *
+     * @param name Name of the attribute
+     */
+    private void changed(String name) {
+
+        version = nextVersion();
+        changes.put(name, new Long(version));
+        if (changes.size() > attributes.size() + MAX_REMOVED) {
+            changes.clear();
+            changesFloor = version;
+        }
+
+    }
+
+
+    /**
+     * Return a new change version.
+     */
+    private static long nextVersion() {
+
+        return (versions.incrementAndGet());
+
+    }
+
+
     /**
      * Fire container events if the Context implementation is the
      * <code>org.apache.catalina.core.StandardContext</code>.
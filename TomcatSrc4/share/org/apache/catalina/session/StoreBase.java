@@ -67,6 +67,7 @@ package org.apache.catalina.session;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.IOException;
+import java.util.ArrayList;
 import org.apache.catalina.Container;
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleEvent;
@@ -74,6 +75,7 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Logger;
 import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
 import org.apache.catalina.Store;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
@@ -231,6 +233,35 @@ public abstract class StoreBase
 
     // --------------------------------------------------------- Public Methods
 
+    /**
+     * Save the specified Sessions into this Store.  This implementation
+     * saves them one at a time; implementations which can write several
+     * Sessions at once more cheaply should override it.
+     *
+     * @param sessions Sessions to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void save(Session[] sessions) throws IOException {
+        for (int i = 0; i < sessions.length; i++)
+            save(sessions[i]);
+    }
+
+    /**
+     * Remove the Sessions with the specified session identifiers from this
+     * Store, if present.  This implementation removes them one at a time;
+     * implementations which can remove several Sessions at once more
+     * cheaply should override it.
+     *
+     * @param ids Session identifiers of the Sessions to be removed
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void remove(String[] ids) throws IOException {
+        for (int i = 0; i < ids.length; i++)
+            remove(ids[i]);
+    }
+
     /**
      * Add a lifecycle event listener to this component.
      *
@@ -290,12 +321,13 @@ public abstract class StoreBase
     protected void processExpires() {
         long timeNow = System.currentTimeMillis();
         String[] keys = null;
+        ArrayList expired = new ArrayList();
 
         if(!started)
             return;
 
         try {
-            keys = keys();
+            keys = expirationCandidates(timeNow);
         } catch (IOException e) {
             log (e.toString());
             e.printStackTrace();
@@ -305,7 +337,7 @@ public abstract class StoreBase
         for (int i = 0; i < keys.length; i++) {
             try {
                 StandardSession session = (StandardSession) load(keys[i]);
-                if (!session.isValid())
+                if (session == null || !session.isValid())
                     continue;
                 int maxInactiveInterval = session.getMaxInactiveInterval();
                 if (maxInactiveInterval < 0)
@@ -320,7 +352,7 @@ public abstract class StoreBase
                         // expire swapped out session
                         session.expire();
                     }
-                    remove(session.getId());
+                    expired.add(session.getId());
                 }
             } catch (IOException e) {
                 log (e.toString());
@@ -330,6 +362,30 @@ public abstract class StoreBase
                 e.printStackTrace();
             }
         }
+
+        if (expired.isEmpty())
+            return;
+        try {
+            remove((String[]) expired.toArray(new String[expired.size()]));
+        } catch (IOException e) {
+            log (e.toString());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Return the identifiers of the Sessions which may have expired as of
+     * the specified time, and should be checked by
+     * <code>processExpires()</code>.  This implementation returns all the
+     * keys of this Store; implementations which know the expiration time of
+     * their Sessions without loading them may return fewer keys.
+     *
+     * @param timeNow Current time
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected String[] expirationCandidates(long timeNow) throws IOException {
+        return (keys());
     }
 
     /**
@@ -0,0 +1,624 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Write-behind stage placed by a <code>PersistentManagerBase</code> in front
+ * of its <code>Store</code>, so that swapping out, backing up and removing
+ * sessions does not wait for the Store.
+ * <p>
+ * Pending operations are kept per session identifier and written by a
+ * single background thread, in batches.  Saving a session which is already
+ * waiting to be saved does not queue another write, and removing a session
+ * replaces its pending save.  A session swapped out is not recycled until it
+ * has been written; if it is swapped in again before that, it is taken back
+ * from the queue without going through the Store.  When the number of
+ * pending operations reaches its limit, callers wait for the background
+ * thread to catch up.  Stopping the writer flushes every pending operation
+ * to the Store.
+ *
+ * @version $Revision$ $Date$
+ */
+
+final class StoreWriter implements Runnable {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Max number of operations written in a batch.
+     */
+    private static final int BATCH = 64;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a writer for the specified manager and store.
+     *
+     * @param manager Manager whose sessions are written
+     * @param store Store the sessions are written to
+     * @param maxPending Max number of pending operations
+     */
+    StoreWriter(PersistentManagerBase manager, Store store, int maxPending) {
+
+        this.manager = manager;
+        this.store = store;
+        this.maxPending = maxPending;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Number of saves merged into an already pending save.
+     */
+    private long coalescedCount = 0;
+
+
+    /**
+     * Has the writer been asked to stop?
+     */
+    private boolean done = false;
+
+
+    /**
+     * The manager whose sessions are written.
+     */
+    private PersistentManagerBase manager = null;
+
+
+    /**
+     * Max number of pending operations.
+     */
+    private int maxPending = 0;
+
+
+    /**
+     * Longest time between queueing and completing a write, in milliseconds.
+     */
+    private long maxTime = 0;
+
+
+    /**
+     * Pending operations, keyed by session identifier.
+     */
+    private HashMap pending = new HashMap();
+
+
+    /**
+     * Session identifiers with pending operations, in queueing order.
+     */
+    private LinkedList queue = new LinkedList();
+
+
+    /**
+     * The string manager for this package.
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * The store sessions are written to.
+     */
+    private Store store = null;
+
+
+    /**
+     * The background thread.
+     */
+    private Thread thread = null;
+
+
+    /**
+     * Total time between queueing and completing writes, in milliseconds.
+     */
+    private long time = 0;
+
+
+    /**
+     * Number of operations written to the store.
+     */
+    private long writeCount = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of saves merged into an already pending save.
+     */
+    synchronized long getCoalescedCount() {
+
+        return (coalescedCount);
+
+    }
+
+
+    /**
+     * Return the longest time between queueing and completing a write, in
+     * milliseconds.
+     */
+    synchronized long getMaxTime() {
+
+        return (maxTime);
+
+    }
+
+
+    /**
+     * Return the number of pending operations.
+     */
+    synchronized int getPendingCount() {
+
+        return (pending.size());
+
+    }
+
+
+    /**
+     * Return the total time between queueing and completing writes, in
+     * milliseconds.
+     */
+    synchronized long getTime() {
+
+        return (time);
+
+    }
+
+
+    /**
+     * Return the number of operations written to the store.
+     */
+    synchronized long getWriteCount() {
+
+        return (writeCount);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the identifiers of the sessions saved in the store, taking
+     * pending operations into account.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    String[] keys() throws IOException {
+
+        String[] keys = store.keys();
+        synchronized (this) {
+            if (pending.isEmpty())
+                return (keys);
+            HashSet set = new HashSet();
+            for (int i = 0; i < keys.length; i++)
+                set.add(keys[i]);
+            Iterator entries = pending.values().iterator();
+            while (entries.hasNext()) {
+                Entry entry = (Entry) entries.next();
+                if (entry.session == null)
+                    set.remove(entry.id);
+                else
+                    set.add(entry.id);
+            }
+            return ((String[]) set.toArray(new String[set.size()]));
+        }
+
+    }
+
+
+    /**
+     * Load the session with the specified identifier, taking pending
+     * operations into account.  A session swapped out and not written yet
+     * is taken back from the queue, and a session which was put back in
+     * memory because it could not be written is returned as it is.
+     *
+     * @param id Session identifier of the session to load
+     *
+     * @exception ClassNotFoundException if a deserialization error occurs
+     * @exception IOException if an input/output error occurs
+     */
+    Session load(String id) throws ClassNotFoundException, IOException {
+
+        synchronized (this) {
+            Entry entry = (Entry) pending.get(id);
+            Entry written = null;
+            while ((entry != null) && entry.taken && entry.swapped) {
+                // The session will be recycled once written, read it back
+                written = entry;
+                waitFor();
+                entry = (Entry) pending.get(id);
+            }
+            if ((entry == null) && (written != null) && written.restored)
+                return (written.session);
+            if (entry != null) {
+                if (entry.session == null)
+                    return (null);
+                if (entry.swapped) {
+                    pending.remove(id);
+                    notifyAll();
+                    return (entry.session);
+                }
+            }
+        }
+
+        return (store.load(id));
+
+    }
+
+
+    /**
+     * Queue the removal of the session with the specified identifier.
+     *
+     * @param id Session identifier of the session to remove
+     */
+    void remove(String id) {
+
+        queue(id, null, false);
+
+    }
+
+
+    /**
+     * Queue the save of the specified session.
+     *
+     * @param session Session to save
+     * @param swapped Has the session been swapped out, and should it be
+     *  recycled once written?
+     */
+    void save(Session session, boolean swapped) {
+
+        queue(session.getId(), session, swapped);
+
+    }
+
+
+    /**
+     * Start the background thread.
+     *
+     * @param name Name of the background thread
+     */
+    void start(String name) {
+
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * Write all pending operations, and stop the background thread.
+     */
+    void stop() {
+
+        synchronized (this) {
+            done = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            ;
+        }
+        thread = null;
+
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
+    /**
+     * Write pending operations until the writer is stopped and all of
+     * them have been written.
+     */
+    public void run() {
+
+        Entry batch[] = new Entry[BATCH];
+
+        while (true) {
+
+            // Take the next batch of operations
+            int n = 0;
+            synchronized (this) {
+                while (queue.isEmpty() && !done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                }
+                if (queue.isEmpty())
+                    break;
+                while ((n < BATCH) && !queue.isEmpty()) {
+                    String id = (String) queue.removeFirst();
+                    Entry entry = (Entry) pending.get(id);
+                    if ((entry == null) || entry.taken)
+                        continue;
+                    entry.taken = true;
+                    batch[n++] = entry;
+                }
+            }
+
+            // Write it, whatever the Store throws, so that it is retired
+            try {
+                write(batch, n);
+            } catch (Throwable t) {
+                manager.log(sm.getString("persistentManager.writeError",
+                                         batch[0].id, t));
+            }
+
+            // Retire the batch
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                for (int i = 0; i < n; i++) {
+                    Entry entry = batch[i];
+                    batch[i] = null;
+                    if (pending.get(entry.id) == entry)
+                        pending.remove(entry.id);
+                    long elapsed = now - entry.queued;
+                    writeCount++;
+                    time += elapsed;
+                    if (elapsed > maxTime)
+                        maxTime = elapsed;
+                }
+                notifyAll();
+            }
+
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Queue an operation, merging it with a pending operation for the same
+     * session if that one has not been taken by the background thread yet.
+     */
+    private synchronized void queue(String id, Session session,
+                                    boolean swapped) {
+
+        Entry entry = (Entry) pending.get(id);
+        if ((entry != null) && !entry.taken) {
+            if (session != null)
+                coalescedCount++;
+            entry.session = session;
+            entry.swapped = swapped || (entry.swapped && (session != null));
+            return;
+        }
+
+        while ((pending.size() >= maxPending) && !done)
+            waitFor();
+
+        entry = new Entry(id, session, swapped);
+        pending.put(id, entry);
+        queue.addLast(id);
+        notifyAll();
+
+    }
+
+
+    /**
+     * Wait for the background thread to make progress.  The caller must own
+     * the monitor of this writer.
+     */
+    private void waitFor() {
+
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            ;
+        }
+
+    }
+
+
+    /**
+     * Apply a batch of operations to the store.  A batch holds at most one
+     * operation per session, so the removals and the saves are handed to a
+     * <code>StoreBase</code> as two batches; if the batch of saves fails,
+     * its sessions are saved again one at a time, so that only those which
+     * really cannot be saved are kept in memory.
+     */
+    private void write(Entry batch[], int n) {
+
+        if ((n < 2) || !(store instanceof StoreBase)) {
+            for (int i = 0; i < n; i++)
+                write(batch[i]);
+            return;
+        }
+
+        ArrayList removals = new ArrayList();
+        ArrayList saves = new ArrayList();
+        for (int i = 0; i < n; i++) {
+            if (batch[i].session == null)
+                removals.add(batch[i].id);
+            else
+                saves.add(batch[i].session);
+        }
+
+        if (removals.size() > 0) {
+            try {
+                ((StoreBase) store).remove
+                    ((String[]) removals.toArray(new String[removals.size()]));
+            } catch (Throwable e) {
+                manager.log(sm.getString
+                            ("persistentManager.removeError",
+                             removals.get(0), e));
+            }
+        }
+
+        if (saves.size() > 0) {
+            try {
+                ((StoreBase) store).save
+                    ((Session[]) saves.toArray(new Session[saves.size()]));
+            } catch (Throwable t) {
+                for (int i = 0; i < n; i++) {
+                    if (batch[i].session != null)
+                        write(batch[i]);
+                }
+                return;
+            }
+            for (int i = 0; i < n; i++) {
+                if ((batch[i].session != null) && batch[i].swapped)
+                    batch[i].session.recycle();
+            }
+        }
+
+    }
+
+
+    /**
+     * Apply an operation to the store.
+     */
+    private void write(Entry entry) {
+
+        Session session = entry.session;
+        if (session == null) {
+            try {
+                store.remove(entry.id);
+            } catch (Throwable e) {
+                manager.log(sm.getString
+                            ("persistentManager.removeError", entry.id, e));
+            }
+            return;
+        }
+
+        try {
+            store.save(session);
+        } catch (Throwable t) {
+            manager.log(sm.getString
+                        ("persistentManager.serializeError", entry.id, t));
+            if (entry.swapped) {
+                // Keep the session in memory, as if it was never swapped out
+                entry.restored = true;
+                manager.add(session);
+                if (session instanceof StandardSession)
+                    ((StandardSession) session).activate();
+                return;
+            }
+        }
+        if (entry.swapped)
+            session.recycle();
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A pending operation: the save of a session, or the removal of a
+     * session if <code>session</code> is <code>null</code>.
+     */
+    private static final class Entry {
+
+        Entry(String id, Session session, boolean swapped) {
+
+            this.id = id;
+            this.session = session;
+            this.swapped = swapped;
+            this.queued = System.currentTimeMillis();
+
+        }
+
+        final String id;
+
+        final long queued;
+
+        Session session;
+
+        boolean swapped;
+
+        boolean taken = false;
+
+        boolean restored = false;
+
+    }
+
+
+}
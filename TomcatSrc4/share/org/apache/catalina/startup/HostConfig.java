@@ -79,6 +79,11 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import javax.naming.NamingException;
@@ -92,7 +97,10 @@ import org.apache.catalina.LifecycleEvent;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Logger;
+import org.apache.catalina.core.ContainerBase;
 import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.util.FileChangeListener;
+import org.apache.catalina.util.FileWatcher;
 import org.apache.catalina.util.StringManager;
 
 
@@ -106,7 +114,7 @@ import org.apache.catalina.util.StringManager;
  */
 
 public class HostConfig
-    implements LifecycleListener, Runnable {
+    implements FileChangeListener, LifecycleListener, Runnable {
 
 
     // ----------------------------------------------------- Instance Variables
@@ -150,6 +158,19 @@ public class HostConfig
         StringManager.getManager(Constants.Package);
 
 
+    /**
+     * Has the <code>FileWatcher</code> reported a change since the
+     * background thread last checked?
+     */
+    private boolean changed = false;
+
+
+    /**
+     * The monitor the background thread waits on for changes.
+     */
+    private Object changeLock = new Object();
+
+
     /**
      * The number of seconds between checks for web app deployment.
      */
@@ -194,6 +215,21 @@ public class HostConfig
     private boolean unpackWARs = false;
 
 
+    /**
+     * Is the <code>FileWatcher</code> watching our <code>appBase</code>
+     * directory?  If not, the background thread polls every
+     * <code>checkInterval</code> seconds.
+     */
+    private boolean watched = false;
+
+
+    /**
+     * The WEB-INF directories of the deployed contexts being watched by
+     * the <code>FileWatcher</code>.
+     */
+    private HashSet watchedDirectories = new HashSet();
+
+
     /**
      * Last modified dates of the web.xml files of the contexts, keyed by
      * context name.
@@ -336,6 +372,40 @@ public class HostConfig
     }
 
 
+    // --------------------------------------------- FileChangeListener Methods
+
+
+    /**
+     * Wake up the background thread, something has changed in our
+     * <code>appBase</code> directory or in the WEB-INF directory of a
+     * deployed context.
+     *
+     * @param file The file which has changed
+     */
+    public void fileChanged(File file) {
+
+        synchronized (changeLock) {
+            changed = true;
+            changeLock.notifyAll();
+        }
+
+    }
+
+
+    /**
+     * Log the failure to process a change to a file of our
+     * <code>appBase</code> directory or of a deployed context.
+     *
+     * @param file The file which has changed
+     * @param throwable The failure which occurred
+     */
+    public void fileChangeFailed(File file, Throwable throwable) {
+
+        log(sm.getString("hostConfig.fileChangeFailed", file), throwable);
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -421,6 +491,7 @@ public class HostConfig
         if (!deployXML)
            return;
 
+        ArrayList deployments = new ArrayList();
         for (int i = 0; i < files.length; i++) {
 
             if (files[i].equalsIgnoreCase("META-INF"))
@@ -446,18 +517,20 @@ public class HostConfig
 
                 // Assume this is a configuration descriptor and deploy it
                 log(sm.getString("hostConfig.deployDescriptor", files[i]));
-                try {
-                    URL config =
-                        new URL("file", null, dir.getCanonicalPath());
-                    ((Deployer) host).install(config, null);
-                } catch (Throwable t) {
-                    log(sm.getString("hostConfig.deployDescriptor.error",
-                                     files[i]), t);
-                }
+                final File descriptor = dir;
+                deployments.add(new Deployment
+                    (files[i], "hostConfig.deployDescriptor.error") {
+                    void deploy() throws Exception {
+                        URL config = new URL("file", null,
+                                             descriptor.getCanonicalPath());
+                        ((Deployer) host).install(config, null);
+                    }
+                });
 
             }
 
         }
+        deployAll(deployments);
 
     }
 
@@ -467,6 +540,7 @@ public class HostConfig
      */
     protected void deployWARs(File appBase, String[] files) {
 
+        ArrayList deployments = new ArrayList();
         for (int i = 0; i < files.length; i++) {
 
             if (files[i].equalsIgnoreCase("META-INF"))
@@ -490,40 +564,43 @@ public class HostConfig
                 if (host.findChild(contextPath) != null)
                     continue;
 
+                final File war = dir;
+                final String warPath = contextPath;
                 if (isUnpackWARs()) {
 
                     // Expand and deploy this application as a directory
                     log(sm.getString("hostConfig.expand", files[i]));
-                    try {
-                        URL url = new URL("jar:file:" +
-                                          dir.getCanonicalPath() + "!/");
-                        String path = expand(url);
-                        url = new URL("file:" + path);
-                        ((Deployer) host).install(contextPath, url);
-                    } catch (Throwable t) {
-                        log(sm.getString("hostConfig.expand.error", files[i]),
-                            t);
-                    }
+                    deployments.add(new Deployment
+                        (files[i], "hostConfig.expand.error") {
+                        void deploy() throws Exception {
+                            URL url = new URL("jar:file:" +
+                                              war.getCanonicalPath() + "!/");
+                            String path = expand(url);
+                            url = new URL("file:" + path);
+                            ((Deployer) host).install(warPath, url);
+                        }
+                    });
 
                 } else {
 
                     // Deploy the application in this WAR file
                     log(sm.getString("hostConfig.deployJar", files[i]));
-                    try {
-                        URL url = new URL("file", null,
-                                          dir.getCanonicalPath());
-                        url = new URL("jar:" + url.toString() + "!/");
-                        ((Deployer) host).install(contextPath, url);
-                    } catch (Throwable t) {
-                        log(sm.getString("hostConfig.deployJar.error",
-                                         files[i]), t);
-                    }
+                    deployments.add(new Deployment
+                        (files[i], "hostConfig.deployJar.error") {
+                        void deploy() throws Exception {
+                            URL url = new URL("file", null,
+                                              war.getCanonicalPath());
+                            url = new URL("jar:" + url.toString() + "!/");
+                            ((Deployer) host).install(warPath, url);
+                        }
+                    });
 
                 }
 
             }
 
         }
+        deployAll(deployments);
 
     }
 
@@ -533,6 +610,7 @@ public class HostConfig
      */
     protected void deployDirectories(File appBase, String[] files) {
 
+        ArrayList deployments = new ArrayList();
         for (int i = 0; i < files.length; i++) {
 
             if (files[i].equalsIgnoreCase("META-INF"))
@@ -564,17 +642,69 @@ public class HostConfig
 
                 // Deploy the application in this directory
                 log(sm.getString("hostConfig.deployDir", files[i]));
-                try {
-                    URL url = new URL("file", null, dir.getCanonicalPath());
-                    ((Deployer) host).install(contextPath, url);
-                } catch (Throwable t) {
-                    log(sm.getString("hostConfig.deployDir.error", files[i]),
-                        t);
-                }
+                final File directory = dir;
+                final String directoryPath = contextPath;
+                deployments.add(new Deployment
+                    (files[i], "hostConfig.deployDir.error") {
+                    void deploy() throws Exception {
+                        URL url = new URL("file", null,
+                                          directory.getCanonicalPath());
+                        ((Deployer) host).install(directoryPath, url);
+                    }
+                });
 
             }
 
         }
+        deployAll(deployments);
+
+    }
+
+
+    /**
+     * Run the specified deployments, concurrently on the start executor
+     * of our Host if it has one, and log their failures in the order the
+     * applications were found in.
+     *
+     * @param deployments The list of Deployments to run
+     */
+    protected void deployAll(ArrayList deployments) {
+
+        ExecutorService executor = null;
+        if ((deployments.size() > 1) && (host instanceof ContainerBase))
+            executor = ((ContainerBase) host).getStartExecutor();
+
+        // Deploy the applications one after another
+        if (executor == null) {
+            for (int i = 0; i < deployments.size(); i++) {
+                Deployment deployment = (Deployment) deployments.get(i);
+                Throwable t = deployment.call();
+                if (t != null)
+                    log(sm.getString(deployment.errorKey, deployment.file),
+                        t);
+            }
+            return;
+        }
+
+        // Deploy all the applications concurrently
+        List results = null;
+        try {
+            results = executor.invokeAll(deployments);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            Deployment deployment = (Deployment) deployments.get(i);
+            Throwable t = null;
+            try {
+                t = (Throwable) ((Future) results.get(i)).get();
+            } catch (Exception e) {
+                t = e;
+            }
+            if (t != null)
+                log(sm.getString(deployment.errorKey, deployment.file), t);
+        }
 
     }
 
@@ -636,6 +766,33 @@ public class HostConfig
 
 
 
+    /**
+     * Have the WEB-INF directories of the deployed contexts watched, so
+     * that changes to their web.xml wake up the background thread.
+     */
+    protected void watchContexts() {
+
+        if (!(host instanceof Deployer))
+            return;
+
+        Deployer deployer = (Deployer) host;
+        String[] contextNames = deployer.findDeployedApps();
+        for (int i = 0; i < contextNames.length; i++) {
+            Context context = deployer.findDeployedApp(contextNames[i]);
+            if ((context == null) || (context.getServletContext() == null))
+                continue;
+            String path =
+                context.getServletContext().getRealPath("/WEB-INF");
+            if ((path == null) || watchedDirectories.contains(path))
+                continue;
+            if (FileWatcher.getFileWatcher().watch(new File(path),
+                                                   false, this))
+                watchedDirectories.add(path);
+        }
+
+    }
+
+
     /**
      * Expand the WAR file found at the specified URL into an unpacked
      * directory structure, and return the absolute pathname to the expanded
@@ -939,6 +1096,14 @@ public class HostConfig
         if (thread != null)
             return;
 
+        // Have our appBase directory watched rather than polled, if we can
+        File appBase = appBase();
+        changed = false;
+        watched = FileWatcher.getFileWatcher().watch(appBase, false, this);
+        if (debug >= 1)
+            log(sm.getString(watched ? "hostConfig.watching"
+                             : "hostConfig.polling", appBase));
+
         // Start the background thread
         if (debug >= 1)
             log(" Starting background thread");
@@ -962,6 +1127,11 @@ public class HostConfig
 
         if (debug >= 1)
             log(" Stopping background thread");
+        if (watched) {
+            FileWatcher.getFileWatcher().unwatch(this);
+            watchedDirectories.clear();
+            watched = false;
+        }
         threadDone = true;
         thread.interrupt();
         try {
@@ -976,13 +1146,22 @@ public class HostConfig
 
 
     /**
-     * Sleep for the duration specified by the <code>checkInterval</code>
-     * property.
+     * Wait for the <code>FileWatcher</code> to report a change or, if our
+     * <code>appBase</code> is not being watched, sleep for the duration
+     * specified by the <code>checkInterval</code> property.
      */
     protected void threadSleep() {
 
         try {
-            Thread.sleep(checkInterval * 1000L);
+            if (watched) {
+                synchronized (changeLock) {
+                    while (!changed && !threadDone)
+                        changeLock.wait();
+                    changed = false;
+                }
+            } else {
+                Thread.sleep(checkInterval * 1000L);
+            }
         } catch (InterruptedException e) {
             ;
         }
@@ -1002,15 +1181,24 @@ public class HostConfig
         if (debug >= 1)
             log("BACKGROUND THREAD Starting");
 
+        // Record the web.xml dates the first changes will be compared to
+        if (watched)
+            watchContexts();
+        checkWebXmlLastModified();
+
         // Loop until the termination semaphore is set
         while (!threadDone) {
 
-            // Wait for our check interval
+            // Wait for a change, or for our check interval
             threadSleep();
 
             // Deploy apps if the Host allows auto deploying
             deployApps();
 
+            // Watch the web.xml of the newly deployed apps
+            if (watched)
+                watchContexts();
+
             // Check for web.xml modification
             checkWebXmlLastModified();
 
@@ -1022,4 +1210,36 @@ public class HostConfig
     }
 
 
+    // ---------------------------------------------------------- Protected Classes
+
+
+    /**
+     * The deployment of one application found in our <code>appBase</code>,
+     * which reports its failure instead of throwing it.
+     */
+    protected abstract class Deployment implements Callable {
+
+        Deployment(String file, String errorKey) {
+            this.file = file;
+            this.errorKey = errorKey;
+        }
+
+        final String file;
+
+        final String errorKey;
+
+        public Throwable call() {
+            try {
+                deploy();
+                return (null);
+            } catch (Throwable t) {
+                return (t);
+            }
+        }
+
+        abstract void deploy() throws Exception;
+
+    }
+
+
 }
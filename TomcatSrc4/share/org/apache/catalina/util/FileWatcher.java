@@ -0,0 +1,448 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.catalina.util;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Watches directories for changes on behalf of the components which used
+ * to poll them, and tells the registered <code>FileChangeListener</code>s
+ * about the files which have changed.  A single instance, and a single
+ * thread, is shared by the whole server.
+ * <p>
+ * Changes are delivered once no further change has been seen for
+ * <code>SETTLE_TIME</code> milliseconds, so that a file being copied or
+ * a set of classes being compiled results in a single notification per
+ * file rather than a stream of them.
+ * <p>
+ * The watching relies on the <code>WatchService</code> of the default
+ * file system.  When it is not available, <code>watch()</code> returns
+ * <code>false</code> and callers are expected to fall back on polling.
+ *
+ * @version $Revision$ $Date$
+ */
+
+public final class FileWatcher implements Runnable {
+
+
+    // ------------------------------------------------------- Static Variables
+
+
+    /**
+     * The number of milliseconds without any change after which the
+     * pending changes are delivered.
+     */
+    public static final int SETTLE_TIME = 500;
+
+
+    /**
+     * The shared instance.
+     */
+    private static FileWatcher watcher = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct the shared instance.
+     */
+    private FileWatcher() {
+
+        super();
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            service = null;
+        } catch (UnsupportedOperationException e) {
+            service = null;
+        }
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The Registrations associated with each WatchKey.
+     */
+    private HashMap keys = new HashMap();
+
+
+    /**
+     * When the last change was seen.
+     */
+    private long lastChange = 0L;
+
+
+    /**
+     * The changed files not delivered yet, keyed by listener.
+     */
+    private HashMap pending = new HashMap();
+
+
+    /**
+     * The watch service, or <code>null</code> if there is none.
+     */
+    private WatchService service = null;
+
+
+    /**
+     * The background thread, started with the first watch.
+     */
+    private Thread thread = null;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the shared FileWatcher.
+     */
+    public static synchronized FileWatcher getFileWatcher() {
+
+        if (watcher == null)
+            watcher = new FileWatcher();
+        return (watcher);
+
+    }
+
+
+    /**
+     * Is the file system able to tell us about changes?
+     */
+    public boolean isAvailable() {
+
+        return (service != null);
+
+    }
+
+
+    /**
+     * Start watching the specified directory for the specified listener.
+     *
+     * @param directory The directory to watch
+     * @param recursive Should its subdirectories, including those created
+     *  later, be watched as well?
+     * @param listener The listener to tell about changes
+     * @return <code>false</code> if the directory cannot be watched, in
+     *  which case the caller should poll it instead
+     */
+    public synchronized boolean watch(File directory, boolean recursive,
+                                      FileChangeListener listener) {
+
+        if ((service == null) || !directory.isDirectory())
+            return (false);
+
+        Registration registration = new Registration(listener, recursive);
+        try {
+            register(directory, registration);
+        } catch (IOException e) {
+            unwatch(registration);
+            return (false);
+        }
+
+        if (thread == null) {
+            thread = new Thread(this, "FileWatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return (true);
+
+    }
+
+
+    /**
+     * Stop watching every directory watched for the specified listener,
+     * and forget the changes not delivered to it yet.
+     *
+     * @param listener The listener
+     */
+    public synchronized void unwatch(FileChangeListener listener) {
+
+        Iterator iterator = keys.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            List registrations = (List) entry.getValue();
+            for (int i = registrations.size() - 1; i >= 0; i--) {
+                if (((Registration) registrations.get(i)).listener
+                    == listener)
+                    registrations.remove(i);
+            }
+            if (registrations.isEmpty()) {
+                ((WatchKey) entry.getKey()).cancel();
+                iterator.remove();
+            }
+        }
+        pending.remove(listener);
+
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
+    /**
+     * The background thread, collecting changes and delivering them once
+     * they have settled.
+     */
+    public void run() {
+
+        while (true) {
+
+            // Wait for a change, or for the pending changes to settle
+            long wait = 0L;
+            synchronized (this) {
+                if (!pending.isEmpty())
+                    wait = Math.max(1L, lastChange + SETTLE_TIME
+                                    - System.currentTimeMillis());
+            }
+            WatchKey key = null;
+            try {
+                if (wait > 0L)
+                    key = service.poll(wait, TimeUnit.MILLISECONDS);
+                else
+                    key = service.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (key != null) {
+                process(key);
+                continue;
+            }
+
+            // Deliver the changes which have settled
+            HashMap changes = null;
+            synchronized (this) {
+                if (System.currentTimeMillis() - lastChange < SETTLE_TIME)
+                    continue;
+                changes = pending;
+                pending = new HashMap();
+            }
+            Iterator iterator = changes.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry entry = (Map.Entry) iterator.next();
+                FileChangeListener listener =
+                    (FileChangeListener) entry.getKey();
+                Iterator files = ((HashSet) entry.getValue()).iterator();
+                while (files.hasNext()) {
+                    File file = (File) files.next();
+                    try {
+                        listener.fileChanged(file);
+                    } catch (Throwable t) {
+                        try {
+                            listener.fileChangeFailed(file, t);
+                        } catch (Throwable u) {
+                            ;
+                        }
+                    }
+                }
+            }
+
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Record the changes reported by the specified key.
+     */
+    private synchronized void process(WatchKey key) {
+
+        File directory = ((Path) key.watchable()).toFile();
+        List events = key.pollEvents();
+        List registrations = (List) keys.get(key);
+        if (!key.reset() || (registrations == null)) {
+            keys.remove(key);
+            if (registrations == null)
+                key.cancel();
+        }
+        if (registrations == null)
+            return;
+
+        for (int i = 0; i < events.size(); i++) {
+            WatchEvent event = (WatchEvent) events.get(i);
+            File file = directory;
+            if (event.kind() != StandardWatchEventKinds.OVERFLOW)
+                file = new File(directory, event.context().toString());
+            Object array[] = registrations.toArray();
+            for (int j = 0; j < array.length; j++) {
+                Registration registration = (Registration) array[j];
+                if (registration.recursive
+                    && (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+                    && file.isDirectory()) {
+                    try {
+                        register(file, registration);
+                    } catch (IOException e) {
+                        ;
+                    }
+                }
+                HashSet files = (HashSet) pending.get(registration.listener);
+                if (files == null) {
+                    files = new HashSet();
+                    pending.put(registration.listener, files);
+                }
+                files.add(file);
+            }
+        }
+        lastChange = System.currentTimeMillis();
+
+    }
+
+
+    /**
+     * Register the specified directory, and its subdirectories if the
+     * registration is recursive.
+     */
+    private void register(File directory, Registration registration)
+        throws IOException {
+
+        WatchKey key = directory.toPath().register
+            (service, new WatchEvent.Kind[] {
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY });
+        List registrations = (List) keys.get(key);
+        if (registrations == null) {
+            registrations = new ArrayList();
+            keys.put(key, registrations);
+        }
+        if (!registrations.contains(registration))
+            registrations.add(registration);
+
+        if (!registration.recursive)
+            return;
+        File files[] = directory.listFiles();
+        if (files == null)
+            return;
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].isDirectory())
+                register(files[i], registration);
+        }
+
+    }
+
+
+    /**
+     * Remove the specified registration.
+     */
+    private void unwatch(Registration registration) {
+
+        Iterator iterator = keys.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            List registrations = (List) entry.getValue();
+            registrations.remove(registration);
+            if (registrations.isEmpty()) {
+                ((WatchKey) entry.getKey()).cancel();
+                iterator.remove();
+            }
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Classes
+
+
+    /**
+     * A listener and how it wants its directories watched.
+     */
+    private static final class Registration {
+
+        Registration(FileChangeListener listener, boolean recursive) {
+            this.listener = listener;
+            this.recursive = recursive;
+        }
+
+        final FileChangeListener listener;
+
+        final boolean recursive;
+
+    }
+
+
+}
@@ -164,6 +164,18 @@ public abstract class BaseDirContext implements DirContext {
     protected int cacheObjectMaxSize = 32768; // 32 KB
 
 
+    /**
+     * Max size of the cache, in KB.
+     */
+    protected int cacheMaxSize = 10240; // 10 MB
+
+
+    /**
+     * Should expired cache entries be revalidated by a background thread ?
+     */
+    protected boolean backgroundRevalidation = false;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -264,6 +276,38 @@ public abstract class BaseDirContext implements DirContext {
     }
 
 
+    /**
+     * Set cacheMaxSize.
+     */
+    public void setCacheMaxSize(int cacheMaxSize) {
+        this.cacheMaxSize = cacheMaxSize;
+    }
+
+
+    /**
+     * Get cacheMaxSize.
+     */
+    public int getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+
+    /**
+     * Set backgroundRevalidation.
+     */
+    public void setBackgroundRevalidation(boolean backgroundRevalidation) {
+        this.backgroundRevalidation = backgroundRevalidation;
+    }
+
+
+    /**
+     * Is backgroundRevalidation ?
+     */
+    public boolean isBackgroundRevalidation() {
+        return backgroundRevalidation;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
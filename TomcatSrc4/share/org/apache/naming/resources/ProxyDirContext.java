@@ -64,10 +64,8 @@
 
 package org.apache.naming.resources;
 
-import java.util.Collections;
 import java.util.Date;
 import java.util.Hashtable;
-import java.util.Map;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.ByteArrayInputStream;
@@ -85,7 +83,6 @@ import javax.naming.directory.SearchControls;
 
 import org.apache.naming.StringManager;
 
-import org.apache.commons.collections.LRUMap;
 
 /**
  * Proxy Directory Context implementation.
@@ -117,10 +114,13 @@ public class ProxyDirContext implements DirContext {
             // Initialize parameters based on the associated dir context, like
             // the caching policy.
             if (((BaseDirContext) dirContext).isCached()) {
-                cache = Collections.synchronizedMap(new LRUMap(cacheSize));
+                cacheMaxSize = ((BaseDirContext) dirContext).getCacheMaxSize();
+                cache = new ResourceCache(cacheMaxSize * 1024L);
                 cacheTTL = ((BaseDirContext) dirContext).getCacheTTL();
                 cacheObjectMaxSize = 
                     ((BaseDirContext) dirContext).getCacheObjectMaxSize();
+                backgroundRevalidation = 
+                    ((BaseDirContext) dirContext).isBackgroundRevalidation();
             }
         }
         hostName = (String) env.get(HOST);
@@ -138,9 +138,10 @@ public class ProxyDirContext implements DirContext {
         this.dirContext = dirContext;
         this.vPath = vPath;
         this.cache = proxyDirContext.cache;
-        this.cacheSize = proxyDirContext.cacheSize;
+        this.cacheMaxSize = proxyDirContext.cacheMaxSize;
         this.cacheTTL = proxyDirContext.cacheTTL;
         this.cacheObjectMaxSize = proxyDirContext.cacheObjectMaxSize;
+        this.backgroundRevalidation = proxyDirContext.backgroundRevalidation;
         this.hostName = proxyDirContext.hostName;
         this.contextName = proxyDirContext.contextName;
     }
@@ -189,13 +190,13 @@ public class ProxyDirContext implements DirContext {
      * Cache.
      * Path -> Cache entry.
      */
-    protected Map cache = null;
+    protected ResourceCache cache = null;
 
 
     /**
-     * Cache size
+     * Cache size, in KB.
      */
-    protected int cacheSize = 1000;
+    protected int cacheMaxSize = 10240; // 10 MB
 
 
     /**
@@ -210,6 +211,12 @@ public class ProxyDirContext implements DirContext {
     protected int cacheObjectMaxSize = 32768; // 32 KB
 
 
+    /**
+     * Revalidate expired entries in the background.
+     */
+    protected boolean backgroundRevalidation = false;
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -221,6 +228,15 @@ public class ProxyDirContext implements DirContext {
     }
 
 
+    /**
+     * Return the resource cache, or <code>null</code> if caching is
+     * disabled.
+     */
+    public ResourceCache getCache() {
+        return this.cache;
+    }
+
+
     /**
      * Return the document root for this component.
      */
@@ -437,6 +453,7 @@ public class ProxyDirContext implements DirContext {
         throws NamingException {
         dirContext.rename(parseName(oldName), parseName(newName));
         cacheUnload(oldName.toString());
+        cacheUnload(newName.toString());
     }
 
 
@@ -453,6 +470,7 @@ public class ProxyDirContext implements DirContext {
         throws NamingException {
         dirContext.rename(parseName(oldName), parseName(newName));
         cacheUnload(oldName);
+        cacheUnload(newName);
     }
 
 
@@ -1374,12 +1392,19 @@ public class ProxyDirContext implements DirContext {
 
     /**
      * Lookup in cache.
+     * 
+     * @exception NamingException if the name is known not to be bound
      */
-    protected CacheEntry cacheLookup(String name) {
+    protected CacheEntry cacheLookup(String name)
+        throws NamingException {
         if (cache == null)
             return (null);
-        CacheEntry cacheEntry = (CacheEntry) cache.get(name);
+        long now = System.currentTimeMillis();
+        CacheEntry cacheEntry = cache.lookup(name, now);
         if (cacheEntry == null) {
+            if (cache.isNotFound(name, now))
+                throw new NamingException
+                    (sm.getString("resources.notFound", name));
             cacheEntry = new CacheEntry();
             cacheEntry.name = name;
             // Load entry
@@ -1388,8 +1413,12 @@ public class ProxyDirContext implements DirContext {
             return (cacheEntry);
         } else {
             if (!validate(cacheEntry)) {
-                if (!revalidate(cacheEntry)) {
-                    cacheUnload(cacheEntry.name);
+                if (backgroundRevalidation && (cacheEntry.resource != null)
+                    && (cacheEntry.resource.getContent() != null)) {
+                    // Serve the cached content while it is checked
+                    backgroundRevalidate(cacheEntry);
+                } else if (!revalidate(cacheEntry)) {
+                    cache.unload(cacheEntry);
                     return (null);
                 } else {
                     cacheEntry.timestamp = 
@@ -1401,6 +1430,38 @@ public class ProxyDirContext implements DirContext {
     }
 
 
+    /**
+     * Schedule the revalidation of an expired entry on the background
+     * thread, unless it is already scheduled.
+     */
+    protected void backgroundRevalidate(final CacheEntry entry) {
+        synchronized (entry) {
+            if (entry.revalidating)
+                return;
+            entry.revalidating = true;
+        }
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    if (revalidate(entry))
+                        entry.timestamp = System.currentTimeMillis() + cacheTTL;
+                    else
+                        cache.unload(entry);
+                } finally {
+                    synchronized (entry) {
+                        entry.revalidating = false;
+                    }
+                }
+            }
+        };
+        if (!ResourceCache.revalidate(task)) {
+            synchronized (entry) {
+                entry.revalidating = false;
+            }
+        }
+    }
+
+
     /**
      * Validate entry.
      */
@@ -1467,6 +1528,7 @@ public class ProxyDirContext implements DirContext {
                     entry.attributes = (ResourceAttributes) attributes;
                 }
             } catch (NamingException e) {
+                cache.notFound(name, System.currentTimeMillis() + cacheTTL);
                 return false;
             }
         }
@@ -1523,7 +1585,7 @@ public class ProxyDirContext implements DirContext {
         entry.timestamp = System.currentTimeMillis() + cacheTTL;
 
         // Add new entry to cache
-        cache.put(name, entry);
+        cache.load(entry);
 
         return true;
 
@@ -1536,7 +1598,7 @@ public class ProxyDirContext implements DirContext {
     protected boolean cacheUnload(String name) {
         if (cache == null)
             return false;
-        return (cache.remove(name) != null);
+        return (cache.unload(name));
     }
 
 
@@ -1549,11 +1611,14 @@ public class ProxyDirContext implements DirContext {
         // ------------------------------------------------- Instance Variables
 
 
-        long timestamp = -1;
+        volatile long timestamp = -1;
         String name = null;
         ResourceAttributes attributes = null;
         Resource resource = null;
         DirContext context = null;
+        int size = 0;
+        volatile long accessed = 0;
+        boolean revalidating = false;
 
 
         // ----------------------------------------------------- Public Methods
@@ -1565,6 +1630,9 @@ public class ProxyDirContext implements DirContext {
             attributes = null;
             resource = null;
             context = null;
+            size = 0;
+            accessed = 0;
+            revalidating = false;
         }
 
 
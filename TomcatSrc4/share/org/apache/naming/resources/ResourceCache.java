@@ -0,0 +1,442 @@
+/*
+ * $Header$
+ * $Revision$
+ * $Date$
+ *
+ * ====================================================================
+ *
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowlegement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "The Jakarta Project", "Tomcat", and "Apache Software
+ *    Foundation" must not be used to endorse or promote products derived
+ *    from this software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache"
+ *    nor may "Apache" appear in their names without prior written
+ *    permission of the Apache Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * [Additional notices, if required by prior licensing conditions]
+ *
+ */
+
+
+package org.apache.naming.resources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the resources looked up through a <code>ProxyDirContext</code>.
+ * <p>
+ * Lookups never lock: entries are held in a concurrent map, and the access
+ * time used for eviction is recorded without synchronization.  The cache is
+ * bounded by the total estimated size of its entries rather than by their
+ * number; when an insertion exceeds the bound, a single thread evicts the
+ * least recently accessed entries until the cache is back under 90% of its
+ * maximum size.  Names which were not found are kept in a separate, smaller
+ * table, so that repeated lookups of missing resources (welcome files,
+ * optional JSP fragments, ...) do not hit the underlying directory context.
+ *
+ * @version $Revision$ $Date$
+ */
+
+public class ResourceCache {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Approximate footprint of an entry, not including its cached content.
+     */
+    protected static final int ENTRY_OVERHEAD = 256;
+
+
+    /**
+     * Max number of names kept in the not found table.
+     */
+    protected static final int MAX_NOT_FOUND = 1000;
+
+
+    /**
+     * Max number of pending background revalidations.
+     */
+    protected static final int MAX_REVALIDATIONS = 1000;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Builds a cache bounded to the given size.
+     *
+     * @param maxSize Max size of the cache, in bytes
+     */
+    public ResourceCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Cache entries, keyed by name.
+     */
+    protected ConcurrentHashMap entries = new ConcurrentHashMap();
+
+
+    /**
+     * Names which were not found, with the time (as a Long) until which
+     * they are considered missing.
+     */
+    protected ConcurrentHashMap notFound = new ConcurrentHashMap();
+
+
+    /**
+     * Max size of the cache, in bytes.
+     */
+    protected long maxSize;
+
+
+    /**
+     * Current estimated size of the cache, in bytes.
+     */
+    protected AtomicLong size = new AtomicLong();
+
+
+    /**
+     * Is a thread currently evicting entries ?
+     */
+    protected AtomicBoolean evicting = new AtomicBoolean();
+
+
+    /**
+     * Number of lookups served by the cache.
+     */
+    protected AtomicLong hitCount = new AtomicLong();
+
+
+    /**
+     * Number of lookups which had to load the resource.
+     */
+    protected AtomicLong missCount = new AtomicLong();
+
+
+    /**
+     * Number of lookups answered by the not found table.
+     */
+    protected AtomicLong notFoundHitCount = new AtomicLong();
+
+
+    /**
+     * Number of entries evicted to keep the cache under its max size.
+     */
+    protected AtomicLong evictionCount = new AtomicLong();
+
+
+    /**
+     * Executor running the background revalidations of all the caches,
+     * created on first use.
+     */
+    protected static ThreadPoolExecutor revalidator = null;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the max size of the cache, in bytes.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+
+    /**
+     * Return the current estimated size of the cache, in bytes.
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+
+    /**
+     * Return the number of entries in the cache.
+     */
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+
+    /**
+     * Return the number of lookups served by the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+
+    /**
+     * Return the number of lookups which had to load the resource.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+
+    /**
+     * Return the number of lookups answered by the not found table.
+     */
+    public long getNotFoundHitCount() {
+        return notFoundHitCount.get();
+    }
+
+
+    /**
+     * Return the number of entries evicted from the cache.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the entry cached for the given name, or <code>null</code>.
+     * A hit is counted, and the access time of the entry is updated.
+     *
+     * @param name Name of the resource
+     * @param now Current time
+     */
+    public ProxyDirContext.CacheEntry lookup(String name, long now) {
+        ProxyDirContext.CacheEntry entry =
+            (ProxyDirContext.CacheEntry) entries.get(name);
+        if (entry != null) {
+            entry.accessed = now;
+            hitCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+
+    /**
+     * Is the given name currently known to be missing ?  A hit on the not
+     * found table is counted.
+     *
+     * @param name Name of the resource
+     * @param now Current time
+     */
+    public boolean isNotFound(String name, long now) {
+        Long expires = (Long) notFound.get(name);
+        if (expires == null)
+            return false;
+        if (now >= expires.longValue()) {
+            notFound.remove(name, expires);
+            return false;
+        }
+        notFoundHitCount.incrementAndGet();
+        return true;
+    }
+
+
+    /**
+     * Add a freshly loaded entry to the cache, replacing any entry with the
+     * same name, and evict entries if the cache is now too large.  A miss
+     * is counted, and the entry counts as just accessed.
+     *
+     * @param entry Entry to add
+     */
+    public void load(ProxyDirContext.CacheEntry entry) {
+        missCount.incrementAndGet();
+        entry.accessed = System.currentTimeMillis();
+        entry.size = ENTRY_OVERHEAD + 2 * entry.name.length();
+        if ((entry.resource != null) && (entry.resource.getContent() != null))
+            entry.size += entry.resource.getContent().length;
+        notFound.remove(entry.name);
+        ProxyDirContext.CacheEntry old =
+            (ProxyDirContext.CacheEntry) entries.put(entry.name, entry);
+        long delta = entry.size;
+        if (old != null)
+            delta -= old.size;
+        if ((size.addAndGet(delta) > maxSize)
+            && evicting.compareAndSet(false, true)) {
+            try {
+                evict();
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+
+    /**
+     * Record that the given name was not found.  The not found table is
+     * emptied when it reaches its max size.
+     *
+     * @param name Name of the resource
+     * @param expires Time until which the name is considered missing
+     */
+    public void notFound(String name, long expires) {
+        missCount.incrementAndGet();
+        if (notFound.size() >= MAX_NOT_FOUND)
+            notFound.clear();
+        notFound.put(name, new Long(expires));
+    }
+
+
+    /**
+     * Remove the given entry from the cache, unless it has already been
+     * replaced.
+     *
+     * @param entry Entry to remove
+     * @return <code>true</code> if the entry was removed
+     */
+    public boolean unload(ProxyDirContext.CacheEntry entry) {
+        if (!entries.remove(entry.name, entry))
+            return false;
+        size.addAndGet(-entry.size);
+        return true;
+    }
+
+
+    /**
+     * Remove any information cached for the given name.
+     *
+     * @param name Name of the resource
+     * @return <code>true</code> if an entry was removed
+     */
+    public boolean unload(String name) {
+        notFound.remove(name);
+        ProxyDirContext.CacheEntry entry =
+            (ProxyDirContext.CacheEntry) entries.remove(name);
+        if (entry == null)
+            return false;
+        size.addAndGet(-entry.size);
+        return true;
+    }
+
+
+    /**
+     * Run the given revalidation on the background thread shared by all
+     * the caches.
+     *
+     * @param task Revalidation to run
+     * @return <code>false</code> if too many revalidations are pending, in
+     *  which case the task is not run
+     */
+    public static boolean revalidate(Runnable task) {
+        ThreadPoolExecutor executor;
+        synchronized (ResourceCache.class) {
+            if (revalidator == null) {
+                revalidator = new ThreadPoolExecutor
+                    (1, 1, 0L, TimeUnit.MILLISECONDS,
+                     new ArrayBlockingQueue(MAX_REVALIDATIONS),
+                     new ThreadFactory() {
+                         public Thread newThread(Runnable r) {
+                             Thread thread =
+                                 new Thread(r, "ResourceCacheRevalidator");
+                             thread.setDaemon(true);
+                             return thread;
+                         }
+                     });
+            }
+            executor = revalidator;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Evict the least recently accessed entries, until the cache is under
+     * 90% of its max size.
+     */
+    protected void evict() {
+        ArrayList list = new ArrayList(entries.values());
+        ProxyDirContext.CacheEntry[] candidates = (ProxyDirContext.CacheEntry[])
+            list.toArray(new ProxyDirContext.CacheEntry[list.size()]);
+        // The access times are sampled once, so that the order stays
+        // consistent while lookups keep updating them
+        final long[] accessed = new long[candidates.length];
+        Integer[] order = new Integer[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            accessed[i] = candidates[i].accessed;
+            order[i] = new Integer(i);
+        }
+        Arrays.sort(order, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long a1 = accessed[((Integer) o1).intValue()];
+                long a2 = accessed[((Integer) o2).intValue()];
+                return (a1 < a2) ? -1 : ((a1 == a2) ? 0 : 1);
+            }
+        });
+        long target = maxSize - maxSize / 10;
+        for (int i = 0; (i < order.length) && (size.get() > target); i++) {
+            if (unload(candidates[order[i].intValue()]))
+                evictionCount.incrementAndGet();
+        }
+    }
+
+
+}